@@ -0,0 +1,98 @@
+package org.jynergy.cme.benchmark;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.BinaryCodec;
+import org.jynergy.cme.protocol.Protocol;
+import org.jynergy.cme.server.BinaryFramer;
+import org.jynergy.cme.server.FrameDecoder;
+import org.jynergy.cme.server.LineFramer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cutting a read buffer of {@link #MESSAGES} messages into lines and binary frames,
+ * as {@link LineFramer} and {@link BinaryFramer} do for every read.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class ParsingBenchmark {
+    /**
+     * Messages in one read buffer
+     */
+    public static final int MESSAGES = 100;
+
+    private ByteBuffer lines;
+
+    private ByteBuffer frames;
+
+    @Setup
+    public void setUp(){
+        byte[] line = ( Protocol.MESSAGE + "user42" + Protocol.SEPERATOR + "user7 : the quick brown fox jumps over the lazy dog\n" )
+            .getBytes( StandardCharsets.UTF_8 );
+        lines = ByteBuffer.allocate( line.length * MESSAGES );
+        byte[] text = "user7 : the quick brown fox jumps over the lazy dog".getBytes( StandardCharsets.UTF_8 );
+        int bodyLength = BinaryCodec.varintLength( 42 ) + text.length;
+        frames = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) * MESSAGES );
+        for ( int i = 0; i < MESSAGES; i++ ) {
+            lines.put( line );
+            BinaryCodec.putHeader( frames, Protocol.MESSAGE, bodyLength );
+            BinaryCodec.putVarint( frames, 42 );
+            frames.put( text );
+        }
+        lines.flip();
+        frames.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( MESSAGES )
+    public void lines( Blackhole blackhole ) throws IOException {
+        decode( new LineFramer(), lines.duplicate(), blackhole );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( MESSAGES )
+    public void frames( Blackhole blackhole ) throws IOException {
+        decode( new BinaryFramer(), frames.duplicate(), blackhole );
+    }
+
+    private static void decode( FrameDecoder frameDecoder,
+                                ByteBuffer buffer,
+                                Blackhole blackhole ) throws IOException {
+        FrameDecoder.Handler handler = new FrameDecoder.Handler() {
+            public void onLine( String line ){
+                blackhole.consume( line );
+            }
+
+            public void onFrame( char tag,
+                                 ByteBuffer body ) throws IOException {
+                blackhole.consume( BinaryCodec.getVarint( body ) );
+                blackhole.consume( body );
+            }
+        };
+        while ( frameDecoder.decode( buffer, handler ) ) {
+        }
+    }
+}
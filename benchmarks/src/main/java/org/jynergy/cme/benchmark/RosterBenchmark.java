@@ -0,0 +1,72 @@
+package org.jynergy.cme.benchmark;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+import org.jynergy.cme.server.ClientConnection;
+import org.jynergy.cme.server.Frame;
+import org.jynergy.cme.server.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the roster: the full {@link Protocol#USER_LIST} and {@link Protocol#USER_SNAPSHOT}
+ * against the single {@link Protocol#USER_JOINED} delta sent instead.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class RosterBenchmark {
+    /**
+     * Number of users on the roster
+     */
+    @Param( { "10", "1000", "10000" } )
+    public int users;
+
+    @Param( { "TEXT", "BINARY" } )
+    public WireFormat wireFormat;
+
+    private ClientConnection[] clients;
+
+    @Setup
+    public void setUp(){
+        clients = new ClientConnection[ users ];
+        for ( int i = 0; i < users; i++ ) {
+            clients[i] = new StandInConnection( "user" + i, wireFormat, "" );
+            clients[i].setClientId( i + 1 );
+        }
+    }
+
+    @Benchmark
+    public Frame userList(){
+        return wireFormat.encodeUserList( clients );
+    }
+
+    @Benchmark
+    public Frame userSnapshot(){
+        return wireFormat.encodeUserSnapshot( users, clients, users );
+    }
+
+    @Benchmark
+    public Frame userJoined(){
+        ClientConnection joined = clients[users - 1];
+        return wireFormat.encodeUserChange( Protocol.USER_JOINED, users, joined.getClientId(), joined.getClientName(), users );
+    }
+}
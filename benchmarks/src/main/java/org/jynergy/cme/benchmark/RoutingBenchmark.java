@@ -0,0 +1,108 @@
+package org.jynergy.cme.benchmark;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+import org.jynergy.cme.server.ChatServer;
+import org.jynergy.cme.server.ClientConnection;
+import org.jynergy.cme.server.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directed delivery and broadcast fan-out through {@link ChatServer#routeMessage(ClientConnection, String)}
+ * and {@link ChatServer#routeMessage(ClientConnection, int, ByteBuffer)} to {@link StandInConnection}s.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class RoutingBenchmark {
+    /**
+     * Number of logged on clients, all of them get a broadcast
+     */
+    @Param( { "10", "1000", "10000" } )
+    public int recipients;
+
+    /**
+     * Format of every client
+     */
+    @Param( { "TEXT", "BINARY" } )
+    public WireFormat wireFormat;
+
+    private ChatServer chatServer;
+
+    private ClientConnection sender;
+
+    private String directedLine;
+
+    private String broadcastLine;
+
+    private int directedId;
+
+    private ByteBuffer utf8Text;
+
+    @Setup( Level.Trial )
+    public void setUp(){
+        System.setProperty( "cme.maxConnections", String.valueOf( recipients ) );
+        chatServer = new ChatServer();
+        StandInConnection last = null;
+        for ( int i = 0; i < recipients; i++ ) {
+            last = new StandInConnection( "user" + i, wireFormat, String.valueOf( Protocol.FEATURE_USER_DELTAS ) );
+            chatServer.login( last, last.getClientName() );
+            if ( sender == null ) {
+                sender = last;
+            }
+        }
+        String text = "user0 : the quick brown fox jumps over the lazy dog";
+        directedLine = Protocol.MESSAGE + last.getClientName() + Protocol.SEPERATOR + text;
+        broadcastLine = Protocol.MESSAGE + Protocol.ALL + Protocol.SEPERATOR + text;
+        directedId = last.getClientId();
+        utf8Text = ByteBuffer.wrap( text.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown(){
+        chatServer.close();
+    }
+
+    @Benchmark
+    public void directedLine(){
+        chatServer.routeMessage( sender, directedLine );
+    }
+
+    @Benchmark
+    public void directedBinary(){
+        chatServer.routeMessage( sender, directedId, utf8Text );
+    }
+
+    @Benchmark
+    public void broadcastLine(){
+        chatServer.routeMessage( sender, broadcastLine );
+    }
+
+    @Benchmark
+    public void broadcastBinary(){
+        chatServer.routeMessage( sender, Protocol.ALL_ID, utf8Text );
+    }
+}
@@ -0,0 +1,95 @@
+package org.jynergy.cme.benchmark;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.server.ClientConnection;
+import org.jynergy.cme.server.Frame;
+import org.jynergy.cme.server.WireFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An in memory {@link ClientConnection} that takes the place of a socket.
+ * It takes the view of every frame like a real connection does and counts the bytes instead of writing them.
+ */
+public class StandInConnection implements ClientConnection {
+    /**
+     * The client name
+     */
+    private final String clientName;
+
+    /**
+     * The format of the frames it gets
+     */
+    private final WireFormat wireFormat;
+
+    /**
+     * The features agreed on
+     */
+    private final String features;
+
+    /**
+     * The id given at login
+     */
+    private int clientId;
+
+    /**
+     * Bytes sent to this connection
+     */
+    private long bytesSent;
+
+    /**
+     * @param clientName {@link #clientName}
+     * @param wireFormat {@link #wireFormat}
+     * @param features {@link #features}
+     */
+    public StandInConnection( String clientName,
+                              WireFormat wireFormat,
+                              String features ){
+        this.clientName = clientName;
+        this.wireFormat = wireFormat;
+        this.features = features;
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+
+    public int getClientId() {
+        return clientId;
+    }
+
+    public void setClientId( int clientId ) {
+        this.clientId = clientId;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public boolean hasFeature( char feature ){
+        return features.indexOf( feature ) >= 0;
+    }
+
+    public void send( Frame frame ){
+        ByteBuffer byteBuffer = frame.buffer();
+        bytesSent += byteBuffer.remaining();
+    }
+
+    public int getQueuedFrames(){
+        return 0;
+    }
+
+    public void close(){
+    }
+
+    /**
+     * @return {@link #bytesSent}
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+}
@@ -0,0 +1,205 @@
+package org.jynergy.cme.benchmark;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What TLS costs a connection, with the engines of both sides in memory so only the crypto is measured:
+ * a full handshake against one resumed from the client's session cache, and wrapping plus unwrapping a write of
+ * {@link #MESSAGES} messages against copying it. The key store is made with the JDK's keytool.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class TlsBenchmark {
+    /**
+     * Messages in one write
+     */
+    public static final int MESSAGES = 100;
+
+    private static final String PASSWORD = "changeit";
+
+    private static final ByteBuffer NO_DATA = ByteBuffer.allocate( 0 );
+
+    private SSLContext serverContext;
+
+    private SSLContext clientContext;
+
+    private SSLEngine client;
+
+    private SSLEngine server;
+
+    private ByteBuffer messages;
+
+    private ByteBuffer net;
+
+    private ByteBuffer app;
+
+    @Setup
+    public void setUp() throws Exception {
+        File directory = Files.createTempDirectory( "cme-tls" ).toFile();
+        File keyStoreFile = new File( directory, "server.p12" );
+        Process process = new ProcessBuilder( System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "keytool",
+                                              "-genkeypair", "-alias", "cme", "-keyalg", "EC", "-groupname", "secp256r1",
+                                              "-dname", "CN=localhost", "-storetype", "PKCS12",
+                                              "-keystore", keyStoreFile.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD )
+            .inheritIO()
+            .start();
+        if ( process.waitFor() != 0 ) {
+            throw new IllegalStateException( "keytool failed" );
+        }
+        KeyStore keyStore = KeyStore.getInstance( "PKCS12" );
+        try ( FileInputStream fileInputStream = new FileInputStream( keyStoreFile ) ) {
+            keyStore.load( fileInputStream, PASSWORD.toCharArray() );
+        }
+        keyStoreFile.delete();
+        directory.delete();
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+        keyManagerFactory.init( keyStore, PASSWORD.toCharArray() );
+        serverContext = SSLContext.getInstance( "TLS" );
+        serverContext.init( keyManagerFactory.getKeyManagers(), null, null );
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+        trustManagerFactory.init( keyStore );
+        clientContext = SSLContext.getInstance( "TLS" );
+        clientContext.init( null, trustManagerFactory.getTrustManagers(), null );
+
+        net = ByteBuffer.allocate( 64 * 1024 );
+        app = ByteBuffer.allocate( 64 * 1024 );
+        client = clientEngine( clientContext.createSSLEngine() );
+        server = serverEngine();
+        handshake( client, server );
+        handshake( clientEngine( clientContext.createSSLEngine( "localhost", 9100 ) ), serverEngine() );
+
+        byte[] line = ( Protocol.MESSAGE + "user42" + Protocol.SEPERATOR + "user7 : the quick brown fox jumps over the lazy dog\n" )
+            .getBytes( StandardCharsets.UTF_8 );
+        messages = ByteBuffer.allocate( line.length * MESSAGES );
+        for ( int i = 0; i < MESSAGES; i++ ) {
+            messages.put( line );
+        }
+        messages.flip();
+    }
+
+    @Benchmark
+    public SSLEngine fullHandshake() throws SSLException {
+        SSLEngine clientEngine = clientEngine( clientContext.createSSLEngine() );
+        handshake( clientEngine, serverEngine() );
+        return clientEngine;
+    }
+
+    /**
+     * The client names the server, so it offers the session of the last handshake with it
+     */
+    @Benchmark
+    public SSLEngine resumedHandshake() throws SSLException {
+        SSLEngine clientEngine = clientEngine( clientContext.createSSLEngine( "localhost", 9100 ) );
+        handshake( clientEngine, serverEngine() );
+        return clientEngine;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( MESSAGES )
+    public ByteBuffer wrapUnwrap() throws SSLException {
+        net.clear();
+        client.wrap( messages.duplicate(), net );
+        net.flip();
+        app.clear();
+        server.unwrap( net, app );
+        return app;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( MESSAGES )
+    public ByteBuffer plainCopy(){
+        app.clear();
+        app.put( messages.duplicate() );
+        return app;
+    }
+
+    private static SSLEngine clientEngine( SSLEngine sslEngine ){
+        sslEngine.setUseClientMode( true );
+        return sslEngine;
+    }
+
+    private SSLEngine serverEngine(){
+        SSLEngine sslEngine = serverContext.createSSLEngine();
+        sslEngine.setUseClientMode( false );
+        return sslEngine;
+    }
+
+    /**
+     * Passes the handshake messages between both engines until neither has anything left to send,
+     * the session tickets sent after the handshake included
+     */
+    private static void handshake( SSLEngine client,
+                                   SSLEngine server ) throws SSLException {
+        ByteBuffer clientToServer = ByteBuffer.allocate( 64 * 1024 );
+        ByteBuffer serverToClient = ByteBuffer.allocate( 64 * 1024 );
+        ByteBuffer clientIn = ByteBuffer.allocate( 64 * 1024 );
+        ByteBuffer serverIn = ByteBuffer.allocate( 64 * 1024 );
+        client.beginHandshake();
+        server.beginHandshake();
+        for ( int round = 0; round < 100; round++ ) {
+            int bytes = step( client.wrap( NO_DATA, clientToServer ), client )
+                        + step( server.wrap( NO_DATA, serverToClient ), server );
+            clientToServer.flip();
+            serverToClient.flip();
+            bytes += step( client.unwrap( serverToClient, clientIn ), client )
+                     + step( server.unwrap( clientToServer, serverIn ), server );
+            clientToServer.compact();
+            serverToClient.compact();
+            if ( bytes == 0 ) {
+                return;
+            }
+        }
+        throw new SSLException( "handshake did not finish" );
+    }
+
+    /**
+     * Runs the delegated tasks of a step
+     *
+     * @return the bytes consumed and produced
+     */
+    private static int step( SSLEngineResult sslEngineResult,
+                             SSLEngine sslEngine ){
+        if ( sslEngineResult.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK ) {
+            Runnable task;
+            while ( ( task = sslEngine.getDelegatedTask() ) != null ) {
+                task.run();
+            }
+        }
+        return sslEngineResult.bytesConsumed() + sslEngineResult.bytesProduced();
+    }
+}
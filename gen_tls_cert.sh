@@ -0,0 +1,12 @@
+#!/bin/sh
+# Creates a self-signed server key store tls/server.p12 and a trust store tls/trust.p12 holding its certificate.
+# Start the server with -Dcme.tls.keyStore=tls/server.p12 -Dcme.tls.keyStorePassword=changeit
+# and the client with -Djavax.net.ssl.trustStore=tls/trust.p12 -Djavax.net.ssl.trustStorePassword=changeit
+HOST=${1:-localhost}
+mkdir -p tls
+rm -f tls/server.p12 tls/trust.p12 tls/server.cer
+keytool -genkeypair -alias cme -keyalg EC -groupname secp256r1 -validity 365 -dname "CN=$HOST" -ext "SAN=dns:$HOST" \
+        -storetype PKCS12 -keystore tls/server.p12 -storepass changeit -keypass changeit
+keytool -exportcert -alias cme -keystore tls/server.p12 -storepass changeit -file tls/server.cer
+keytool -importcert -noprompt -alias cme -file tls/server.cer -storetype PKCS12 -keystore tls/trust.p12 -storepass changeit
+rm tls/server.cer
@@ -0,0 +1 @@
+java -jar benchmarks/target/benchmarks.jar "$@"
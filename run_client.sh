@@ -1 +1 @@
-java -cp target/cmeProblem-1.0-SNAPSHOT.jar org.jynergy.cme.client.ChatClient $1 $2 $3
+java -cp target/cmeProblem-1.0-SNAPSHOT.jar org.jynergy.cme.client.ChatClient $1 $2 $3 $4 $5
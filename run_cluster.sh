@@ -0,0 +1,15 @@
+#!/bin/sh
+# Starts a cluster of N nodes (default 3) on localhost: clients connect to ports 9101.., the nodes link on 9201..
+# The nodes share CME_CLUSTER_SECRET, a random one if it is not set.
+NODES=${1:-3}
+[ $# -gt 0 ] && shift
+SECRET=${CME_CLUSTER_SECRET:-$(od -An -N16 -tx1 /dev/urandom | tr -d ' \n')}
+MEMBERS=""
+for i in $(seq 1 $NODES); do
+    MEMBERS="$MEMBERS${MEMBERS:+,}node$i@localhost:$((9200 + i))"
+done
+for i in $(seq 1 $NODES); do
+    java -Dcme.cluster.nodeId=node$i -Dcme.cluster.members=$MEMBERS -Dcme.cluster.secret=$SECRET \
+         -cp target/cmeProblem-1.0-SNAPSHOT.jar org.jynergy.cme.server.ChatServer $((9100 + i)) localhost "$@" &
+done
+wait
@@ -0,0 +1 @@
+java -cp target/cmeProblem-1.0-SNAPSHOT.jar org.jynergy.cme.load.LoadGenerator "$@"
@@ -5,51 +5,205 @@ package org.jynergy.cme.client;
  * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
  */
 
+import org.jynergy.cme.protocol.BinaryCodec;
+import org.jynergy.cme.protocol.Compression;
 import org.jynergy.cme.protocol.Protocol;
 
+import javax.net.ssl.SSLSocketFactory;
 import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
+import javax.swing.JScrollBar;
 import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import java.awt.BorderLayout;
+import java.awt.Component;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.prefs.Preferences;
 
 /**
  * A chat Client for a client server application
  */
 public class ChatClient extends JFrame implements Runnable, Protocol
 {
-    private final static String LINE_SEPARATOR = System.lineSeparator();
+    /**
+     * Most lines kept in the {@link Transcript}, set with <code>-Dcme.client.scrollback</code>
+     */
+    private final static int SCROLLBACK = Integer.getInteger( "cme.client.scrollback", 10000 );
     private final static String NONE = "None";
+    private final static String ROOM_PREFIX = "#";
+    private final static String JOIN_COMMAND = "/join ";
+    private final static String LEAVE_COMMAND = "/leave ";
 
-    private Socket socket;
+    /**
+     * Tries to connect again after a {@link Protocol#RECONNECT}, a new server may still be starting
+     */
+    private final static int RECONNECT_ATTEMPTS = 10;
+    private final static long RECONNECT_RETRY_MILLIS = 1000;
+
+    private volatile Socket socket;
     private String clientName;
-    private JTextArea jTextArea;
+
+    /**
+     * The server connected to
+     */
+    private String serverName;
+    private int serverPort;
+
+    /**
+     * Millis to wait after a {@link Protocol#RECONNECT} before connecting again, -1 while none came
+     */
+    private volatile int reconnectDelayMillis = -1;
+    private Transcript transcript;
+    private JList<String> jList;
     private JTextField jTextField;
     private JButton jButton;
-    private JComboBox jComboBox;
+    private DefaultListModel<String> recipientModel;
+    private JList<String> recipientList;
     private JComboBox jFilterComboBox;
-    private PrintWriter printWriter;
-    private String filteredText;
+    private volatile PrintWriter printWriter;
+
+    /**
+     * True once the server accepted {@link Protocol#FEATURE_SUBSCRIPTIONS}, {@link #jFilterComboBox} is disabled without
+     */
+    private volatile boolean subscriptions;
+
+    /**
+     * The sender of the last {@link Protocol#SUBSCRIBE}, null for all senders. Only the event dispatch thread uses it.
+     */
+    private String subscribedSender;
+
+    /**
+     * Set while {@link #jFilterComboBox} is refilled, so its events do not subscribe
+     */
+    private boolean refillingFilter;
+
+    /**
+     * True once the server accepted {@link Protocol#FEATURE_BINARY}
+     */
+    private volatile boolean binary;
+
+    /**
+     * Where binary frames are written, guarded by itself
+     */
+    private volatile OutputStream outputStream;
+
+    /**
+     * The ids of the users, from the last binary {@link Protocol#USER_LIST}
+     */
+    private volatile Map<String,Integer> clientIdMap = new HashMap<>();
+
+    /**
+     * Set to ask for {@link Protocol#FEATURE_BINARY} in the handshake
+     */
+    private boolean requestBinary;
+
+    /**
+     * Set to connect with TLS, the server's certificate is checked against the default trust store,
+     * see <code>javax.net.ssl.trustStore</code>
+     */
+    private boolean tls;
+
+    /**
+     * Version of the roster shown, -1 while waiting for a {@link Protocol#USER_SNAPSHOT}.
+     * Only the reading thread uses it.
+     */
+    private int rosterVersion = -1;
+
+    /**
+     * The rooms joined, listed in {@link #recipientList} after the users with {@link #ROOM_PREFIX}.
+     * Only the event dispatch thread uses it.
+     */
+    private ArrayList<String> rooms = new ArrayList<>();
+
+    /**
+     * Where {@link #lastSequence} is kept between runs
+     */
+    private final Preferences preferences = Preferences.userNodeForPackage( ChatClient.class );
+
+    /**
+     * Key of {@link #lastSequence} in {@link #preferences}, one per user and server
+     */
+    private String sequenceKey;
+
+    /**
+     * Sequence number of the last {@link Protocol#JOURNAL_MESSAGE} shown. Only the reading thread uses it.
+     */
+    private long lastSequence;
+
+    /**
+     * The {@link Protocol#JOURNAL_MESSAGE}s that came in while a {@link Protocol#REPLAY} was pending, by sequence
+     * number, null if none is pending. Only the reading thread uses it.
+     */
+    private TreeMap<Long,String> replayed;
 
     public ChatClient( String clientName,
                        String serverName,
                        int serverPort ) {
+        this( clientName, serverName, serverPort, false );
+    }
+
+    /**
+     * @param clientName {@link #clientName}
+     * @param serverName name to connect to
+     * @param serverPort port to connect to
+     * @param requestBinary {@link #requestBinary}
+     */
+    public ChatClient( String clientName,
+                       String serverName,
+                       int serverPort,
+                       boolean requestBinary ) {
+        this( clientName, serverName, serverPort, requestBinary, false );
+    }
+
+    /**
+     * @param clientName {@link #clientName}
+     * @param serverName name to connect to
+     * @param serverPort port to connect to
+     * @param requestBinary {@link #requestBinary}
+     * @param tls {@link #tls}
+     */
+    public ChatClient( String clientName,
+                       String serverName,
+                       int serverPort,
+                       boolean requestBinary,
+                       boolean tls ) {
         super( "Chat Client: " + clientName );
-        
+        this.requestBinary = requestBinary;
+        this.tls = tls;
+
         createView();
         initializeThread( clientName, serverName, serverPort );
         SwingUtilities.invokeLater( () ->  setVisible( true ));
@@ -67,8 +221,14 @@ public class ChatClient extends JFrame implements Runnable, Protocol
                                   int serverPort){
         System.out.println( serverName + ":" + serverPort);
         this.clientName = clientName;
+        this.serverName = serverName;
+        this.serverPort = serverPort;
+        sequenceKey = clientName + "@" + serverName + ":" + serverPort;
+        if ( sequenceKey.length() > Preferences.MAX_KEY_LENGTH ) {
+            sequenceKey = Integer.toHexString( sequenceKey.hashCode() );
+        }
         try {
-            socket = new Socket( serverName, serverPort );
+            socket = connect();
             System.out.println( "Connected: " + socket );
         }
         catch ( UnknownHostException unknownHostException ) {
@@ -94,16 +254,38 @@ public class ChatClient extends JFrame implements Runnable, Protocol
         JPanel mainPanel = new JPanel( new BorderLayout(  ) );
         getContentPane().add( mainPanel );
 
-        jTextArea = new JTextArea(  );
-        jTextArea.setEnabled( false );
+        transcript = new Transcript( SCROLLBACK );
+        jList = new JList<>( transcript );
+        // fixed cells, so only the visible rows are measured and rendered; they are as wide as the list
+        jList.setFixedCellHeight( jList.getFontMetrics( jList.getFont() ).getHeight() + 2 );
+        jList.setFixedCellWidth( 1 );
+        jList.setCellRenderer( new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent( JList<?> list,
+                                                           Object value,
+                                                           int index,
+                                                           boolean isSelected,
+                                                           boolean cellHasFocus ){
+                super.getListCellRendererComponent( list, value, index, isSelected, cellHasFocus );
+                // lines wider than the list are cut, the tool tip shows them whole
+                setToolTipText( (String) value );
+                return this;
+            }
+        } );
 
-        jComboBox = new JComboBox<>( );
-        jComboBox.addItem( ALL );
+        recipientModel = new DefaultListModel<>();
+        recipientModel.addElement( ALL );
+        recipientList = new JList<>( recipientModel );
+        recipientList.setSelectionMode( ListSelectionModel.MULTIPLE_INTERVAL_SELECTION );
+        recipientList.setVisibleRowCount( 3 );
+        recipientList.setPrototypeCellValue( "a longer user name" );
+        recipientList.setSelectedIndex( 0 );
         jTextField = new JTextField();
 
         jFilterComboBox = new JComboBox(  );
         jFilterComboBox.addItem( NONE );
-        jFilterComboBox.addActionListener( a -> populateFilterText() );
+        jFilterComboBox.addActionListener( a -> subscribeToFilter() );
+        jFilterComboBox.setEnabled( false );
 
         jButton = new JButton( "Send");
         jButton.setEnabled( false );
@@ -111,7 +293,7 @@ public class ChatClient extends JFrame implements Runnable, Protocol
 
         JPanel sendingPanel = new JPanel( new BorderLayout(  ) );
         sendingPanel.add( new JLabel( "Who Sending to: " ) );
-        sendingPanel.add( jComboBox, BorderLayout.WEST );
+        sendingPanel.add( new JScrollPane( recipientList ), BorderLayout.WEST );
         sendingPanel.add( jTextField, BorderLayout.CENTER );
 
         JPanel filterPanel = new JPanel( new BorderLayout( ) );
@@ -120,95 +302,192 @@ public class ChatClient extends JFrame implements Runnable, Protocol
         filterPanel.add( jFilterComboBox, BorderLayout.EAST );
         sendingPanel.add( filterPanel, BorderLayout.EAST );
 
-        JScrollPane jScrollPane = new JScrollPane( jTextArea );
+        JScrollPane jScrollPane = new JScrollPane( jList );
         jScrollPane.setBorder( BorderFactory.createTitledBorder( "Chat Output" ));
+        transcript.addListDataListener( new ListDataListener() {
+            @Override
+            public void intervalAdded( ListDataEvent listDataEvent ){
+                // follow the new lines unless the user scrolled up
+                JScrollBar jScrollBar = jScrollPane.getVerticalScrollBar();
+                if ( jScrollBar.getValue() + jScrollBar.getVisibleAmount() >= jScrollBar.getMaximum() - jList.getFixedCellHeight() ) {
+                    SwingUtilities.invokeLater( () -> jList.ensureIndexIsVisible( transcript.getSize() - 1 ) );
+                }
+            }
+
+            @Override
+            public void intervalRemoved( ListDataEvent listDataEvent ){
+            }
+
+            @Override
+            public void contentsChanged( ListDataEvent listDataEvent ){
+            }
+        } );
 
         mainPanel.add( jScrollPane, BorderLayout.CENTER );
         mainPanel.add( sendingPanel, BorderLayout.SOUTH );
     }
 
     /**
-     * Poupolates {@link #jComboBox} and {@link #jFilterComboBox}
+     * Poupolates {@link #recipientList} and {@link #jFilterComboBox}
      *
      * @param nameList
      */
     private void populateComboBoxes( ArrayList<String> nameList ){
-        populateJComboBox( nameList );
+        populateRecipientList( nameList );
         populateFilterJComboBox( nameList );
     }
 
     /**
-     * Populates {@link #jComboBox}
+     * Populates {@link #recipientList}, keeping the selected recipients that are still there
      *
      * @param nameList {@link ArrayList} of names
      */
-    private void populateJComboBox( ArrayList<String> nameList ){
-        if ( jComboBox.getItemCount() > 0 ){
-            jComboBox.removeAllItems();
-        }
-        jComboBox.addItem( Protocol.ALL );
+    private void populateRecipientList( ArrayList<String> nameList ){
+        List<String> selected = recipientList.getSelectedValuesList();
+        recipientModel.clear();
+        recipientModel.addElement( Protocol.ALL );
         for (String name : nameList ){
-            jComboBox.addItem( name );
+            recipientModel.addElement( name );
+        }
+        for ( String room : rooms ) {
+            recipientModel.addElement( ROOM_PREFIX + room );
         }
-        
+        for ( String recipient : selected ) {
+            int index = recipientModel.indexOf( recipient );
+            if ( index >= 0 ) {
+                recipientList.addSelectionInterval( index, index );
+            }
+        }
+        if ( recipientList.isSelectionEmpty() ) {
+            recipientList.setSelectedIndex( 0 );
+        }
+
         jButton.setEnabled( true );
     }
 
-    private void populateFilterText(){
+    /**
+     * Adds a user that joined to {@link #recipientList} and {@link #jFilterComboBox}
+     *
+     * @param name the user
+     */
+    private void addUser( String name ){
+        recipientModel.addElement( name );
+        jFilterComboBox.addItem( name );
+        jButton.setEnabled( true );
+    }
+
+    /**
+     * Removes a user that left from {@link #recipientList} and {@link #jFilterComboBox}
+     *
+     * @param name the user
+     */
+    private void removeUser( String name ){
+        recipientModel.removeElement( name );
+        if ( recipientList.isSelectionEmpty() ) {
+            recipientList.setSelectedIndex( 0 );
+        }
+        if ( name.equals( jFilterComboBox.getSelectedItem() ) ) {
+            jFilterComboBox.setSelectedItem( NONE );
+        }
+        jFilterComboBox.removeItem( name );
+    }
+
+    /**
+     * Asks the server for the messages to {@link Protocol#ALL} from the sender selected in {@link #jFilterComboBox} only,
+     * or from all senders for {@link #NONE}; the others are never sent. Nothing is sent if the sender did not change.
+     */
+    private void subscribeToFilter(){
         String itemSelected = (String) jFilterComboBox.getSelectedItem();
-        if ( itemSelected == null || itemSelected.equals( NONE ) ){
-            filteredText = null;
+        String sender = itemSelected == null || itemSelected.equals( NONE ) ? null : itemSelected;
+        if ( !subscriptions || refillingFilter || Objects.equals( sender, subscribedSender ) ) {
+            return;
         }
-        else{
-            filteredText = itemSelected;
+        try {
+            if ( sendSubscription( sender ) ) {
+                subscribedSender = sender;
+            }
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
         }
     }
 
+    /**
+     * Sends a {@link Protocol#SUBSCRIBE}
+     *
+     * @param sender the sender, null for all senders
+     *
+     * @return false if the binary id of the sender is not known yet
+     *
+     * @throws IOException if writing fails
+     */
+    private boolean sendSubscription( String sender ) throws IOException {
+        if ( binary ) {
+            Integer senderId = sender == null ? null : clientIdMap.get( sender );
+            if ( sender != null && senderId == null ) {
+                return false;
+            }
+            int bodyLength = senderId == null ? BinaryCodec.varintLength( 0 )
+                                              : BinaryCodec.varintLength( 1 ) + BinaryCodec.varintLength( senderId );
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, Protocol.SUBSCRIBE, bodyLength );
+            if ( senderId == null ) {
+                BinaryCodec.putVarint( byteBuffer, 0 );
+            }
+            else {
+                BinaryCodec.putVarint( byteBuffer, 1 );
+                BinaryCodec.putVarint( byteBuffer, senderId );
+            }
+            writeFrame( byteBuffer );
+        }
+        else {
+            printWriter.println( Protocol.SUBSCRIBE + ( sender == null ? "" : sender ) );
+        }
+        return true;
+    }
+
 
     /**
-     * Populates {@link #jFilterComboBox}
+     * Populates {@link #jFilterComboBox}, keeping the sender selected if it is still there
      *
      * @param nameList {@link ArrayList} of names
      */
     public void populateFilterJComboBox( ArrayList<String> nameList ) {
         String itemSelected = (String) jFilterComboBox.getSelectedItem();
-        if ( jFilterComboBox.getItemCount() > 0 ) {
-            jFilterComboBox.removeAllItems();
-        }
-        jFilterComboBox.addItem( NONE);
-        for ( String name : nameList ) {
-            jFilterComboBox.addItem( name );
-        }
+        refillingFilter = true;
+        try {
+            if ( jFilterComboBox.getItemCount() > 0 ) {
+                jFilterComboBox.removeAllItems();
+            }
+            jFilterComboBox.addItem( NONE);
+            for ( String name : nameList ) {
+                jFilterComboBox.addItem( name );
+            }
 
-        if ( itemSelected != null &&
-             itemSelected.trim().length() > 0 ){
-             if ( ! itemSelected.equals( NONE )){
-                 jFilterComboBox.setSelectedItem( itemSelected );
-             }  else{
-                 jFilterComboBox.setSelectedItem( NONE );
-             }
+            if ( itemSelected != null &&
+                 itemSelected.trim().length() > 0 ){
+                 if ( ! itemSelected.equals( NONE )){
+                     jFilterComboBox.setSelectedItem( itemSelected );
+                 }  else{
+                     jFilterComboBox.setSelectedItem( NONE );
+                 }
+            }
         }
+        finally {
+            refillingFilter = false;
+        }
+        subscribeToFilter();
 
         jButton.setEnabled( true );
     }
 
     /**
-     * Adds the text to {@link #jTextArea}
+     * Adds the text to {@link #transcript}, from any thread
      *
      * @param line line to add
      */
-    public void addTextToJTextArea( String line ){
-        if ( filteredText != null ) {
-            
-            line = line + LINE_SEPARATOR;
-            if ( line.indexOf( filteredText ) != -1 ) {
-                jTextArea.append( line );
-            }
-        }
-        else{
-            line = line + LINE_SEPARATOR;
-            jTextArea.append( line );
-        }
+    public void addTextToTranscript( String line ){
+        transcript.add( line );
     }
 
     /**
@@ -218,15 +497,28 @@ public class ChatClient extends JFrame implements Runnable, Protocol
         String message = jTextField.getText().trim();
         jTextField.setText( "" );
         if ( message != null & message.length() > 0 ){
-            StringBuilder stringBuilder = new StringBuilder(  );
-            stringBuilder.append( Protocol.MESSAGE );
-            stringBuilder.append( jComboBox.getSelectedItem() );
-            stringBuilder.append( Protocol.SEPERATOR );
-            stringBuilder.append( clientName );
-            stringBuilder.append( " : " );
-            stringBuilder.append( message );
+            List<String> recipients = recipientList.getSelectedValuesList();
             try {
-                printWriter.println( stringBuilder.toString() );
+                if ( message.startsWith( JOIN_COMMAND ) ) {
+                    String room = message.substring( JOIN_COMMAND.length() ).trim();
+                    if ( room.length() > 0 && !rooms.contains( room ) ) {
+                        // listed once the server answers, see roomJoined
+                        sendRoomCommand( Protocol.ROOM_JOIN, room );
+                    }
+                }
+                else if ( message.startsWith( LEAVE_COMMAND ) ) {
+                    String room = message.substring( LEAVE_COMMAND.length() ).trim();
+                    if ( rooms.remove( room ) ) {
+                        sendRoomCommand( Protocol.ROOM_LEAVE, room );
+                        recipientModel.removeElement( ROOM_PREFIX + room );
+                        if ( recipientList.isSelectionEmpty() ) {
+                            recipientList.setSelectedIndex( 0 );
+                        }
+                    }
+                }
+                else {
+                    sendToRecipients( recipients, clientName + " : " + message );
+                }
             } catch ( Exception e ){
                 if ( ! socket.isClosed() ){
                     try {
@@ -244,42 +536,250 @@ public class ChatClient extends JFrame implements Runnable, Protocol
     }
 
     /**
-     * listesn to the thread and process the input
+     * Sends a message to {@link Protocol#ALL} if selected, otherwise to every selected room
+     * and once to the selected users, in one {@link Protocol#MULTICAST} if there are several
+     *
+     * @param recipients the selected recipients
+     * @param text the text
+     *
+     * @throws IOException if writing fails
+     */
+    private void sendToRecipients( List<String> recipients,
+                                   String text ) throws IOException {
+        if ( recipients.isEmpty() || recipients.contains( ALL ) ) {
+            sendDirectMessage( ALL, text );
+            return;
+        }
+        ArrayList<String> users = new ArrayList<>();
+        for ( String recipient : recipients ) {
+            if ( recipient.startsWith( ROOM_PREFIX ) ) {
+                sendRoomMessage( recipient.substring( ROOM_PREFIX.length() ), text );
+            }
+            else {
+                users.add( recipient );
+            }
+        }
+        if ( users.size() == 1 ) {
+            sendDirectMessage( users.get( 0 ), text );
+        }
+        else if ( users.size() > 1 ) {
+            sendMulticast( users, text );
+        }
+    }
+
+    /**
+     * Sends a {@link Protocol#MESSAGE} to one user or {@link Protocol#ALL}
+     *
+     * @param whoTo the user
+     * @param text the text
+     *
+     * @throws IOException if writing fails
+     */
+    private void sendDirectMessage( String whoTo,
+                                    String text ) throws IOException {
+        if ( binary ) {
+            sendBinaryMessage( whoTo, text );
+        }
+        else {
+            StringBuilder stringBuilder = new StringBuilder(  );
+            stringBuilder.append( Protocol.MESSAGE );
+            stringBuilder.append( whoTo );
+            stringBuilder.append( Protocol.SEPERATOR );
+            stringBuilder.append( text );
+            printWriter.println( stringBuilder.toString() );
+        }
+    }
+
+    /**
+     * Sends a {@link Protocol#MULTICAST}, users that left meanwhile are skipped in binary
+     *
+     * @param users the users
+     * @param text the text
+     *
+     * @throws IOException if writing fails
+     */
+    private void sendMulticast( List<String> users,
+                                String text ) throws IOException {
+        if ( binary ) {
+            ArrayList<Integer> recipientIds = new ArrayList<>();
+            for ( String user : users ) {
+                Integer clientId = clientIdMap.get( user );
+                if ( clientId != null ) {
+                    recipientIds.add( clientId );
+                }
+            }
+            byte[] textBytes = text.getBytes( StandardCharsets.UTF_8 );
+            int bodyLength = BinaryCodec.varintLength( recipientIds.size() ) + textBytes.length;
+            for ( int recipientId : recipientIds ) {
+                bodyLength += BinaryCodec.varintLength( recipientId );
+            }
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, Protocol.MULTICAST, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, recipientIds.size() );
+            for ( int recipientId : recipientIds ) {
+                BinaryCodec.putVarint( byteBuffer, recipientId );
+            }
+            byteBuffer.put( textBytes );
+            writeFrame( byteBuffer );
+        }
+        else {
+            printWriter.println( Protocol.MULTICAST + String.join( String.valueOf( Protocol.COMMA ), users )
+                                 + Protocol.SEPERATOR + text );
+        }
+    }
+
+    /**
+     * Joins or leaves a room
+     *
+     * @param command {@link Protocol#ROOM_JOIN} or {@link Protocol#ROOM_LEAVE}
+     * @param room the room
+     *
+     * @throws IOException if writing fails
+     */
+    private void sendRoomCommand( char command,
+                                  String room ) throws IOException {
+        if ( binary ) {
+            byte[] roomBytes = room.getBytes( StandardCharsets.UTF_8 );
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( roomBytes.length ) );
+            BinaryCodec.putHeader( byteBuffer, command, roomBytes.length );
+            byteBuffer.put( roomBytes );
+            writeFrame( byteBuffer );
+        }
+        else {
+            printWriter.println( command + room );
+        }
+    }
+
+    /**
+     * Sends a {@link Protocol#ROOM_MESSAGE}
+     *
+     * @param room the room
+     * @param text the text
+     *
+     * @throws IOException if writing fails
+     */
+    private void sendRoomMessage( String room,
+                                  String text ) throws IOException {
+        if ( binary ) {
+            byte[] roomBytes = room.getBytes( StandardCharsets.UTF_8 );
+            byte[] textBytes = text.getBytes( StandardCharsets.UTF_8 );
+            int bodyLength = BinaryCodec.varintLength( roomBytes.length ) + roomBytes.length + textBytes.length;
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, Protocol.ROOM_MESSAGE, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, roomBytes.length );
+            byteBuffer.put( roomBytes );
+            byteBuffer.put( textBytes );
+            writeFrame( byteBuffer );
+        }
+        else {
+            printWriter.println( Protocol.ROOM_MESSAGE + room + Protocol.SEPERATOR + text );
+        }
+    }
+
+    /**
+     * Writes an encoded binary frame
+     *
+     * @param byteBuffer the frame between 0 and the position
+     *
+     * @throws IOException if writing fails
+     */
+    private void writeFrame( ByteBuffer byteBuffer ) throws IOException {
+        synchronized ( outputStream ) {
+            outputStream.write( byteBuffer.array(), 0, byteBuffer.position() );
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * Writes a binary {@link Protocol#MESSAGE} frame
+     *
+     * @param whoTo name of the recipient or {@link Protocol#ALL}
+     * @param text the text
+     *
+     * @throws IOException if writing fails
+     */
+    private void sendBinaryMessage( String whoTo,
+                                    String text ) throws IOException {
+        int recipientId = Protocol.ALL_ID;
+        if ( !Protocol.ALL.equals( whoTo ) ) {
+            Integer clientId = clientIdMap.get( whoTo );
+            if ( clientId == null ) {
+                return;
+            }
+            recipientId = clientId;
+        }
+        byte[] textBytes = text.getBytes( StandardCharsets.UTF_8 );
+        int bodyLength = BinaryCodec.varintLength( recipientId ) + textBytes.length;
+        ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+        BinaryCodec.putHeader( byteBuffer, Protocol.MESSAGE, bodyLength );
+        BinaryCodec.putVarint( byteBuffer, recipientId );
+        byteBuffer.put( textBytes );
+        writeFrame( byteBuffer );
+    }
+
+    /**
+     * @return a new socket to the server
+     *
+     * @throws IOException if it cannot connect
+     */
+    private Socket connect() throws IOException {
+        return tls ? SSLSocketFactory.getDefault().createSocket( serverName, serverPort ) : new Socket( serverName, serverPort );
+    }
+
+    /**
+     * listesn to the thread and process the input, connecting again as long as the server sends {@link Protocol#RECONNECT}
      */
     public void run(){
+        boolean reconnected = false;
+        do {
+            runSession( reconnected );
+            reconnected = true;
+        } while ( reconnectDelayMillis >= 0 && reconnect() );
+        System.exit( 0 );
+    }
+
+    /**
+     * Does the handshake and processes the input until the socket is closed
+     *
+     * @param reconnected true after a {@link Protocol#RECONNECT}, the rooms are joined again
+     */
+    private void runSession( boolean reconnected ){
         try{
-            printWriter = new PrintWriter( socket.getOutputStream(), true );
-            BufferedReader bufferedReader = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
-            printWriter.println( clientName );
-            while ( ! socket.isClosed() ){
-                String line = bufferedReader.readLine();
-                if ( line != null ) {
-                    switch ( line.charAt( 0 ) ) {
-                        case USER_EXISTS:
-                            System.err.println( "The user " + clientName + " exists" );
-                            System.exit( 1 );
-                            break;
-                        case TO_MANY_USERS:
-                            System.err.println( "Ten people are already logged on" );
-                            System.exit( 1 );
-                            break;
-                        case USER_LIST:
-                            final ArrayList<String> nameList = createList( line.substring( 1, line.length() ) );
-                            SwingUtilities.invokeLater( () ->  populateComboBoxes( nameList ));
-                            break;
-                        case MESSAGE:
-                            final String message  = line.substring( 1, line.length() );
-                            SwingUtilities.invokeLater( () -> addTextToJTextArea( message ) );
-                            break;
-                    }
-                }
-                else{
-                    break;
+            outputStream = socket.getOutputStream();
+            printWriter = new PrintWriter( new OutputStreamWriter( outputStream, StandardCharsets.UTF_8 ), true );
+            InputStream inputStream = new BufferedInputStream( socket.getInputStream() );
+            String features = String.valueOf( Protocol.FEATURE_USER_DELTAS ) + Protocol.FEATURE_JOURNAL + Protocol.FEATURE_COMPRESSION
+                              + Protocol.FEATURE_HEARTBEAT + Protocol.FEATURE_SUBSCRIPTIONS;
+            if ( requestBinary ) {
+                features += Protocol.FEATURE_BINARY;
+            }
+            printWriter.println( String.valueOf( Protocol.HELLO ) + features + Protocol.SEPERATOR + clientName );
+            String line = readLine( inputStream );
+            if ( line != null && line.length() > 0 && line.charAt( 0 ) == Protocol.HELLO ) {
+                binary = line.indexOf( Protocol.FEATURE_BINARY ) > 0;
+                subscriptions = line.indexOf( Protocol.FEATURE_SUBSCRIPTIONS ) > 0;
+                SwingUtilities.invokeLater( () -> jFilterComboBox.setEnabled( subscriptions ) );
+                if ( line.indexOf( Protocol.FEATURE_JOURNAL ) > 0 ) {
+                    requestReplay();
                 }
             }
+            else if ( line != null ) {
+                processLine( line );
+            }
+            if ( reconnected ) {
+                SwingUtilities.invokeLater( this::rejoin );
+            }
+            if ( binary ) {
+                readFrames( new DataInputStream( inputStream ) );
+            }
+            else {
+                readLines( new BufferedReader( new InputStreamReader( inputStream, StandardCharsets.UTF_8 ) ) );
+            }
         }
         catch ( IOException ioException ){
-            ioException.printStackTrace();
+            if ( reconnectDelayMillis < 0 ) {
+                ioException.printStackTrace();
+            }
         }
         if ( !socket.isClosed() ) {
             try {
@@ -289,7 +789,511 @@ public class ChatClient extends JFrame implements Runnable, Protocol
                 e.printStackTrace();
             }
         }
-        System.exit( 0 );
+    }
+
+    /**
+     * Handles a {@link Protocol#RECONNECT}: keeps reading from this server for the delay it gave,
+     * then closes the socket so {@link #run()} connects again
+     *
+     * @param delayMillis the delay
+     */
+    private void scheduleReconnect( int delayMillis ){
+        if ( reconnectDelayMillis >= 0 ) {
+            return;
+        }
+        reconnectDelayMillis = delayMillis;
+        System.out.println( "Server shutting down, reconnecting in " + delayMillis + " ms" );
+        Socket closing = socket;
+        Thread thread = new Thread( () -> {
+            try {
+                Thread.sleep( delayMillis );
+            }
+            catch ( InterruptedException interruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                closing.close();
+            }
+            catch ( IOException ioException ) {
+                ioException.printStackTrace();
+            }
+        }, "ChatClient-reconnect" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Connects again after a {@link Protocol#RECONNECT}, up to {@link #RECONNECT_ATTEMPTS} times
+     *
+     * @return false if no connection could be made
+     */
+    private boolean reconnect(){
+        reconnectDelayMillis = -1;
+        rosterVersion = -1;
+        for ( int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++ ) {
+            try {
+                socket = connect();
+                System.out.println( "Connected: " + socket );
+                return true;
+            }
+            catch ( IOException ioException ) {
+                System.err.println( "Reconnect failed: " + ioException.getMessage() );
+            }
+            try {
+                Thread.sleep( RECONNECT_RETRY_MILLIS );
+            }
+            catch ( InterruptedException interruptedException ) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handles the answer to a {@link Protocol#ROOM_JOIN}: lists a room the server accepted,
+     * drops a refused one, which may have been joined before a reconnect. Runs on the event dispatch thread.
+     *
+     * @param room the room
+     * @param accepted true for a {@link Protocol#ROOM_JOIN}, false for a {@link Protocol#ROOM_LEAVE}
+     */
+    private void roomJoined( String room,
+                             boolean accepted ){
+        if ( accepted ) {
+            if ( !rooms.contains( room ) ) {
+                rooms.add( room );
+                recipientModel.addElement( ROOM_PREFIX + room );
+                recipientList.setSelectedValue( ROOM_PREFIX + room, true );
+            }
+            return;
+        }
+        if ( rooms.remove( room ) ) {
+            recipientModel.removeElement( ROOM_PREFIX + room );
+            if ( recipientList.isSelectionEmpty() ) {
+                recipientList.setSelectedIndex( 0 );
+            }
+        }
+        addTextToTranscript( "Cannot join " + ROOM_PREFIX + room );
+    }
+
+    /**
+     * Joins the rooms again and forgets the subscription after a reconnect, the new server knows neither;
+     * the next roster sends the subscription again. Runs on the event dispatch thread.
+     */
+    private void rejoin(){
+        subscribedSender = null;
+        try {
+            for ( String room : rooms ) {
+                sendRoomCommand( Protocol.ROOM_JOIN, room );
+            }
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+        }
+    }
+
+    /**
+     * Processes text lines until the socket is closed
+     *
+     * @param bufferedReader reads the lines
+     *
+     * @throws IOException if reading fails
+     */
+    private void readLines( BufferedReader bufferedReader ) throws IOException {
+        while ( ! socket.isClosed() ){
+            String line = bufferedReader.readLine();
+            if ( line != null ) {
+                processLine( line );
+            }
+            else{
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handles one text line from the server
+     *
+     * @param line the line
+     *
+     * @throws IOException if asking for the roster or answering a ping fails
+     */
+    private void processLine( String line ) throws IOException {
+        if ( line.isEmpty() ) {
+            return;
+        }
+        switch ( line.charAt( 0 ) ) {
+            case USER_LIST:
+                final ArrayList<String> nameList = createList( line.substring( 1, line.length() ) );
+                SwingUtilities.invokeLater( () ->  populateComboBoxes( nameList ));
+                break;
+            case USER_SNAPSHOT: {
+                int comma = line.indexOf( COMMA );
+                int version = Integer.parseInt( comma < 0 ? line.substring( 1 ) : line.substring( 1, comma ) );
+                applyUserSnapshot( version, comma < 0 ? new ArrayList<>() : createList( line.substring( comma + 1 ) ) );
+                break;
+            }
+            case USER_JOINED:
+            case USER_LEFT: {
+                int comma = line.indexOf( COMMA );
+                applyUserChange( line.charAt( 0 ), Integer.parseInt( line.substring( 1, comma ) ), line.substring( comma + 1 ) );
+                break;
+            }
+            case MESSAGE:
+                addTextToTranscript( line.substring( 1 ) );
+                break;
+            case ROOM_MESSAGE: {
+                int seperatorPosition = line.indexOf( SEPERATOR );
+                addTextToTranscript( ROOM_PREFIX + line.substring( 1, seperatorPosition ) + " " + line.substring( seperatorPosition + 1 ) );
+                break;
+            }
+            case ROOM_JOIN:
+            case ROOM_LEAVE: {
+                String room = line.substring( 1 );
+                boolean accepted = line.charAt( 0 ) == ROOM_JOIN;
+                SwingUtilities.invokeLater( () -> roomJoined( room, accepted ) );
+                break;
+            }
+            case JOURNAL_MESSAGE: {
+                int seperatorPosition = line.indexOf( SEPERATOR );
+                journalMessage( Long.parseLong( line.substring( 1, seperatorPosition ) ), line.substring( seperatorPosition + 1 ) );
+                break;
+            }
+            case REPLAY:
+                replayEnd( Long.parseLong( line.substring( 1 ) ) );
+                break;
+            case RECONNECT:
+                scheduleReconnect( Integer.parseInt( line.substring( 1 ) ) );
+                break;
+            case PING:
+                sendPong();
+                break;
+            case COMPRESSED: {
+                int seperatorPosition = line.indexOf( SEPERATOR );
+                ByteBuffer deflated = ByteBuffer.wrap( Base64.getDecoder().decode( line.substring( seperatorPosition + 1 ) ) );
+                String lines = new String( Compression.inflate( deflated, Integer.parseInt( line.substring( 1, seperatorPosition ) ) ),
+                                           StandardCharsets.UTF_8 );
+                int start = 0;
+                for ( int end = lines.indexOf( '\n' ); end >= 0; end = lines.indexOf( '\n', start ) ) {
+                    processLine( lines.substring( start, end ) );
+                    start = end + 1;
+                }
+                break;
+            }
+            default:
+                processReply( line.charAt( 0 ) );
+                break;
+        }
+    }
+
+    /**
+     * Processes binary frames until the socket is closed
+     *
+     * @param dataInputStream reads the frames
+     *
+     * @throws IOException if reading fails
+     */
+    private void readFrames( DataInputStream dataInputStream ) throws IOException {
+        while ( ! socket.isClosed() ){
+            int frameLength;
+            try {
+                frameLength = BinaryCodec.readVarint( dataInputStream );
+            }
+            catch ( EOFException eofException ) {
+                break;
+            }
+            byte[] frame = new byte[ frameLength ];
+            dataInputStream.readFully( frame );
+            processFrame( frame );
+        }
+    }
+
+    /**
+     * Handles one binary frame from the server
+     *
+     * @param frame the tag and the body
+     *
+     * @throws IOException if the frame is malformed or asking for the roster fails
+     */
+    private void processFrame( byte[] frame ) throws IOException {
+        int frameLength = frame.length;
+        ByteBuffer body = ByteBuffer.wrap( frame, 1, frameLength - 1 );
+        switch ( (char) frame[0] ) {
+            case USER_LIST:
+                final ArrayList<String> nameList = new ArrayList<>();
+                Map<String,Integer> newClientIdMap = new HashMap<>();
+                while ( body.hasRemaining() ) {
+                    int clientId = BinaryCodec.getVarint( body );
+                    int nameLength = BinaryCodec.getVarint( body );
+                    String name = new String( frame, body.position(), nameLength, StandardCharsets.UTF_8 );
+                    body.position( body.position() + nameLength );
+                    nameList.add( name );
+                    newClientIdMap.put( name, clientId );
+                }
+                clientIdMap = newClientIdMap;
+                SwingUtilities.invokeLater( () ->  populateComboBoxes( nameList ));
+                break;
+            case USER_SNAPSHOT: {
+                int version = BinaryCodec.getVarint( body );
+                ArrayList<String> snapshotList = new ArrayList<>();
+                Map<String,Integer> snapshotIdMap = new HashMap<>();
+                while ( body.hasRemaining() ) {
+                    int clientId = BinaryCodec.getVarint( body );
+                    int nameLength = BinaryCodec.getVarint( body );
+                    String name = new String( frame, body.position(), nameLength, StandardCharsets.UTF_8 );
+                    body.position( body.position() + nameLength );
+                    snapshotList.add( name );
+                    snapshotIdMap.put( name, clientId );
+                }
+                clientIdMap = snapshotIdMap;
+                applyUserSnapshot( version, snapshotList );
+                break;
+            }
+            case USER_JOINED:
+            case USER_LEFT: {
+                int version = BinaryCodec.getVarint( body );
+                int clientId = BinaryCodec.getVarint( body );
+                int nameLength = BinaryCodec.getVarint( body );
+                String name = new String( frame, body.position(), nameLength, StandardCharsets.UTF_8 );
+                if ( applyUserChange( (char) frame[0], version, name ) ) {
+                    Map<String,Integer> changedIdMap = new HashMap<>( clientIdMap );
+                    if ( frame[0] == USER_JOINED ) {
+                        changedIdMap.put( name, clientId );
+                    }
+                    else {
+                        changedIdMap.remove( name );
+                    }
+                    clientIdMap = changedIdMap;
+                }
+                break;
+            }
+            case MESSAGE:
+                addTextToTranscript( new String( frame, 1, frameLength - 1, StandardCharsets.UTF_8 ) );
+                break;
+            case ROOM_MESSAGE: {
+                String room = BinaryCodec.getUtf8( body, BinaryCodec.getVarint( body ) );
+                addTextToTranscript( ROOM_PREFIX + room + " " + new String( frame, body.position(), frameLength - body.position(), StandardCharsets.UTF_8 ) );
+                break;
+            }
+            case ROOM_JOIN:
+            case ROOM_LEAVE: {
+                String room = new String( frame, 1, frameLength - 1, StandardCharsets.UTF_8 );
+                boolean accepted = frame[0] == ROOM_JOIN;
+                SwingUtilities.invokeLater( () -> roomJoined( room, accepted ) );
+                break;
+            }
+            case JOURNAL_MESSAGE: {
+                long sequence = BinaryCodec.getVarlong( body );
+                journalMessage( sequence, new String( frame, body.position(), frameLength - body.position(), StandardCharsets.UTF_8 ) );
+                break;
+            }
+            case REPLAY:
+                replayEnd( BinaryCodec.getVarlong( body ) );
+                break;
+            case RECONNECT:
+                scheduleReconnect( BinaryCodec.getVarint( body ) );
+                break;
+            case PING:
+                sendPong();
+                break;
+            case COMPRESSED: {
+                int inflatedLength = BinaryCodec.getVarint( body );
+                ByteBuffer frames = ByteBuffer.wrap( Compression.inflate( body, inflatedLength ) );
+                while ( frames.hasRemaining() ) {
+                    int innerLength = BinaryCodec.getVarint( frames );
+                    if ( innerLength < 1 || innerLength > frames.remaining() ) {
+                        throw new IOException( "bad compressed frame length " + innerLength );
+                    }
+                    byte[] inner = new byte[ innerLength ];
+                    frames.get( inner );
+                    processFrame( inner );
+                }
+                break;
+            }
+            default:
+                processReply( (char) frame[0] );
+                break;
+        }
+    }
+
+    /**
+     * Replaces the roster with a {@link Protocol#USER_SNAPSHOT}
+     *
+     * @param version the roster version
+     * @param nameList the users
+     */
+    private void applyUserSnapshot( int version,
+                                    ArrayList<String> nameList ){
+        rosterVersion = version;
+        SwingUtilities.invokeLater( () ->  populateComboBoxes( nameList ));
+    }
+
+    /**
+     * Applies a {@link Protocol#USER_JOINED} or {@link Protocol#USER_LEFT} that directly follows the roster shown.
+     * Older changes are ignored, after a gap the roster is asked for again.
+     *
+     * @param tag {@link Protocol#USER_JOINED} or {@link Protocol#USER_LEFT}
+     * @param version the roster version after the change
+     * @param name the user
+     *
+     * @return true if the change was applied
+     *
+     * @throws IOException if asking for the roster or answering a ping fails
+     */
+    private boolean applyUserChange( char tag,
+                                     int version,
+                                     String name ) throws IOException {
+        if ( rosterVersion < 0 || version <= rosterVersion ) {
+            return false;
+        }
+        if ( version != rosterVersion + 1 ) {
+            requestUserList();
+            return false;
+        }
+        rosterVersion = version;
+        if ( tag == USER_JOINED ) {
+            SwingUtilities.invokeLater( () -> addUser( name ) );
+        }
+        else {
+            SwingUtilities.invokeLater( () -> removeUser( name ) );
+        }
+        return true;
+    }
+
+    /**
+     * Answers a {@link Protocol#PING} with a {@link Protocol#PONG}
+     *
+     * @throws IOException if writing fails
+     */
+    private void sendPong() throws IOException {
+        if ( binary ) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( 0 ) );
+            BinaryCodec.putHeader( byteBuffer, Protocol.PONG, 0 );
+            writeFrame( byteBuffer );
+        }
+        else {
+            printWriter.println( Protocol.PONG );
+        }
+    }
+
+    /**
+     * Sends a lone {@link Protocol#USER_LIST} so the server sends a new {@link Protocol#USER_SNAPSHOT}
+     *
+     * @throws IOException if writing fails
+     */
+    private void requestUserList() throws IOException {
+        rosterVersion = -1;
+        if ( binary ) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( 0 ) );
+            BinaryCodec.putHeader( byteBuffer, Protocol.USER_LIST, 0 );
+            writeFrame( byteBuffer );
+        }
+        else {
+            printWriter.println( Protocol.USER_LIST );
+        }
+    }
+
+    /**
+     * Asks for the {@link Protocol#JOURNAL_MESSAGE}s missed since the last run, nothing on the first run
+     *
+     * @throws IOException if writing fails
+     */
+    private void requestReplay() throws IOException {
+        lastSequence = preferences.getLong( sequenceKey, 0 );
+        if ( lastSequence == 0 ) {
+            return;
+        }
+        replayed = new TreeMap<>();
+        if ( binary ) {
+            int bodyLength = BinaryCodec.varlongLength( lastSequence );
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, Protocol.REPLAY, bodyLength );
+            BinaryCodec.putVarlong( byteBuffer, lastSequence );
+            writeFrame( byteBuffer );
+        }
+        else {
+            printWriter.println( String.valueOf( Protocol.REPLAY ) + lastSequence );
+        }
+    }
+
+    /**
+     * Shows a {@link Protocol#JOURNAL_MESSAGE} that is newer than {@link #lastSequence},
+     * or keeps it for {@link #replayEnd(long)} while a replay is pending
+     *
+     * @param sequence the sequence number
+     * @param message the text
+     */
+    private void journalMessage( long sequence,
+                                 String message ){
+        if ( replayed != null ) {
+            replayed.put( sequence, message );
+            return;
+        }
+        if ( sequence <= lastSequence ) {
+            return;
+        }
+        lastSequence = sequence;
+        preferences.putLong( sequenceKey, sequence );
+        addTextToTranscript( message );
+    }
+
+    /**
+     * Shows the replayed messages and the ones that came in meanwhile in sequence, once each
+     *
+     * @param sequence the sequence number of the last message replayed
+     */
+    private void replayEnd( long sequence ){
+        if ( replayed == null ) {
+            return;
+        }
+        if ( sequence < lastSequence ) {
+            // the journal of the server started over
+            lastSequence = 0;
+        }
+        ArrayList<String> messages = new ArrayList<>( replayed.tailMap( lastSequence, false ).values() );
+        replayed = null;
+        lastSequence = sequence;
+        preferences.putLong( sequenceKey, sequence );
+        messages.forEach( this::addTextToTranscript );
+    }
+
+    /**
+     * Handles the one char replies that end the session
+     *
+     * @param reply the reply
+     */
+    private void processReply( char reply ){
+        switch ( reply ) {
+            case USER_EXISTS:
+                System.err.println( "The user " + clientName + " exists" );
+                System.exit( 1 );
+                break;
+            case TO_MANY_USERS:
+                System.err.println( "To many users are already logged on" );
+                System.exit( 1 );
+                break;
+        }
+    }
+
+    /**
+     * Reads one UTF-8 line byte by byte, so nothing after it is consumed
+     *
+     * @param inputStream the stream
+     *
+     * @return the line without its terminator or null at the end of the stream
+     *
+     * @throws IOException if reading fails
+     */
+    private static String readLine( InputStream inputStream ) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        int b;
+        while ( ( b = inputStream.read() ) != '\n' ) {
+            if ( b < 0 ) {
+                return byteArrayOutputStream.size() == 0 ? null : byteArrayOutputStream.toString( "UTF-8" );
+            }
+            byteArrayOutputStream.write( b );
+        }
+        return byteArrayOutputStream.toString( "UTF-8" );
     }
 
     /**
@@ -314,12 +1318,18 @@ public class ChatClient extends JFrame implements Runnable, Protocol
      * @param args
      */
     public static void main( String[] args ) {
-        if ( args.length != 3 ) {
-            System.err.println( "Usage ChatClient clientName host portNumber" );
+        boolean binary = false;
+        boolean tls = false;
+        for ( int i = 3; i < args.length; i++ ) {
+            binary |= args[i].equals( "binary" );
+            tls |= args[i].equals( "tls" );
+        }
+        if ( args.length < 3 || args.length > 5 || ( binary ? 1 : 0 ) + ( tls ? 1 : 0 ) != args.length - 3 ) {
+            System.err.println( "Usage ChatClient clientName host portNumber <binary> <tls>" );
             System.exit( 1 );
         }
         else {
-            ChatClient client = new ChatClient( args[0], args[ 1], Integer.parseInt( args[2] ) );
+            ChatClient client = new ChatClient( args[0], args[ 1], Integer.parseInt( args[2] ), binary, tls );
         }
     }
 }
@@ -0,0 +1,122 @@
+package org.jynergy.cme.client;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lines shown by {@link ChatClient}, at most the scrollback in a ring buffer, so the oldest drop out.
+ * <p>
+ * {@link #add(String)} may be called from any thread: the lines are collected and the event dispatch thread
+ * takes all that came meanwhile with one {@link SwingUtilities#invokeLater(Runnable)}, firing one event
+ * for the lines dropped and one for the lines added.
+ */
+public class Transcript extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The lines, the oldest at {@link #head}. Only the event dispatch thread uses it.
+     */
+    private final String[] lines;
+
+    /**
+     * Index of the oldest line in {@link #lines}
+     */
+    private int head;
+
+    /**
+     * Number of lines in {@link #lines}
+     */
+    private int size;
+
+    /**
+     * Lines added and not shown yet, guarded by {@link #lock}
+     */
+    private ArrayList<String> pending = new ArrayList<>();
+
+    /**
+     * True while a {@link #flush()} is queued on the event dispatch thread, guarded by {@link #lock}
+     */
+    private boolean flushQueued;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param scrollback most lines kept
+     */
+    public Transcript( int scrollback ){
+        lines = new String[ Math.max( 1, scrollback ) ];
+    }
+
+    /**
+     * Adds a line, shown with the next {@link #flush()}
+     *
+     * @param line the line
+     */
+    public void add( String line ){
+        boolean queue;
+        lock.lock();
+        try {
+            pending.add( line );
+            queue = !flushQueued;
+            flushQueued = true;
+        }
+        finally {
+            lock.unlock();
+        }
+        if ( queue ) {
+            SwingUtilities.invokeLater( this::flush );
+        }
+    }
+
+    /**
+     * Moves the pending lines into {@link #lines}, runs on the event dispatch thread
+     */
+    private void flush(){
+        ArrayList<String> added;
+        lock.lock();
+        try {
+            added = pending;
+            pending = new ArrayList<>();
+            flushQueued = false;
+        }
+        finally {
+            lock.unlock();
+        }
+        int skipped = Math.max( 0, added.size() - lines.length );
+        int count = added.size() - skipped;
+        int removed = Math.max( 0, size + count - lines.length );
+        for ( int i = skipped; i < added.size(); i++ ) {
+            if ( size == lines.length ) {
+                lines[head] = added.get( i );
+                head = ( head + 1 ) % lines.length;
+            }
+            else {
+                lines[( head + size ) % lines.length] = added.get( i );
+                size++;
+            }
+        }
+        if ( removed > 0 ) {
+            fireIntervalRemoved( this, 0, removed - 1 );
+        }
+        if ( count > 0 ) {
+            fireIntervalAdded( this, size - count, size - 1 );
+        }
+    }
+
+    @Override
+    public int getSize(){
+        return size;
+    }
+
+    @Override
+    public String getElementAt( int index ){
+        return lines[( head + index ) % lines.length];
+    }
+}
@@ -0,0 +1,158 @@
+package org.jynergy.cme.load;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.util.Arrays;
+
+/**
+ * A log linear histogram of latencies in the style of HdrHistogram, not thread safe.
+ * Values below {@link #SUB_BUCKETS} are counted exactly, larger ones in buckets of
+ * {@link #HALF_BUCKETS} per power of two, so every recorded value is off by less than 1/64
+ * at any magnitude and the whole histogram is a few thousand longs.
+ */
+public class LatencyHistogram {
+    /**
+     * Bits of a value that are kept exact
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /**
+     * Values counted exactly
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Buckets per power of two above {@link #SUB_BUCKETS}
+     */
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+
+    /**
+     * Counts per bucket
+     */
+    private final long[] counts = new long[ SUB_BUCKETS + ( 64 - SUB_BUCKET_BITS ) * HALF_BUCKETS ];
+
+    /**
+     * Number of values recorded
+     */
+    private long totalCount;
+
+    /**
+     * Sum of the values recorded
+     */
+    private double sum;
+
+    /**
+     * Largest value recorded
+     */
+    private long max;
+
+    /**
+     * Records a value
+     *
+     * @param value a non negative value, negative ones count as 0
+     */
+    public void record( long value ){
+        if ( value < 0 ) {
+            value = 0;
+        }
+        counts[index( value )]++;
+        totalCount++;
+        sum += value;
+        max = Math.max( max, value );
+    }
+
+    /**
+     * Adds all values of another histogram
+     *
+     * @param other the other histogram
+     */
+    public void add( LatencyHistogram other ){
+        for ( int i = 0; i < counts.length; i++ ) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max( max, other.max );
+    }
+
+    /**
+     * Forgets all values
+     */
+    public void reset(){
+        Arrays.fill( counts, 0 );
+        totalCount = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     *
+     * @return the largest value of the bucket holding the value at the percentile, 0 if empty
+     */
+    public long getValueAtPercentile( double percentile ){
+        if ( totalCount == 0 ) {
+            return 0;
+        }
+        long target = Math.max( 1, (long) Math.ceil( percentile / 100 * totalCount ) );
+        long count = 0;
+        for ( int i = 0; i < counts.length; i++ ) {
+            count += counts[i];
+            if ( count >= target ) {
+                return Math.min( highestValue( i ), max );
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getTotalCount(){
+        return totalCount;
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if empty
+     */
+    public double getMean(){
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long getMax(){
+        return max;
+    }
+
+    /**
+     * @param value a non negative value
+     *
+     * @return index of its bucket in {@link #counts}
+     */
+    private static int index( long value ){
+        if ( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros( value ) - ( SUB_BUCKET_BITS - 1 );
+        return SUB_BUCKETS + ( shift - 1 ) * HALF_BUCKETS + (int) ( ( value >>> shift ) - HALF_BUCKETS );
+    }
+
+    /**
+     * @param index index of a bucket
+     *
+     * @return the largest value counted in it
+     */
+    private static long highestValue( int index ){
+        if ( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int shift = ( index - SUB_BUCKETS ) / HALF_BUCKETS + 1;
+        long mantissa = ( index - SUB_BUCKETS ) % HALF_BUCKETS + HALF_BUCKETS;
+        return ( ( mantissa + 1 ) << shift ) - 1;
+    }
+}
@@ -0,0 +1,612 @@
+package org.jynergy.cme.load;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.BinaryCodec;
+import org.jynergy.cme.protocol.Protocol;
+import org.jynergy.cme.server.BinaryFramer;
+import org.jynergy.cme.server.FrameDecoder;
+import org.jynergy.cme.server.LineFramer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless load generator for a {@link org.jynergy.cme.server.ChatServer}.
+ * <p>
+ * Logs on many simulated users from one selector thread, has them send directed and {@link #ALL}
+ * messages at a fixed total rate and measures the end to end latency of every delivery.
+ * Each message carries the time it was meant to be sent, not the time it was sent, so a stalled
+ * server shows up in the latencies instead of silently lowering the rate.
+ */
+public class LoadGenerator implements Protocol {
+    /**
+     * Size of the read buffer shared by all users
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Names of the users are this and their index
+     */
+    private static final String NAME_PREFIX = "load";
+
+    /**
+     * Separates the sender from the intended send time in a message text
+     */
+    private static final String STAMP = " @";
+
+    /**
+     * How long users get to log on
+     */
+    private static final long LOGON_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos( 30 );
+
+    /**
+     * How long messages still in flight are waited for at the end
+     */
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos( 2 );
+
+    private final String serverName;
+
+    private final int serverPort;
+
+    /**
+     * The simulated users
+     */
+    private final SimulatedUser[] simulatedUsers;
+
+    /**
+     * Messages sent per second by all users together
+     */
+    private final int messagesPerSecond;
+
+    /**
+     * How long the load runs
+     */
+    private final int seconds;
+
+    /**
+     * Set to use {@link BinaryCodec} frames
+     */
+    private final boolean binary;
+
+    /**
+     * Percentage of messages sent to {@link #ALL}
+     */
+    private final int allPercent;
+
+    /**
+     * Selector for all users
+     */
+    private final Selector selector;
+
+    /**
+     * Read buffer shared by all users, each decoder keeps only the bytes of its unfinished message
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect( READ_BUFFER_SIZE );
+
+    /**
+     * Ids of the users by name, from the roster seen by the first user, needed for binary messages
+     */
+    private final Map<String,Integer> clientIds = new HashMap<>();
+
+    private final Random random = new Random();
+
+    /**
+     * Latencies in microseconds since the last report
+     */
+    private final LatencyHistogram intervalHistogram = new LatencyHistogram();
+
+    /**
+     * Latencies in microseconds of the whole run
+     */
+    private final LatencyHistogram totalHistogram = new LatencyHistogram();
+
+    /**
+     * Users logged on
+     */
+    private int loggedOn;
+
+    /**
+     * Users turned away or disconnected
+     */
+    private int failed;
+
+    /**
+     * Messages sent since the last report
+     */
+    private long intervalSent;
+
+    /**
+     * Messages sent in the whole run
+     */
+    private long totalSent;
+
+    /**
+     * Set while latencies are recorded
+     */
+    private boolean measuring;
+
+    /**
+     * @param serverName name to connect to
+     * @param serverPort port to connect to
+     * @param users number of simulated users
+     * @param messagesPerSecond {@link #messagesPerSecond}
+     * @param seconds {@link #seconds}
+     * @param binary {@link #binary}
+     * @param allPercent {@link #allPercent}
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public LoadGenerator( String serverName,
+                          int serverPort,
+                          int users,
+                          int messagesPerSecond,
+                          int seconds,
+                          boolean binary,
+                          int allPercent ) throws IOException {
+        this.serverName = serverName;
+        this.serverPort = serverPort;
+        this.simulatedUsers = new SimulatedUser[ users ];
+        this.messagesPerSecond = messagesPerSecond;
+        this.seconds = seconds;
+        this.binary = binary;
+        this.allPercent = allPercent;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Logs the users on, runs the load and prints the results
+     *
+     * @throws IOException if the selector fails
+     */
+    public void run() throws IOException {
+        InetSocketAddress address = new InetSocketAddress( serverName, serverPort );
+        for ( int i = 0; i < simulatedUsers.length; i++ ) {
+            simulatedUsers[i] = new SimulatedUser( i );
+            simulatedUsers[i].connect( address );
+        }
+        long deadline = System.nanoTime() + LOGON_TIMEOUT_NANOS;
+        while ( loggedOn + failed < simulatedUsers.length && System.nanoTime() < deadline ) {
+            select( 10 );
+        }
+        System.out.println( "LoadGenerator: " + loggedOn + " users logged on, " + failed + " failed" );
+        if ( failed > 0 ) {
+            System.out.println( "LoadGenerator: raise -Dcme.maxConnections on the server for more users" );
+        }
+        if ( loggedOn < 2 ) {
+            close();
+            return;
+        }
+
+        measuring = true;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos( seconds );
+        long nextReport = start + TimeUnit.SECONDS.toNanos( 1 );
+        while ( true ) {
+            long now = System.nanoTime();
+            if ( now >= end ) {
+                break;
+            }
+            long due = ( now - start ) * messagesPerSecond / TimeUnit.SECONDS.toNanos( 1 );
+            while ( totalSent < due ) {
+                sendMessage( start + totalSent * TimeUnit.SECONDS.toNanos( 1 ) / messagesPerSecond );
+            }
+            if ( now >= nextReport ) {
+                report( "LoadGenerator:", intervalSent, intervalHistogram );
+                totalHistogram.add( intervalHistogram );
+                intervalHistogram.reset();
+                intervalSent = 0;
+                nextReport += TimeUnit.SECONDS.toNanos( 1 );
+            }
+            select( 1 );
+        }
+        long drainEnd = System.nanoTime() + DRAIN_NANOS;
+        while ( System.nanoTime() < drainEnd ) {
+            select( 10 );
+        }
+        totalHistogram.add( intervalHistogram );
+        close();
+        System.out.println( "LoadGenerator: total of " + seconds + "s" );
+        report( "LoadGenerator:", totalSent / Math.max( 1, seconds ), totalHistogram );
+        System.out.println( "LoadGenerator: received " + totalHistogram.getTotalCount() / Math.max( 1, seconds ) +
+                            "/s mean " + Math.round( totalHistogram.getMean() ) + "us" );
+    }
+
+    /**
+     * Prints one line of results
+     */
+    private static void report( String prefix,
+                                long sent,
+                                LatencyHistogram histogram ){
+        System.out.println( prefix +
+                            " sent " + sent + "/s" +
+                            " received " + histogram.getTotalCount() +
+                            " p50 " + histogram.getValueAtPercentile( 50 ) + "us" +
+                            " p99 " + histogram.getValueAtPercentile( 99 ) + "us" +
+                            " p999 " + histogram.getValueAtPercentile( 99.9 ) + "us" +
+                            " max " + histogram.getMax() + "us" );
+    }
+
+    /**
+     * Sends one message from a random user, to {@link #ALL} or to another random user
+     *
+     * @param intendedNanos when the message was meant to be sent
+     */
+    private void sendMessage( long intendedNanos ){
+        totalSent++;
+        intervalSent++;
+        SimulatedUser sender = randomUser();
+        if ( sender == null ) {
+            return;
+        }
+        String whoTo = ALL;
+        if ( random.nextInt( 100 ) >= allPercent ) {
+            SimulatedUser recipient = randomUser();
+            if ( recipient == null ) {
+                return;
+            }
+            whoTo = recipient.name;
+        }
+        String text = sender.name + STAMP + intendedNanos;
+        ByteBuffer byteBuffer;
+        if ( binary ) {
+            int recipientId = ALL_ID;
+            if ( !ALL.equals( whoTo ) ) {
+                Integer clientId = clientIds.get( whoTo );
+                if ( clientId == null ) {
+                    return;
+                }
+                recipientId = clientId;
+            }
+            byte[] textBytes = text.getBytes( StandardCharsets.UTF_8 );
+            int bodyLength = BinaryCodec.varintLength( recipientId ) + textBytes.length;
+            byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, MESSAGE, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, recipientId );
+            byteBuffer.put( textBytes );
+            byteBuffer.flip();
+        }
+        else {
+            byteBuffer = ByteBuffer.wrap( ( MESSAGE + whoTo + SEPERATOR + text + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+        sender.write( byteBuffer );
+    }
+
+    /**
+     * @return a random logged on user, null if none was found
+     */
+    private SimulatedUser randomUser(){
+        for ( int tries = 0; tries < 16; tries++ ) {
+            SimulatedUser simulatedUser = simulatedUsers[random.nextInt( simulatedUsers.length )];
+            if ( simulatedUser.loggedOn ) {
+                return simulatedUser;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the latency of a received message text
+     *
+     * @param text the text with the intended send time after {@link #STAMP}
+     */
+    private void received( String text ){
+        if ( !measuring ) {
+            return;
+        }
+        int stamp = text.lastIndexOf( STAMP );
+        if ( stamp < 0 ) {
+            return;
+        }
+        try {
+            long intendedNanos = Long.parseLong( text.substring( stamp + STAMP.length() ) );
+            intervalHistogram.record( TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - intendedNanos ) );
+        }
+        catch ( NumberFormatException numberFormatException ) {
+            // not one of ours
+        }
+    }
+
+    /**
+     * Services ready channels
+     *
+     * @param timeoutMillis longest wait
+     *
+     * @throws IOException if the selector fails
+     */
+    private void select( long timeoutMillis ) throws IOException {
+        selector.select( timeoutMillis );
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while ( iterator.hasNext() ) {
+            SelectionKey selectionKey = iterator.next();
+            iterator.remove();
+            SimulatedUser simulatedUser = (SimulatedUser) selectionKey.attachment();
+            try {
+                if ( selectionKey.isConnectable() ) {
+                    simulatedUser.onConnectable();
+                }
+                if ( selectionKey.isValid() && selectionKey.isWritable() ) {
+                    simulatedUser.onWritable();
+                }
+                if ( selectionKey.isValid() && selectionKey.isReadable() ) {
+                    simulatedUser.onReadable();
+                }
+            }
+            catch ( IOException ioException ) {
+                simulatedUser.fail();
+            }
+        }
+    }
+
+    /**
+     * Closes all users and the selector
+     */
+    private void close(){
+        for ( SimulatedUser simulatedUser : simulatedUsers ) {
+            if ( simulatedUser != null ) {
+                simulatedUser.close();
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+        }
+    }
+
+    /**
+     * One simulated user and its connection
+     */
+    private class SimulatedUser implements FrameDecoder.Handler {
+        /**
+         * Index in {@link #simulatedUsers}
+         */
+        private final int index;
+
+        /**
+         * The user name
+         */
+        private final String name;
+
+        /**
+         * Bytes not yet taken by the socket
+         */
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+        private SocketChannel socketChannel;
+
+        private SelectionKey selectionKey;
+
+        /**
+         * Cuts the incoming bytes into messages, lines until the {@link #HELLO} reply
+         */
+        private FrameDecoder frameDecoder = new LineFramer();
+
+        /**
+         * Set once the {@link #HELLO} reply was read
+         */
+        private boolean helloed;
+
+        /**
+         * Set once the first roster arrived
+         */
+        private boolean loggedOn;
+
+        /**
+         * Set once closed
+         */
+        private boolean closed;
+
+        private SimulatedUser( int index ){
+            this.index = index;
+            this.name = NAME_PREFIX + index;
+        }
+
+        /**
+         * Starts connecting
+         */
+        private void connect( InetSocketAddress address ) throws IOException {
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking( false );
+            socketChannel.socket().setTcpNoDelay( true );
+            selectionKey = socketChannel.register( selector, SelectionKey.OP_CONNECT, this );
+            if ( socketChannel.connect( address ) ) {
+                onConnectable();
+            }
+        }
+
+        /**
+         * Finishes connecting and sends the name with {@link #HELLO}
+         */
+        private void onConnectable() throws IOException {
+            if ( !socketChannel.finishConnect() ) {
+                return;
+            }
+            selectionKey.interestOps( SelectionKey.OP_READ );
+            String features = binary ? "" + FEATURE_USER_DELTAS + FEATURE_BINARY : "" + FEATURE_USER_DELTAS;
+            write( ByteBuffer.wrap( ( HELLO + features + SEPERATOR + name + "\n" ).getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+
+        /**
+         * Writes what the socket takes and keeps the rest for {@link #onWritable()}
+         */
+        private void write( ByteBuffer byteBuffer ){
+            if ( closed ) {
+                return;
+            }
+            try {
+                if ( pending.isEmpty() ) {
+                    socketChannel.write( byteBuffer );
+                    if ( !byteBuffer.hasRemaining() ) {
+                        return;
+                    }
+                    selectionKey.interestOps( selectionKey.interestOps() | SelectionKey.OP_WRITE );
+                }
+                pending.add( byteBuffer );
+            }
+            catch ( IOException ioException ) {
+                fail();
+            }
+        }
+
+        /**
+         * Writes {@link #pending}
+         */
+        private void onWritable() throws IOException {
+            while ( !pending.isEmpty() ) {
+                ByteBuffer byteBuffer = pending.peek();
+                socketChannel.write( byteBuffer );
+                if ( byteBuffer.hasRemaining() ) {
+                    return;
+                }
+                pending.poll();
+            }
+            selectionKey.interestOps( SelectionKey.OP_READ );
+        }
+
+        /**
+         * Reads into the shared buffer and decodes all whole messages
+         */
+        private void onReadable() throws IOException {
+            readBuffer.clear();
+            int count = socketChannel.read( readBuffer );
+            if ( count < 0 ) {
+                fail();
+                return;
+            }
+            readBuffer.flip();
+            while ( !closed && frameDecoder.decode( readBuffer, this ) ) {
+            }
+        }
+
+        public void onLine( String line ){
+            if ( !helloed ) {
+                helloed = true;
+                if ( line.length() > 0 && line.charAt( 0 ) == HELLO ) {
+                    if ( line.indexOf( FEATURE_BINARY ) > 0 ) {
+                        frameDecoder = new BinaryFramer();
+                    }
+                    return;
+                }
+            }
+            if ( line.isEmpty() ) {
+                return;
+            }
+            char tag = line.charAt( 0 );
+            if ( tag == MESSAGE ) {
+                received( line );
+            }
+            else if ( tag == USER_SNAPSHOT || tag == USER_LIST ) {
+                loggedOn();
+            }
+            else if ( tag == TO_MANY_USERS || tag == USER_EXISTS ) {
+                fail();
+            }
+        }
+
+        public void onFrame( char tag,
+                             ByteBuffer body ) throws IOException {
+            if ( tag == MESSAGE ) {
+                received( BinaryCodec.getUtf8( body, body.remaining() ) );
+            }
+            else if ( tag == USER_SNAPSHOT ) {
+                if ( index == 0 ) {
+                    BinaryCodec.getVarint( body );
+                    while ( body.hasRemaining() ) {
+                        int clientId = BinaryCodec.getVarint( body );
+                        clientIds.put( BinaryCodec.getUtf8( body, BinaryCodec.getVarint( body ) ), clientId );
+                    }
+                }
+                loggedOn();
+            }
+            else if ( ( tag == USER_JOINED || tag == USER_LEFT ) && index == 0 ) {
+                BinaryCodec.getVarint( body );
+                int clientId = BinaryCodec.getVarint( body );
+                String clientName = BinaryCodec.getUtf8( body, BinaryCodec.getVarint( body ) );
+                if ( tag == USER_JOINED ) {
+                    clientIds.put( clientName, clientId );
+                }
+                else {
+                    clientIds.remove( clientName );
+                }
+            }
+            else if ( tag == TO_MANY_USERS || tag == USER_EXISTS ) {
+                fail();
+            }
+        }
+
+        private void loggedOn(){
+            if ( !loggedOn ) {
+                loggedOn = true;
+                LoadGenerator.this.loggedOn++;
+            }
+        }
+
+        /**
+         * Closes the connection and counts the user as failed
+         */
+        private void fail(){
+            if ( closed ) {
+                return;
+            }
+            if ( loggedOn ) {
+                loggedOn = false;
+                LoadGenerator.this.loggedOn--;
+            }
+            failed++;
+            close();
+        }
+
+        private void close(){
+            closed = true;
+            pending.clear();
+            try {
+                socketChannel.close();
+            }
+            catch ( IOException ioException ) {
+                ioException.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs the load generator
+     *
+     * @param args host port users messagesPerSecond seconds [text|binary] [allPercent]
+     */
+    public static void main( String[] args ) {
+        if ( args.length < 5 || args.length > 7 ) {
+            System.err.println( "Usage LoadGenerator host port users messagesPerSecond seconds <text|binary> <allPercent>" );
+            System.exit( 1 );
+        }
+        try {
+            LoadGenerator loadGenerator = new LoadGenerator( args[0],
+                                                             Integer.parseInt( args[1] ),
+                                                             Integer.parseInt( args[2] ),
+                                                             Integer.parseInt( args[3] ),
+                                                             Integer.parseInt( args[4] ),
+                                                             args.length > 5 && args[5].equals( "binary" ),
+                                                             args.length > 6 ? Integer.parseInt( args[6] ) : 1 );
+            loadGenerator.run();
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+            System.exit( 1 );
+        }
+    }
+}
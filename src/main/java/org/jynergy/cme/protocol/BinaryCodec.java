@@ -0,0 +1,220 @@
+package org.jynergy.cme.protocol;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary framing negotiated with {@link Protocol#FEATURE_BINARY}.
+ * <p>
+ * Every frame is a varint length followed by that many bytes: a tag byte, one of the {@link Protocol}
+ * chars, and the body. Varints are unsigned LEB128, seven bits per byte, low bits first.
+ * <UL>
+ *     <LI>{@link Protocol#MESSAGE} from a client: varint recipient id ({@link Protocol#ALL_ID} for all), UTF-8 text</LI>
+ *     <LI>{@link Protocol#MESSAGE} from the server: UTF-8 text</LI>
+ *     <LI>{@link Protocol#MULTICAST}: varint number of recipients, a varint id for each, UTF-8 text</LI>
+ *     <LI>{@link Protocol#SUBSCRIBE}: varint number of senders, a varint id for each</LI>
+ *     <LI>{@link Protocol#USER_LIST}: for every user a varint id, a varint name length and the UTF-8 name</LI>
+ *     <LI>{@link Protocol#USER_SNAPSHOT}: varint roster version, then users as in {@link Protocol#USER_LIST}</LI>
+ *     <LI>{@link Protocol#USER_JOINED}, {@link Protocol#USER_LEFT}: varint roster version, then one user as in {@link Protocol#USER_LIST}</LI>
+ *     <LI>{@link Protocol#USER_LIST} from a client: no body, asks for a {@link Protocol#USER_SNAPSHOT}</LI>
+ *     <LI>{@link Protocol#ROOM_JOIN}, {@link Protocol#ROOM_LEAVE}: UTF-8 room name</LI>
+ *     <LI>{@link Protocol#ROOM_MESSAGE}: varint room name length, UTF-8 room name, UTF-8 text</LI>
+ *     <LI>{@link Protocol#JOURNAL_MESSAGE}: varint sequence number, UTF-8 text</LI>
+ *     <LI>{@link Protocol#REPLAY}: varint sequence number</LI>
+ *     <LI>{@link Protocol#RECONNECT}: varint millis to wait</LI>
+ *     <LI>{@link Protocol#COMPRESSED}: varint inflated length, the deflated frames, see {@link Compression}</LI>
+ *     <LI>{@link Protocol#TO_MANY_USERS}, {@link Protocol#USER_EXISTS}, {@link Protocol#PING}, {@link Protocol#PONG}: no body</LI>
+ * </UL>
+ * Text may contain line breaks and {@link Protocol#SEPERATOR}, unlike the text protocol.
+ */
+public final class BinaryCodec {
+    /**
+     * Longest frame accepted, tag and body
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private BinaryCodec(){
+    }
+
+    /**
+     * @param value a non negative int
+     *
+     * @return the number of bytes of its varint
+     */
+    public static int varintLength( int value ){
+        int length = 1;
+        while ( ( value >>>= 7 ) != 0 ) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @param value a non negative long
+     *
+     * @return the number of bytes of its varint
+     */
+    public static int varlongLength( long value ){
+        int length = 1;
+        while ( ( value >>>= 7 ) != 0 ) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Puts a varint
+     *
+     * @param byteBuffer the buffer
+     * @param value a non negative int
+     */
+    public static void putVarint( ByteBuffer byteBuffer,
+                                  int value ){
+        while ( ( value & ~0x7F ) != 0 ) {
+            byteBuffer.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        byteBuffer.put( (byte) value );
+    }
+
+    /**
+     * Puts a long varint
+     *
+     * @param byteBuffer the buffer
+     * @param value a non negative long
+     */
+    public static void putVarlong( ByteBuffer byteBuffer,
+                                   long value ){
+        while ( ( value & ~0x7FL ) != 0 ) {
+            byteBuffer.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        byteBuffer.put( (byte) value );
+    }
+
+    /**
+     * Gets a varint that is known to be complete
+     *
+     * @param byteBuffer the buffer, positioned at the varint
+     *
+     * @return the value
+     *
+     * @throws IOException if the varint is malformed or runs past the limit
+     */
+    public static int getVarint( ByteBuffer byteBuffer ) throws IOException {
+        int value = 0;
+        for ( int shift = 0; shift < 35; shift += 7 ) {
+            if ( !byteBuffer.hasRemaining() ) {
+                throw new IOException( "truncated varint" );
+            }
+            byte b = byteBuffer.get();
+            value |= ( b & 0x7F ) << shift;
+            if ( b >= 0 ) {
+                return value;
+            }
+        }
+        throw new IOException( "malformed varint" );
+    }
+
+    /**
+     * Gets a long varint that is known to be complete
+     *
+     * @param byteBuffer the buffer, positioned at the varint
+     *
+     * @return the value
+     *
+     * @throws IOException if the varint is malformed or runs past the limit
+     */
+    public static long getVarlong( ByteBuffer byteBuffer ) throws IOException {
+        long value = 0;
+        for ( int shift = 0; shift < 63; shift += 7 ) {
+            if ( !byteBuffer.hasRemaining() ) {
+                throw new IOException( "truncated varint" );
+            }
+            byte b = byteBuffer.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            if ( b >= 0 ) {
+                return value;
+            }
+        }
+        throw new IOException( "malformed varint" );
+    }
+
+    /**
+     * Gets UTF-8 text
+     *
+     * @param byteBuffer the buffer, positioned at the text and left after it
+     * @param length number of bytes of the text
+     *
+     * @return the text
+     *
+     * @throws IOException if the length is negative, over {@link #MAX_FRAME_LENGTH} or runs past the limit
+     */
+    public static String getUtf8( ByteBuffer byteBuffer,
+                                  int length ) throws IOException {
+        if ( length < 0 || length > MAX_FRAME_LENGTH ) {
+            throw new IOException( "bad text length " + length );
+        }
+        if ( length > byteBuffer.remaining() ) {
+            throw new IOException( "truncated text" );
+        }
+        byte[] bytes = new byte[ length ];
+        byteBuffer.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Reads a varint
+     *
+     * @param inputStream the stream
+     *
+     * @return the value
+     *
+     * @throws IOException if the stream ends or the varint is malformed
+     */
+    public static int readVarint( InputStream inputStream ) throws IOException {
+        int value = 0;
+        for ( int shift = 0; shift < 35; shift += 7 ) {
+            int b = inputStream.read();
+            if ( b < 0 ) {
+                throw new EOFException();
+            }
+            value |= ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 ) {
+                return value;
+            }
+        }
+        throw new IOException( "malformed varint" );
+    }
+
+    /**
+     * Puts a frame header
+     *
+     * @param byteBuffer the buffer
+     * @param tag the tag
+     * @param bodyLength number of body bytes that will follow
+     */
+    public static void putHeader( ByteBuffer byteBuffer,
+                                  char tag,
+                                  int bodyLength ){
+        putVarint( byteBuffer, bodyLength + 1 );
+        byteBuffer.put( (byte) tag );
+    }
+
+    /**
+     * @param bodyLength number of body bytes
+     *
+     * @return the number of bytes of a whole frame
+     */
+    public static int frameLength( int bodyLength ){
+        return varintLength( bodyLength + 1 ) + 1 + bodyLength;
+    }
+}
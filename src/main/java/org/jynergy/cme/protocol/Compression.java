@@ -0,0 +1,136 @@
+package org.jynergy.cme.protocol;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression negotiated with {@link Protocol#FEATURE_COMPRESSION}.
+ * <p>
+ * A {@link Protocol#COMPRESSED} message holds one or more whole messages of the connection's format,
+ * deflated on their own with the preset {@link #DICTIONARY}. Every message is compressed without any state
+ * of the connection, so the server compresses a message sent to many clients once for all of them.
+ * <UL>
+ *     <LI>text: {@link Protocol#COMPRESSED}, the inflated length, {@link Protocol#SEPERATOR}
+ *     and the deflated bytes in Base64 on one line</LI>
+ *     <LI>binary: a {@link BinaryCodec} frame with a varint inflated length and the deflated bytes as body</LI>
+ * </UL>
+ */
+public final class Compression {
+    /**
+     * Longest inflated content, longer messages are sent as they are
+     */
+    public static final int MAX_INFLATED_LENGTH = 1024 * 1024;
+
+    /**
+     * Preset dictionary of both sides, the most frequent strings last where deflate finds them cheapest
+     */
+    private static final byte[] DICTIONARY = ( "please would could should about there their what when where which " +
+                                               "with have this that from your just know like good thanks hello " +
+                                               "the and you for are not but all " +
+                                               "All : " ).getBytes( StandardCharsets.UTF_8 );
+
+    /**
+     * Idle deflaters, reset for every message. Bounded by the cores and not per thread, every deflater holds
+     * a native zlib stream and a server with a thread per connection sends from as many threads.
+     * A deflater that finds the pool full is ended at once.
+     */
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS =
+        new ArrayBlockingQueue<>( 2 * Runtime.getRuntime().availableProcessors() );
+
+    private Compression(){
+    }
+
+    /**
+     * Deflates bytes with the {@link #DICTIONARY}
+     *
+     * @param byteBuffer the bytes between position and limit, left unchanged
+     *
+     * @return the deflated bytes
+     */
+    public static byte[] deflate( ByteBuffer byteBuffer ){
+        byte[] input = new byte[ byteBuffer.remaining() ];
+        byteBuffer.duplicate().get( input );
+        Deflater deflater = DEFLATERS.poll();
+        if ( deflater == null ) {
+            deflater = new Deflater();
+        }
+        byte[] output = new byte[ input.length / 2 + 64 ];
+        int length = 0;
+        try {
+            deflater.setDictionary( DICTIONARY );
+            deflater.setInput( input );
+            deflater.finish();
+            while ( !deflater.finished() ) {
+                if ( length == output.length ) {
+                    byte[] larger = new byte[ output.length * 2 ];
+                    System.arraycopy( output, 0, larger, 0, length );
+                    output = larger;
+                }
+                length += deflater.deflate( output, length, output.length - length );
+            }
+        }
+        finally {
+            deflater.reset();
+            if ( !DEFLATERS.offer( deflater ) ) {
+                deflater.end();
+            }
+        }
+        byte[] deflated = new byte[ length ];
+        System.arraycopy( output, 0, deflated, 0, length );
+        return deflated;
+    }
+
+    /**
+     * Inflates bytes deflated by {@link #deflate(ByteBuffer)}
+     *
+     * @param deflated the deflated bytes between position and limit
+     * @param inflatedLength the length they inflate to
+     *
+     * @return the inflated bytes
+     *
+     * @throws IOException if the bytes are malformed or do not inflate to inflatedLength
+     */
+    public static byte[] inflate( ByteBuffer deflated,
+                                  int inflatedLength ) throws IOException {
+        if ( inflatedLength < 0 || inflatedLength > MAX_INFLATED_LENGTH ) {
+            throw new IOException( "bad inflated length " + inflatedLength );
+        }
+        byte[] input = new byte[ deflated.remaining() ];
+        deflated.get( input );
+        byte[] output = new byte[ inflatedLength ];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput( input );
+            int length = 0;
+            while ( length < inflatedLength ) {
+                int count = inflater.inflate( output, length, inflatedLength - length );
+                if ( count == 0 ) {
+                    if ( inflater.needsDictionary() ) {
+                        inflater.setDictionary( DICTIONARY );
+                    }
+                    else if ( inflater.finished() || inflater.needsInput() ) {
+                        throw new IOException( "compressed message shorter than " + inflatedLength );
+                    }
+                }
+                length += count;
+            }
+            return output;
+        }
+        catch ( DataFormatException dataFormatException ) {
+            throw new IOException( "malformed compressed message", dataFormatException );
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
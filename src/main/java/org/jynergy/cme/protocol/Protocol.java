@@ -29,6 +29,88 @@ public interface Protocol {
      */
     public static char MESSAGE = 'M';
 
+    /**
+     * Beginning char for the full user list sent to a client with {@link #FEATURE_USER_DELTAS} when it logs on,
+     * followed by the roster version and the names, each after a {@link #COMMA}
+     */
+    public static char USER_SNAPSHOT = 'S';
+
+    /**
+     * Beginning char for a user that logged on, followed by the roster version, {@link #COMMA} and the name
+     */
+    public static char USER_JOINED = 'J';
+
+    /**
+     * Beginning char for a user that logged off, followed by the roster version, {@link #COMMA} and the name
+     */
+    public static char USER_LEFT = 'X';
+
+    /**
+     * Beginning char for joining a room, sent by a client and followed by the room name.
+     * The server answers with the same line if the client is now a member, with a {@link #ROOM_LEAVE} if not.
+     */
+    public static char ROOM_JOIN = 'R';
+
+    /**
+     * Beginning char for leaving a room, sent by a client and followed by the room name.
+     * Sent back by the server when it refused a {@link #ROOM_JOIN}.
+     */
+    public static char ROOM_LEAVE = 'E';
+
+    /**
+     * Beginning char for a message to the members of a room, sent by a member and followed by
+     * the room name, {@link #SEPERATOR} and the text. Members get the same line, so they can tell it from a {@link #MESSAGE}.
+     */
+    public static char ROOM_MESSAGE = 'G';
+
+    /**
+     * Beginning char for a message to several users, sent by a client and followed by the names separated by
+     * {@link #COMMA}, {@link #SEPERATOR} and the text. Every recipient gets it once, as a {@link #MESSAGE}.
+     */
+    public static char MULTICAST = 'C';
+
+    /**
+     * Beginning char for the senders a client wants messages to {@link #ALL} from, sent by a client with
+     * {@link #FEATURE_SUBSCRIPTIONS} and followed by the names separated by {@link #COMMA}; none for all senders again
+     */
+    public static char SUBSCRIBE = 'F';
+
+    /**
+     * Beginning char for the notice that the server shuts down, followed by the millis the client waits before
+     * it connects again. It is queued after everything else for the client, so all before it has been received.
+     */
+    public static char RECONNECT = 'Q';
+
+    /**
+     * Beginning char for a message to {@link #ALL} kept in the journal, sent to a client with {@link #FEATURE_JOURNAL}
+     * instead of a {@link #MESSAGE} and followed by the sequence number, {@link #SEPERATOR} and the text
+     */
+    public static char JOURNAL_MESSAGE = 'N';
+
+    /**
+     * Beginning char for asking for the {@link #JOURNAL_MESSAGE}s after a sequence number, sent by a client and
+     * followed by the sequence number. The server sends them and then a {@link #REPLAY} with the
+     * sequence number of the last one, later messages are live.
+     */
+    public static char REPLAY = 'P';
+
+    /**
+     * Beginning char for one or more messages deflated as one, sent to a client with {@link #FEATURE_COMPRESSION},
+     * see {@link Compression}
+     */
+    public static char COMPRESSED = 'Z';
+
+    /**
+     * A lone char asking the other side for a {@link #PONG}, sent by the server to a client with
+     * {@link #FEATURE_HEARTBEAT} that has been silent for a while. A client may send it too.
+     */
+    public static char PING = 'H';
+
+    /**
+     * A lone char answering a {@link #PING}
+     */
+    public static char PONG = 'O';
+
     /**
      * Used in {@link #MESSAGE} to seperate the to user(s) from the from user
      */
@@ -43,4 +125,49 @@ public interface Protocol {
      * Used to designate All users
      */
     public static String ALL = "All";
+
+    /**
+     * Starts the name line of a client asking for features: {@link #HELLO}, the feature chars,
+     * {@link #SEPERATOR} and the client name. The server answers with {@link #HELLO} and the
+     * features it accepted before anything else, clients that send a plain name get none.
+     */
+    public static char HELLO = '\u0001';
+
+    /**
+     * Feature: after the handshake both sides switch to {@link BinaryCodec} frames
+     */
+    public static char FEATURE_BINARY = 'b';
+
+    /**
+     * Feature: {@link #USER_SNAPSHOT} on logon and then {@link #USER_JOINED} and {@link #USER_LEFT}
+     * instead of a {@link #USER_LIST} on every change. Every change raises the roster version by one,
+     * a client that sees a gap sends a lone {@link #USER_LIST} to get a new {@link #USER_SNAPSHOT}.
+     */
+    public static char FEATURE_USER_DELTAS = 'd';
+
+    /**
+     * Feature: messages to {@link #ALL} come as {@link #JOURNAL_MESSAGE}s and the client may ask for the ones
+     * it missed with a {@link #REPLAY}. Only accepted by a server that keeps a journal.
+     */
+    public static char FEATURE_JOURNAL = 'j';
+
+    /**
+     * Feature: messages longer than the server's threshold may come as {@link #COMPRESSED}
+     */
+    public static char FEATURE_COMPRESSION = 'z';
+
+    /**
+     * Feature: the client answers {@link #PING} with {@link #PONG}, a client that does not is disconnected
+     */
+    public static char FEATURE_HEARTBEAT = 'h';
+
+    /**
+     * Feature: the server takes {@link #SUBSCRIBE}s and leaves out the messages to {@link #ALL} from other senders
+     */
+    public static char FEATURE_SUBSCRIPTIONS = 'f';
+
+    /**
+     * Recipient id of {@link #ALL} in a binary {@link #MESSAGE}
+     */
+    public static int ALL_ID = 0;
 }
@@ -0,0 +1,199 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which accepted connections a {@link ChatServer} takes on, from the limits in {@link ServerConfig}.
+ * Connections over the total or per address limit are turned away before any thread or buffer is spent on them.
+ */
+public class AdmissionControl {
+    /**
+     * Most open connections, named or not
+     */
+    private final int maxConnections;
+
+    /**
+     * Most open connections from one address, 0 for no limit
+     */
+    private final int maxConnectionsPerAddress;
+
+    /**
+     * Messages a client may send per second, 0 for no limit
+     */
+    private final int messageRate;
+
+    /**
+     * Messages a client may send at once after being quiet
+     */
+    private final int messageBurst;
+
+    /**
+     * Number of open connections
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Number of open connections per remote address
+     */
+    private final ConcurrentHashMap<InetAddress,Integer> addressConnections = new ConcurrentHashMap<>();
+
+    /**
+     * Connections turned away
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Messages dropped because their sender was over its rate
+     */
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * @param serverConfig the limits
+     */
+    public AdmissionControl( ServerConfig serverConfig ){
+        this.maxConnections = serverConfig.getMaxConnections();
+        this.maxConnectionsPerAddress = serverConfig.getMaxConnectionsPerAddress();
+        this.messageRate = serverConfig.getMessageRate();
+        this.messageBurst = serverConfig.getMessageBurst();
+    }
+
+    /**
+     * Admits an accepted connection if it is within the limits
+     *
+     * @param socketChannel the accepted channel
+     *
+     * @return the ticket of the connection, to be released when it closes, or null if it was turned away
+     */
+    public Admission admit( SocketChannel socketChannel ){
+        InetAddress inetAddress = null;
+        try {
+            SocketAddress socketAddress = socketChannel.getRemoteAddress();
+            if ( socketAddress instanceof InetSocketAddress ) {
+                inetAddress = ( (InetSocketAddress) socketAddress ).getAddress();
+            }
+        }
+        catch ( IOException ioException ) {
+            rejected.increment();
+            return null;
+        }
+        if ( connections.incrementAndGet() > maxConnections ) {
+            connections.decrementAndGet();
+            rejected.increment();
+            return null;
+        }
+        if ( maxConnectionsPerAddress > 0 && inetAddress != null ) {
+            boolean[] admitted = { false };
+            addressConnections.compute( inetAddress, ( address, count ) -> {
+                int current = count == null ? 0 : count;
+                if ( current >= maxConnectionsPerAddress ) {
+                    return count;
+                }
+                admitted[0] = true;
+                return current + 1;
+            } );
+            if ( !admitted[0] ) {
+                connections.decrementAndGet();
+                rejected.increment();
+                return null;
+            }
+        }
+        else {
+            inetAddress = null;
+        }
+        return new Admission( inetAddress, messageRate > 0 ? new TokenBucket( messageRate, messageBurst ) : null );
+    }
+
+    /**
+     * Gives back the slots of a closed connection
+     *
+     * @param inetAddress its address if counted per address, otherwise null
+     */
+    private void release( InetAddress inetAddress ){
+        connections.decrementAndGet();
+        if ( inetAddress != null ) {
+            addressConnections.computeIfPresent( inetAddress, ( address, count ) -> count > 1 ? count - 1 : null );
+        }
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public int getConnections(){
+        return connections.get();
+    }
+
+    /**
+     * @return the number of connections turned away
+     */
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of messages dropped for being over the rate
+     */
+    public long getThrottled(){
+        return throttled.sum();
+    }
+
+    /**
+     * The ticket of one admitted connection
+     */
+    public class Admission {
+        /**
+         * Address counted against {@link #maxConnectionsPerAddress}, null if not counted
+         */
+        private final InetAddress inetAddress;
+
+        /**
+         * Limits the messages of the connection, null for no limit
+         */
+        private final TokenBucket messageBucket;
+
+        /**
+         * Set once released
+         */
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Admission( InetAddress inetAddress,
+                           TokenBucket messageBucket ){
+            this.inetAddress = inetAddress;
+            this.messageBucket = messageBucket;
+        }
+
+        /**
+         * Takes one message from the rate, only the reading thread of the connection may call it
+         *
+         * @return false if the message has to be dropped
+         */
+        public boolean tryMessage(){
+            if ( messageBucket == null || messageBucket.tryAcquire() ) {
+                return true;
+            }
+            throttled.increment();
+            return false;
+        }
+
+        /**
+         * Gives back the slots of the connection, later calls do nothing
+         */
+        public void release(){
+            if ( released.compareAndSet( false, true ) ) {
+                AdmissionControl.this.release( inetAddress );
+            }
+        }
+    }
+}
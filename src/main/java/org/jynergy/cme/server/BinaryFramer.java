@@ -0,0 +1,121 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.BinaryCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes read from a client into {@link BinaryCodec} frames of {@link WireFormat#BINARY}.
+ * A frame that arrived whole is handed over in place in the read buffer, only frames split
+ * across reads are copied.
+ */
+public class BinaryFramer implements FrameDecoder {
+    /**
+     * Length of the current frame, -1 while its varint is still being read
+     */
+    private int frameLength = -1;
+
+    /**
+     * Value of the varint read so far
+     */
+    private int varint;
+
+    /**
+     * Shift of the next varint byte
+     */
+    private int varintShift;
+
+    /**
+     * Bytes of a frame split across reads, null while there are none
+     */
+    private ByteBuffer partial;
+
+    /**
+     * Consumes bytes up to the end of the next frame
+     *
+     * @param buffer bytes read, in read mode
+     * @param handler gets the frame
+     *
+     * @return true if a frame was handed over
+     *
+     * @throws IOException if the frame is malformed or longer than {@link BinaryCodec#MAX_FRAME_LENGTH}
+     */
+    public boolean decode( ByteBuffer buffer,
+                           Handler handler ) throws IOException {
+        if ( frameLength < 0 && !readLength( buffer ) ) {
+            return false;
+        }
+        if ( partial == null && buffer.remaining() >= frameLength ) {
+            int limit = buffer.limit();
+            int end = buffer.position() + frameLength;
+            buffer.limit( end );
+            frameLength = -1;
+            try {
+                dispatch( buffer, handler );
+            }
+            finally {
+                buffer.limit( limit );
+                buffer.position( end );
+            }
+            return true;
+        }
+        if ( partial == null ) {
+            partial = ByteBuffer.allocate( frameLength );
+        }
+        int count = Math.min( partial.remaining(), buffer.remaining() );
+        int limit = buffer.limit();
+        buffer.limit( buffer.position() + count );
+        partial.put( buffer );
+        buffer.limit( limit );
+        if ( partial.hasRemaining() ) {
+            return false;
+        }
+        partial.flip();
+        ByteBuffer frame = partial;
+        partial = null;
+        frameLength = -1;
+        dispatch( frame, handler );
+        return true;
+    }
+
+    /**
+     * Reads the varint length, possibly over several reads
+     *
+     * @return true once {@link #frameLength} is known
+     */
+    private boolean readLength( ByteBuffer buffer ) throws IOException {
+        while ( buffer.hasRemaining() ) {
+            byte b = buffer.get();
+            varint |= ( b & 0x7F ) << varintShift;
+            if ( b >= 0 ) {
+                if ( varint < 1 || varint > BinaryCodec.MAX_FRAME_LENGTH ) {
+                    throw new IOException( "bad frame length " + varint );
+                }
+                frameLength = varint;
+                varint = 0;
+                varintShift = 0;
+                return true;
+            }
+            varintShift += 7;
+            if ( varintShift > 28 ) {
+                throw new IOException( "malformed frame length" );
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands a whole frame, tag included, to the handler
+     */
+    private void dispatch( ByteBuffer frame,
+                           Handler handler ) throws IOException {
+        char tag = (char) ( frame.get() & 0xFF );
+        handler.onFrame( tag, frame );
+    }
+}
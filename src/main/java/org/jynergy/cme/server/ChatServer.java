@@ -5,32 +5,187 @@ package org.jynergy.cme.server;
  * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
  */
 
+import org.jynergy.cme.protocol.BinaryCodec;
 import org.jynergy.cme.protocol.Protocol;
 
-import java.io.BufferedReader;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * A ChatServer for client/server application
  */
 public class ChatServer implements Protocol{
+    /**
+     * Longest wait for the connections {@link #drain()} disconnected to log out
+     */
+    private static final long DRAIN_LOGOUT_MILLIS = 1000;
+
+    /**
+     * Longest time an acceptor waits for a connection before it looks whether {@link #drain()} began
+     */
+    private static final long ACCEPT_POLL_MILLIS = 100;
+
     /**
      * {@link ServerSocket} to handle client connections
      */
     private ServerSocket  serverSocket;
 
     /**
-     * holds the client user name and {@link ServerThread}
+     * The channel of {@link #serverSocket}, non blocking so {@link #acceptNext()} can stop at a drain;
+     * accepted channels are blocking except in {@link ServerMode#NIO}
+     */
+    private ServerSocketChannel serverSocketChannel;
+
+    /**
+     * Tells {@link #acceptNext()} that {@link #serverSocketChannel} has a connection
+     */
+    private Selector acceptSelector;
+
+    /**
+     * Counted down once the acceptor took the last connection and closed {@link #serverSocketChannel}
+     */
+    private final CountDownLatch acceptorDone = new CountDownLatch( 1 );
+
+    /**
+     * The loops of {@link ServerMode#NIO}, null in the other modes
+     */
+    private volatile IoLoop[] ioLoops;
+
+    /**
+     * How client connections are serviced
+     */
+    private ServerMode serverMode;
+
+    /**
+     * Tunables of this server
+     */
+    private final ServerConfig serverConfig = ServerConfig.fromSystemProperties();
+
+    /**
+     * Counters of all client {@link OutboundQueue}s
+     */
+    private final OutboundCounters outboundCounters = new OutboundCounters();
+
+    /**
+     * holds the client user names and their {@link ClientConnection}s
+     */
+    private final ClientRegistry clientRegistry = new ClientRegistry();
+
+    /**
+     * Joins and leaves clients and pushes the roster changes
+     */
+    private final RosterPublisher rosterPublisher =
+        new RosterPublisher( clientRegistry, serverConfig.getRosterCoalesceMillis() );
+
+    /**
+     * The rooms and their members
+     */
+    private final RoomRegistry roomRegistry = new RoomRegistry( serverConfig.getMaxRoomsPerClient() );
+
+    /**
+     * The sender filters of the clients
+     */
+    private final SubscriptionRegistry subscriptionRegistry = new SubscriptionRegistry();
+
+    /**
+     * Turns away connections over the limits of {@link #serverConfig}
+     */
+    private final AdmissionControl admissionControl = new AdmissionControl( serverConfig );
+
+    /**
+     * Counters and histograms of this server
+     */
+    private final ServerMetrics serverMetrics = new ServerMetrics( this );
+
+    /**
+     * Disconnects the clients that fell silent
+     */
+    private final IdleReaper idleReaper = new IdleReaper( serverConfig.getHeartbeatIntervalMillis(),
+                                                          serverConfig.getHeartbeatTimeoutMillis(),
+                                                          serverConfig.getIdleTimeoutMillis() );
+
+    /**
+     * Keeps the messages to {@link #ALL}, null if <code>cme.journal.dir</code> is not set
+     */
+    private MessageJournal messageJournal;
+
+    /**
+     * Serializes appending to {@link #messageJournal} with the fan-out of the appended message and with replays,
+     * so every client gets the {@link #JOURNAL_MESSAGE}s in sequence and a replay never overtakes a live message
+     */
+    private final ReentrantLock journalLock = new ReentrantLock();
+
+    /**
+     * Keeps directed messages to users that are not logged on, null if <code>cme.mailbox.dir</code> is not set
+     */
+    private OfflineStore offlineStore;
+
+    /**
+     * This server as a node of a cluster, null if <code>cme.cluster.nodeId</code> is not set
+     */
+    private ClusterNode clusterNode;
+
+    /**
+     * Makes the engines of TLS connections, null if <code>cme.tls.keyStore</code> is not set
+     */
+    private SSLContext sslContext;
+
+    /**
+     * Runs the delegated tasks of the TLS handshakes of {@link IoLoop} connections, which would stall every
+     * connection of the loop; null if <code>cme.tls.keyStore</code> is not set
+     */
+    private ExecutorService tlsTaskExecutor;
+
+    /**
+     * Makes the client threads in {@link ServerMode#VIRTUAL}, null for platform threads
+     */
+    private ThreadFactory threadFactory;
+
+    /**
+     * Set once {@link #drain()} began, nothing is accepted after
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Counted down once {@link #drain()} is done
      */
-    private HashMap<String,ServerThread> clientThreadHashMap =
-                new HashMap<String, ServerThread>( );
+    private final CountDownLatch drained = new CountDownLatch( 1 );
+
+    /**
+     * Creates a server that listens on no socket and only routes between the connections
+     * passed to {@link #login(ClientConnection, String)}, for embedding and benchmarks
+     */
+    public ChatServer() {
+        this.serverMode = ServerMode.THREAD;
+    }
 
     /**
      * Connects the {@link ServerSocket} on port number
@@ -38,19 +193,36 @@ public class ChatServer implements Protocol{
      * @param portNumber the portNumber to connect to
      */
     public ChatServer(int portNumber) {
+        this( portNumber, ServerMode.THREAD );
+    }
+
+    /**
+     * Connects the {@link ServerSocket} on port number
+     *
+     * @param portNumber the portNumber to connect to
+     * @param serverMode {@link #serverMode}
+     */
+    public ChatServer( int portNumber,
+                       ServerMode serverMode ) {
+        this.serverMode = serverMode;
         try {
             InetAddress inetAddress = InetAddress.getByName( null );
-            serverSocket = new ServerSocket( portNumber, 20, inetAddress );
+            openServerSocket( portNumber, inetAddress );
             System.out.println( "ChatServer: serverSocket localhost:" + portNumber );
+            System.out.println( "ChatServer: " + serverConfig );
+            openTls();
+            serverMetrics.start( serverConfig.getMetricsHttpPort() );
+            openJournal();
+            openOfflineStore();
+            openCluster();
+            Runtime.getRuntime().addShutdownHook( new Thread( this::drain, "ChatServer-drain" ) );
             acceptClients();
         }
         catch ( IOException ioException ) {
             ioException.printStackTrace();
             System.err.println( "Could not open socket on port: " + portNumber );
         }
-        if ( serverSocket != null || !serverSocket.isClosed() ){
-           close();
-        }
+        drain();
         System.exit( 0 );
     }
 
@@ -63,6 +235,20 @@ public class ChatServer implements Protocol{
      */
     public ChatServer( int portNumber,
                        String serverName ) {
+        this( portNumber, serverName, ServerMode.THREAD );
+    }
+
+    /**
+     * Connects {@link ServerSocket}
+     *
+     * @param portNumber on port number
+     * @param serverName on server name
+     * @param serverMode {@link #serverMode}
+     */
+    public ChatServer( int portNumber,
+                       String serverName,
+                       ServerMode serverMode ) {
+        this.serverMode = serverMode;
         try {
             InetAddress inetAddress = null;
             StringTokenizer stringTokenizer = new StringTokenizer( serverName, "." );
@@ -79,7 +265,14 @@ public class ChatServer implements Protocol{
             }
 
             System.out.println( "ChatServer: serverSocket " + inetAddress.getHostAddress() +":" + portNumber );
-            serverSocket = new ServerSocket( portNumber, 20, inetAddress );
+            openServerSocket( portNumber, inetAddress );
+            System.out.println( "ChatServer: " + serverConfig );
+            openTls();
+            serverMetrics.start( serverConfig.getMetricsHttpPort() );
+            openJournal();
+            openOfflineStore();
+            openCluster();
+            Runtime.getRuntime().addShutdownHook( new Thread( this::drain, "ChatServer-drain" ) );
 
             acceptClients();
         }
@@ -87,12 +280,270 @@ public class ChatServer implements Protocol{
             ioException.printStackTrace();
             System.err.println( "Could not open socket on port: " + portNumber );
         }
-        if ( serverSocket != null || !serverSocket.isClosed() ) {
-            close();
-        }
+        drain();
         System.exit( 0 );
     }
 
+    /**
+     * Opens {@link #serverSocket} through {@link #serverSocketChannel}
+     *
+     * @param portNumber on port number
+     * @param inetAddress on address
+     *
+     * @throws IOException if the socket cannot be bound
+     */
+    private void openServerSocket( int portNumber,
+                                   InetAddress inetAddress ) throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        if ( serverConfig.isReusePort() ) {
+            setReusePort();
+        }
+        serverSocketChannel.bind( new InetSocketAddress( inetAddress, portNumber ), serverConfig.getAcceptBacklog() );
+        serverSocket = serverSocketChannel.socket();
+        serverSocketChannel.configureBlocking( false );
+        acceptSelector = Selector.open();
+        serverSocketChannel.register( acceptSelector, SelectionKey.OP_ACCEPT );
+    }
+
+    /**
+     * Waits for the next connection. Once {@link #drain()} began it still takes the connections already
+     * in the accept backlog, which would be reset when the socket closes, and then returns null.
+     *
+     * @return the accepted channel, blocking, or null if the server is draining and no connection is left
+     *
+     * @throws IOException if accepting fails
+     */
+    private SocketChannel acceptNext() throws IOException {
+        while ( true ) {
+            SocketChannel socketChannel = serverSocketChannel.accept();
+            if ( socketChannel != null ) {
+                return socketChannel;
+            }
+            if ( draining.get() ) {
+                return null;
+            }
+            acceptSelector.select( ACCEPT_POLL_MILLIS );
+            acceptSelector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * Closes {@link #serverSocketChannel} and {@link #acceptSelector} once the acceptor is done
+     */
+    private void stopAccepting(){
+        try {
+            serverSocketChannel.close();
+            acceptSelector.close();
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+        }
+        finally {
+            acceptorDone.countDown();
+        }
+    }
+
+    /**
+     * Sets SO_REUSEPORT on {@link #serverSocketChannel}, so a new server can bind the port while this one drains
+     * and the kernel hands the new connections to it once this one stops accepting.
+     * The option is looked up by reflection, it needs Java 9 and Linux or BSD.
+     */
+    @SuppressWarnings( "unchecked" )
+    private void setReusePort(){
+        try {
+            SocketOption<Boolean> reusePort = (SocketOption<Boolean>) StandardSocketOptions.class.getField( "SO_REUSEPORT" ).get( null );
+            serverSocketChannel.setOption( reusePort, true );
+        }
+        catch ( ReflectiveOperationException | UnsupportedOperationException | IOException exception ) {
+            System.err.println( "ChatServer: SO_REUSEPORT not available, " + exception );
+        }
+    }
+
+    /**
+     * Sets up {@link #sslContext} if <code>cme.tls.keyStore</code> is set. Sessions are kept for
+     * <code>cme.tls.sessionTimeoutSeconds</code>, so a client reconnecting within that time resumes its session
+     * instead of doing a full handshake.
+     *
+     * @throws IOException if the key store cannot be read, the server does not fall back to plain TCP
+     */
+    private void openTls() throws IOException {
+        if ( serverConfig.getTlsKeyStore().isEmpty() ) {
+            return;
+        }
+        char[] password = serverConfig.getTlsKeyStorePassword().toCharArray();
+        try ( FileInputStream fileInputStream = new FileInputStream( serverConfig.getTlsKeyStore() ) ) {
+            KeyStore keyStore = KeyStore.getInstance( serverConfig.getTlsKeyStoreType() );
+            keyStore.load( fileInputStream, password );
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+            keyManagerFactory.init( keyStore, password );
+            sslContext = SSLContext.getInstance( "TLS" );
+            sslContext.init( keyManagerFactory.getKeyManagers(), null, null );
+            sslContext.getServerSessionContext().setSessionCacheSize( serverConfig.getTlsSessionCacheSize() );
+            sslContext.getServerSessionContext().setSessionTimeout( serverConfig.getTlsSessionTimeoutSeconds() );
+            tlsTaskExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread( runnable, "ChatServer-tls" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            System.out.println( "ChatServer: TLS with " + serverConfig.getTlsKeyStore() );
+        }
+        catch ( GeneralSecurityException generalSecurityException ) {
+            throw new IOException( "cannot set up TLS with " + serverConfig.getTlsKeyStore(), generalSecurityException );
+        }
+    }
+
+    /**
+     * @param nonBlocking true for a connection of an {@link IoLoop}, its delegated tasks then run on {@link #tlsTaskExecutor}
+     *
+     * @return a session for a new connection with its handshake begun, null if the server speaks plain TCP
+     *
+     * @throws IOException if the handshake cannot begin
+     */
+    public TlsSession newTlsSession( boolean nonBlocking ) throws IOException {
+        if ( sslContext == null ) {
+            return null;
+        }
+        SSLEngine sslEngine = sslContext.createSSLEngine();
+        sslEngine.setUseClientMode( false );
+        sslEngine.beginHandshake();
+        return new TlsSession( sslEngine, nonBlocking ? tlsTaskExecutor : null );
+    }
+
+    /**
+     * Opens {@link #messageJournal} if <code>cme.journal.dir</code> is set, the server runs without one if it cannot
+     */
+    private void openJournal(){
+        if ( serverConfig.getJournalDir().isEmpty() ) {
+            return;
+        }
+        try {
+            messageJournal = new MessageJournal( new File( serverConfig.getJournalDir() ),
+                                                 serverConfig.getJournalSegmentBytes(),
+                                                 serverConfig.getJournalFsyncMillis(),
+                                                 serverConfig.getJournalRetainSegments() );
+            System.out.println( "ChatServer: journal " + serverConfig.getJournalDir() + " at " + messageJournal.getLastSequence() );
+        }
+        catch ( IOException ioException ) {
+            System.err.println( "ChatServer: cannot open journal " + serverConfig.getJournalDir() + ": " + ioException.getMessage() );
+        }
+    }
+
+    /**
+     * Opens {@link #offlineStore} if <code>cme.mailbox.dir</code> is set, the server runs without one if it cannot
+     */
+    private void openOfflineStore(){
+        if ( serverConfig.getMailboxDir().isEmpty() ) {
+            return;
+        }
+        try {
+            offlineStore = new OfflineStore( new File( serverConfig.getMailboxDir() ),
+                                             serverConfig.getMailboxMaxBytes(),
+                                             serverConfig.getMailboxMaxMailboxes(),
+                                             serverConfig.getMailboxTtlSeconds(),
+                                             clientRegistry );
+            System.out.println( "ChatServer: mailboxes " + serverConfig.getMailboxDir() );
+        }
+        catch ( IOException ioException ) {
+            System.err.println( "ChatServer: cannot open mailboxes " + serverConfig.getMailboxDir() + ": " + ioException.getMessage() );
+        }
+    }
+
+    /**
+     * Starts {@link #clusterNode} if <code>cme.cluster.nodeId</code> is set, the server runs alone if it cannot
+     */
+    private void openCluster(){
+        if ( serverConfig.getClusterNodeId().isEmpty() ) {
+            return;
+        }
+        try {
+            clusterNode = new ClusterNode( serverConfig.getClusterNodeId(),
+                                           serverConfig.getClusterMembers(),
+                                           serverConfig.getClusterSecret(),
+                                           serverConfig.getClusterGossipMillis(),
+                                           serverConfig.getClusterClaimTimeoutMillis(),
+                                           this );
+            clusterNode.start();
+            System.out.println( "ChatServer: cluster node " + serverConfig.getClusterNodeId() + " of " + serverConfig.getClusterMembers() );
+        }
+        catch ( IOException | IllegalArgumentException exception ) {
+            System.err.println( "ChatServer: cannot join cluster " + serverConfig.getClusterMembers() + ": " + exception.getMessage() );
+            if ( clusterNode != null ) {
+                clusterNode.close();
+                clusterNode = null;
+            }
+        }
+    }
+
+    /**
+     * @return the features clients may ask for, {@link #FEATURE_JOURNAL} only if there is a {@link #messageJournal}
+     * and {@link #FEATURE_COMPRESSION} only if <code>cme.compression.minBytes</code> is positive
+     * and {@link #FEATURE_HEARTBEAT} only if <code>cme.heartbeat.intervalMillis</code> and <code>timeoutMillis</code> are
+     */
+    public String getSupportedFeatures(){
+        String features = Handshake.SUPPORTED_FEATURES;
+        if ( messageJournal == null ) {
+            features = features.replace( String.valueOf( FEATURE_JOURNAL ), "" );
+        }
+        if ( serverConfig.getCompressionMinBytes() <= 0 ) {
+            features = features.replace( String.valueOf( FEATURE_COMPRESSION ), "" );
+        }
+        if ( serverConfig.getHeartbeatIntervalMillis() <= 0 || serverConfig.getHeartbeatTimeoutMillis() <= 0 ) {
+            features = features.replace( String.valueOf( FEATURE_HEARTBEAT ), "" );
+        }
+        return features;
+    }
+
+    /**
+     * @return a new queue for the items waiting to be written to one client, set up from {@link #serverConfig}.
+     * A sender holding {@link #journalLock} never waits for room, every broadcast would wait with it.
+     */
+    public <E> OutboundQueue<E> newOutboundQueue(){
+        return new OutboundQueue<>( serverConfig.getOutboundCapacity(),
+                                    getOverflowPolicy(),
+                                    serverConfig.getBlockTimeoutMillis(),
+                                    () -> !journalLock.isHeldByCurrentThread(),
+                                    outboundCounters );
+    }
+
+    /**
+     * @return the configured {@link OverflowPolicy}, {@link OverflowPolicy#DISCONNECT} for
+     * {@link OverflowPolicy#BLOCK} in {@link ServerMode#NIO}: a wait would stall the {@link IoLoop}
+     * and with it the slow client's own writes
+     */
+    private OverflowPolicy getOverflowPolicy(){
+        OverflowPolicy overflowPolicy = serverConfig.getOverflowPolicy();
+        return serverMode == ServerMode.NIO && overflowPolicy == OverflowPolicy.BLOCK ? OverflowPolicy.DISCONNECT
+                                                                                        : overflowPolicy;
+    }
+
+    /**
+     * @return {@link #serverConfig}
+     */
+    public ServerConfig getServerConfig() {
+        return serverConfig;
+    }
+
+    /**
+     * @return {@link #outboundCounters}
+     */
+    public OutboundCounters getOutboundCounters() {
+        return outboundCounters;
+    }
+
+    /**
+     * @return {@link #serverMetrics}
+     */
+    public ServerMetrics getServerMetrics() {
+        return serverMetrics;
+    }
+
+    /**
+     * @return {@link #idleReaper}
+     */
+    public IdleReaper getIdleReaper() {
+        return idleReaper;
+    }
+
     /**
      * @return {@link #serverSocket}
      */
@@ -103,87 +554,903 @@ public class ChatServer implements Protocol{
     /**
      * Handles initial setup
      * <UL>
-     *     <LI>checks that to many users are about to logon</LI>
-     *     <LI>checks that the client name has not been used</LI>
-     *     <LI>Starts {@link ServerThread} and {@link #sendUserListToAll()}</LI>
+     *     <LI>Starts a {@link ServerThread} for every connection, on a virtual thread in {@link ServerMode#VIRTUAL}</LI>
+     *     <LI>The {@link ServerThread} reads the client name and starts its writer itself,
+     *     so a client slow to send its name never holds up the next accept</LI>
      * </UL>
+     * In {@link ServerMode#NIO} the connections are handed to {@link #acceptNioClients()} instead.
+     * Returns once {@link #drain()} began and the accept backlog is empty.
      */
     public void acceptClients(){
-        while ( true ){
+        if ( serverMode == ServerMode.NIO ) {
+            acceptNioClients();
+            return;
+        }
+        if ( serverMode == ServerMode.VIRTUAL ) {
+            threadFactory = VirtualThreads.newThreadFactory( "ChatServer-client-" );
+            if ( threadFactory == null ) {
+                System.err.println( "ChatServer: virtual threads need Java 21, using platform threads" );
+            }
+        }
+        while ( serverSocketChannel.isOpen() ){
             try{
-                Socket socket = serverSocket.accept();
-                PrintWriter printWriter = new PrintWriter( socket.getOutputStream(), true );
-                BufferedReader bufferedReader = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
-                ServerThread serverThread =
-                    new ServerThread( socket, printWriter, bufferedReader, this );
-                String clientName = bufferedReader.readLine();
-                if ( clientThreadHashMap.size() == 10 ){
-                    printWriter.println( TO_MANY_USERS );
-                }
-                else if ( clientThreadHashMap.get( clientName ) != null ){
-                    printWriter.println( USER_EXISTS );
+                SocketChannel socketChannel = acceptNext();
+                if ( socketChannel == null ) {
+                    break;
+                }
+                AdmissionControl.Admission admission = admit( socketChannel );
+                if ( admission == null ) {
+                    continue;
+                }
+                ServerThread serverThread;
+                try {
+                    serverThread = new ServerThread( socketChannel, admission, this );
+                }
+                catch ( IOException ioException ) {
+                    admission.release();
+                    socketChannel.close();
+                    throw ioException;
+                }
+                if ( threadFactory != null ) {
+                    threadFactory.newThread( serverThread ).start();
                 }
                 else {
-                    System.out.println( "ChatServer: connect " + clientName );
-                    clientThreadHashMap.put( clientName, serverThread );
-                    serverThread.setClientName( clientName );
                     serverThread.start();
-                    synchronized ( serverSocket ) {
-                        sendUserListToAll();
-                    }
                 }
             }   catch ( IOException ioException ){
+                if ( !draining.get() ) {
+                    ioException.printStackTrace();
+                }
+            }
+        }
+        stopAccepting();
+    }
+
+    /**
+     * Admits an accepted connection or turns it away with {@link #TO_MANY_USERS}, written as text
+     * since the client has not said yet which {@link WireFormat} it wants.
+     * TCP_NODELAY is always set explicitly, the outbound queues do the coalescing Nagle's algorithm would.
+     * With TLS the connection is closed without a reply, the handshake has not even begun.
+     *
+     * @param socketChannel the accepted channel, still blocking
+     *
+     * @return the ticket of the connection or null if it was closed
+     */
+    private AdmissionControl.Admission admit( SocketChannel socketChannel ){
+        try {
+            socketChannel.socket().setTcpNoDelay( serverConfig.isTcpNoDelay() );
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+        }
+        AdmissionControl.Admission admission = admissionControl.admit( socketChannel );
+        if ( admission == null ) {
+            try {
+                if ( sslContext == null ) {
+                    socketChannel.write( WireFormat.TEXT.encodeReply( TO_MANY_USERS ).buffer() );
+                }
+            }
+            catch ( IOException ioException ) {
+                // the client is turned away either way
+            }
+            try {
+                socketChannel.close();
+            }
+            catch ( IOException ioException ) {
                 ioException.printStackTrace();
             }
         }
+        return admission;
+    }
+
+    /**
+     * Starts a thread for a client, virtual in {@link ServerMode#VIRTUAL}
+     *
+     * @param runnable what the thread runs
+     * @param name name of a platform thread
+     */
+    public void startClientThread( Runnable runnable,
+                                   String name ){
+        if ( threadFactory != null ) {
+            threadFactory.newThread( runnable ).start();
+        }
+        else {
+            new Thread( runnable, name ).start();
+        }
     }
 
     /**
-     * Sends the user list to all clients
+     * Accepts connections on {@link #serverSocketChannel} and spreads them over one {@link IoLoop} per core.
+     * The name handshake and all reads and writes then happen on the {@link IoLoop}s, which {@link #close()} closes.
      */
-    public void sendUserListToAll(){
-        if ( clientThreadHashMap.size() > 0 ) {
-            StringBuilder stringBuilder = new StringBuilder(  );
-            stringBuilder.append( USER_LIST );
-            boolean first = true;
-            for ( String name : clientThreadHashMap.keySet() ) {
-                if ( first ) {
-                    stringBuilder.append( name );
-                    first = false;
+    private void acceptNioClients(){
+        IoLoop[] ioLoops = new IoLoop[ Runtime.getRuntime().availableProcessors() ];
+        this.ioLoops = ioLoops;
+        try {
+            for ( int i = 0; i < ioLoops.length; i++ ) {
+                ioLoops[i] = new IoLoop( this );
+                ioLoops[i].start( "ChatServer-io-" + i );
+            }
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+            stopAccepting();
+            return;
+        }
+        System.out.println( "ChatServer: " + ioLoops.length + " io loops" );
+        if ( serverConfig.getOverflowPolicy() == OverflowPolicy.BLOCK ) {
+            System.err.println( "ChatServer: outbound.overflow=BLOCK would stall the io loops, using DISCONNECT" );
+        }
+        int next = 0;
+        while ( serverSocketChannel.isOpen() ){
+            try {
+                SocketChannel socketChannel = acceptNext();
+                if ( socketChannel == null ) {
+                    break;
                 }
-                else {
-                    stringBuilder.append( COMMA );
-                    stringBuilder.append( name );
+                AdmissionControl.Admission admission = admit( socketChannel );
+                if ( admission == null ) {
+                    continue;
+                }
+                ioLoops[next].register( socketChannel, admission );
+                next = ( next + 1 ) % ioLoops.length;
+            }
+            catch ( IOException ioException ){
+                if ( !draining.get() ) {
+                    ioException.printStackTrace();
+                }
+            }
+        }
+        stopAccepting();
+    }
+
+    /**
+     * Registers a client that completed the name handshake
+     * <UL>
+     *     <LI>checks that to many users are about to logon</LI>
+     *     <LI>checks that the client name has not been used, in a cluster first at the {@link ClusterNode} owning it</LI>
+     *     <LI>adds the client, {@link RosterPublisher} tells the others and {@link #clusterNode} the other nodes</LI>
+     *     <LI>has {@link #offlineStore} send the messages kept for the client, in a cluster the owner node does</LI>
+     * </UL>
+     *
+     * @param clientConnection the connection of the client
+     * @param clientName the name the client sent
+     *
+     * @return 0 if the client was added, otherwise {@link #TO_MANY_USERS} or {@link #USER_EXISTS} to be sent back
+     */
+    public char login( ClientConnection clientConnection,
+                       String clientName ){
+        if ( clusterNode != null && !clusterNode.claim( clientName ) ) {
+            serverMetrics.rejectedLogin();
+            return USER_EXISTS;
+        }
+        char reply = rosterPublisher.join( clientName, clientConnection, serverConfig.getMaxConnections() );
+        if ( reply == 0 ) {
+            ServerLog.info( "ChatServer: connect " + clientName );
+            if ( clusterNode != null ) {
+                clusterNode.joined( clientName );
+            }
+            if ( offlineStore != null && ( clusterNode == null || clusterNode.isOwner( clientName ) ) ) {
+                offlineStore.deliver( clientConnection );
+            }
+            if ( draining.get() ) {
+                // accepted just before the drain began
+                sendReconnect( clientConnection );
+            }
+        }
+        else {
+            serverMetrics.rejectedLogin();
+            if ( clusterNode != null ) {
+                // the claim just made is not used, release only frees a claim held for this node
+                clusterNode.release( clientName );
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Removes a disconnected client from its rooms and the roster, {@link RosterPublisher} tells the others
+     * and {@link #clusterNode} the other nodes
+     *
+     * @param clientConnection the connection of the client
+     */
+    public void logout( ClientConnection clientConnection ){
+        String clientName = clientConnection.getClientName();
+        roomRegistry.leaveAll( clientConnection );
+        subscriptionRegistry.unsubscribe( clientConnection );
+        if ( rosterPublisher.leave( clientConnection ) && clusterNode != null ) {
+            clusterNode.left( clientName );
+        }
+    }
+
+    /**
+     * Registers a user logged on at another node, ignored if the name is taken here
+     *
+     * @param remoteConnection the user
+     *
+     * @return true if it was registered
+     */
+    public boolean addRemoteUser( RemoteConnection remoteConnection ){
+        String clientName = remoteConnection.getClientName();
+        if ( rosterPublisher.join( clientName, remoteConnection, Integer.MAX_VALUE ) != 0 ) {
+            return false;
+        }
+        if ( offlineStore != null && clusterNode.isOwner( clientName ) ) {
+            offlineStore.deliver( remoteConnection );
+        }
+        return true;
+    }
+
+    /**
+     * Takes a user of another node off the roster
+     *
+     * @param remoteConnection the user
+     */
+    public void removeRemoteUser( RemoteConnection remoteConnection ){
+        rosterPublisher.leave( remoteConnection );
+    }
+
+    /**
+     * Routes a {@link #MESSAGE} line to the named client or to {@link #ALL}.
+     * The outgoing message is encoded once per {@link WireFormat} into a {@link Frame} that all recipients share.
+     * A message to a client that is not logged on goes to {@link #offlineStore}, if there is one,
+     * in a cluster to the one of the node owning the name. The name is looked up where it is in the line, not copied.
+     *
+     * @param sender the sending client
+     * @param line {@link #MESSAGE}, the to user, {@link #SEPERATOR} and the text
+     */
+    public void routeMessage( ClientConnection sender,
+                              String line ){
+        int seperatorPosition = line.indexOf( SEPERATOR, 1 );
+        if ( seperatorPosition < 0 ) {
+            return;
+        }
+        if ( seperatorPosition != ALL.length() + 1 || !line.startsWith( ALL, 1 ) ) {
+            ClientConnection clientConnection = clientRegistry.get( line, 1, seperatorPosition );
+            if ( clientConnection != null ) {
+                clientConnection.send( clientConnection.getWireFormat().encodeMessage( line, seperatorPosition + 1, 1 ) );
+                serverMetrics.routed( 1, false );
+                return;
+            }
+            routeToAbsent( line.substring( 1, seperatorPosition ), line.substring( seperatorPosition + 1 ) );
+            serverMetrics.routed( 0, false );
+        }
+        else{
+            broadcast( ( wireFormat, sequence, fanOut ) ->
+                           sequence == 0 ? wireFormat.encodeMessage( line, seperatorPosition + 1, fanOut )
+                                         : wireFormat.encodeJournalMessage( sequence, line, seperatorPosition + 1, fanOut ),
+                       sender.getClientName(), true );
+        }
+    }
+
+    /**
+     * Hands a directed message to a client not logged on to the node owning the name in a cluster,
+     * or to {@link #offlineStore} if there is one
+     *
+     * @param clientName the recipient
+     * @param text the message text
+     */
+    private void routeToAbsent( String clientName,
+                                String text ){
+        if ( clusterNode != null && !clusterNode.isOwner( clientName ) ) {
+            clusterNode.forwardToOwner( clientName, ByteBuffer.wrap( text.getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+        else if ( offlineStore != null && !clientName.isEmpty() ) {
+            offlineStore.store( clientName, text );
+        }
+    }
+
+    /**
+     * Routes a {@link #MULTICAST} line to every named client once, in one {@link Frame} per {@link WireFormat}
+     * all of them share. Names not logged on are handled as by {@link #routeMessage(ClientConnection, String)}, one at a time.
+     * A list longer than <code>cme.maxRecipients</code> is dropped.
+     *
+     * @param line {@link #MULTICAST}, the names separated by {@link #COMMA}, {@link #SEPERATOR} and the text
+     */
+    public void routeMulticast( String line ){
+        int seperatorPosition = line.indexOf( SEPERATOR, 1 );
+        if ( seperatorPosition < 0 ) {
+            return;
+        }
+        int names = 1;
+        for ( int i = 1; i < seperatorPosition; i++ ) {
+            if ( line.charAt( i ) == COMMA ) {
+                names++;
+            }
+        }
+        if ( names > serverConfig.getMaxRecipients() ) {
+            return;
+        }
+        ClientConnection[] recipients = new ClientConnection[ names ];
+        int count = 0;
+        String text = null;
+        for ( int start = 1, end; start < seperatorPosition; start = end + 1 ) {
+            end = line.indexOf( COMMA, start );
+            if ( end < 0 || end > seperatorPosition ) {
+                end = seperatorPosition;
+            }
+            ClientConnection clientConnection = clientRegistry.get( line, start, end );
+            if ( clientConnection == null ) {
+                if ( text == null ) {
+                    text = line.substring( seperatorPosition + 1 );
+                }
+                routeToAbsent( line.substring( start, end ), text );
+            }
+            else if ( !isMember( clientConnection, recipients, count ) ) {
+                recipients[count++] = clientConnection;
+            }
+        }
+        int fanOut = count;
+        sendToEach( recipients, count, wireFormat -> wireFormat.encodeMessage( line, seperatorPosition + 1, fanOut ) );
+    }
+
+    /**
+     * Routes a binary {@link #MULTICAST} to every client in its list once, in one {@link Frame} per {@link WireFormat}
+     * all of them share. Unknown ids are skipped, a list longer than <code>cme.maxRecipients</code> is dropped.
+     *
+     * @param body the varint number of recipients, their varint ids and the text
+     *
+     * @throws IOException if the frame is malformed
+     */
+    public void routeMulticast( ByteBuffer body ) throws IOException {
+        int ids = BinaryCodec.getVarint( body );
+        if ( ids < 0 || ids > serverConfig.getMaxRecipients() ) {
+            return;
+        }
+        ClientConnection[] recipients = new ClientConnection[ ids ];
+        int count = 0;
+        for ( int i = 0; i < ids; i++ ) {
+            int recipientId = BinaryCodec.getVarint( body );
+            ClientConnection clientConnection = recipientId == ALL_ID ? null : clientRegistry.get( recipientId );
+            if ( clientConnection != null && !isMember( clientConnection, recipients, count ) ) {
+                recipients[count++] = clientConnection;
+            }
+        }
+        int fanOut = count;
+        sendToEach( recipients, count, wireFormat -> wireFormat.encodeMessage( body, fanOut ) );
+    }
+
+    /**
+     * Sends to some clients, encoding once per {@link WireFormat}
+     *
+     * @param recipients the clients
+     * @param count the number of clients
+     * @param encoder encodes the message for a format
+     */
+    private void sendToEach( ClientConnection[] recipients,
+                             int count,
+                             Function<WireFormat,Frame> encoder ){
+        Frame[] frames = new Frame[ WireFormat.values().length ];
+        for ( int i = 0; i < count; i++ ) {
+            WireFormat wireFormat = recipients[i].getWireFormat();
+            Frame frame = frames[wireFormat.ordinal()];
+            if ( frame == null ) {
+                frame = frames[wireFormat.ordinal()] = encoder.apply( wireFormat );
+            }
+            recipients[i].send( frame );
+        }
+        serverMetrics.routed( count, true );
+    }
+
+    /**
+     * Routes a binary {@link #MESSAGE} to the client with the id or to {@link #ALL_ID}.
+     * The text is copied into the outgoing frames without being decoded.
+     *
+     * @param sender the sending client
+     * @param recipientId id of the recipient
+     * @param utf8Text the message text between position and limit
+     */
+    public void routeMessage( ClientConnection sender,
+                              int recipientId,
+                              ByteBuffer utf8Text ){
+        if ( recipientId != ALL_ID ) {
+            ClientConnection clientConnection = clientRegistry.get( recipientId );
+            if ( clientConnection != null ) {
+                clientConnection.send( clientConnection.getWireFormat().encodeMessage( utf8Text, 1 ) );
+            }
+            serverMetrics.routed( clientConnection != null ? 1 : 0, false );
+        }
+        else{
+            broadcast( ( wireFormat, sequence, fanOut ) ->
+                           sequence == 0 ? wireFormat.encodeMessage( utf8Text, fanOut )
+                                         : wireFormat.encodeJournalMessage( sequence, utf8Text, fanOut ),
+                       sender.getClientName(), true );
+        }
+    }
+
+    /**
+     * Sends a directed message forwarded by another node to the local user,
+     * or keeps it in {@link #offlineStore} if the user is logged on nowhere and this node owns the name.
+     * A user that moved to yet another node meanwhile does not get it, messages are forwarded only once.
+     *
+     * @param clientName the recipient
+     * @param utf8Text the message text between position and limit
+     */
+    public void deliverForwarded( String clientName,
+                                  ByteBuffer utf8Text ){
+        ClientConnection clientConnection = clientRegistry.get( clientName );
+        if ( clientConnection != null && !( clientConnection instanceof RemoteConnection ) ) {
+            clientConnection.send( clientConnection.getWireFormat().encodeMessage( utf8Text, 1 ) );
+            serverMetrics.routed( 1, false );
+        }
+        else if ( clientConnection == null && offlineStore != null && clusterNode.isOwner( clientName ) ) {
+            offlineStore.store( clientName, StandardCharsets.UTF_8.decode( utf8Text.duplicate() ).toString() );
+        }
+    }
+
+    /**
+     * Sends a message to {@link #ALL} forwarded by another node to the local clients
+     *
+     * @param senderName the user that sent it
+     * @param utf8Text the message text between position and limit
+     */
+    public void broadcastForwarded( String senderName,
+                                    ByteBuffer utf8Text ){
+        broadcast( ( wireFormat, sequence, fanOut ) ->
+                       sequence == 0 ? wireFormat.encodeMessage( utf8Text, fanOut )
+                                     : wireFormat.encodeJournalMessage( sequence, utf8Text, fanOut ),
+                   senderName, false );
+    }
+
+    /**
+     * Sends a message to {@link #ALL}, every {@link Frame} encoded at most once per {@link WireFormat}.
+     * With a {@link #messageJournal} the message is appended to it first and clients with {@link #FEATURE_JOURNAL}
+     * get it as a {@link #JOURNAL_MESSAGE}; if the append fails it goes out unjournaled.
+     * Every node of a cluster journals and sends the messages to its own clients.
+     * Clients with a sender filter get it only if they subscribed to the sender, see {@link #broadcastRecipients(String)}.
+     *
+     * @param broadcastEncoder encodes the message
+     * @param senderName the user that sent it
+     * @param forward true to forward the message to the other nodes of {@link #clusterNode}
+     */
+    private void broadcast( BroadcastEncoder broadcastEncoder,
+                            String senderName,
+                            boolean forward ){
+        if ( forward && clusterNode != null ) {
+            ByteBuffer utf8Text = broadcastEncoder.encode( WireFormat.TEXT, 0, 1 ).buffer();
+            utf8Text.position( utf8Text.position() + 1 );
+            utf8Text.limit( utf8Text.limit() - 1 );
+            clusterNode.forwardAll( senderName, utf8Text );
+        }
+        if ( messageJournal == null ) {
+            sendAll( broadcastRecipients( senderName ), broadcastEncoder, null );
+            return;
+        }
+        journalLock.lock();
+        try {
+            ClientConnection[] clients = broadcastRecipients( senderName );
+            long sequence = messageJournal.getLastSequence() + 1;
+            Frame[] journalFrames = new Frame[ WireFormat.values().length ];
+            for ( WireFormat wireFormat : WireFormat.values() ) {
+                journalFrames[wireFormat.ordinal()] = broadcastEncoder.encode( wireFormat, sequence, clients.length );
+            }
+            try {
+                messageJournal.append( journalFrames );
+            }
+            catch ( IOException ioException ) {
+                ServerLog.info( "ChatServer: journal append failed: " + ioException.getMessage() );
+                journalFrames = null;
+            }
+            sendAll( clients, broadcastEncoder, journalFrames );
+        }
+        finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * @param senderName the sender of a message to {@link #ALL}
+     *
+     * @return the clients without a sender filter and the ones subscribed to the sender, each once:
+     * two precomputed arrays, no filter is looked at
+     */
+    private ClientConnection[] broadcastRecipients( String senderName ){
+        ClientConnection[] clients = clientRegistry.getUnfilteredClients();
+        ClientConnection[] subscribers = subscriptionRegistry.getSubscribers( senderName );
+        if ( subscribers.length == 0 ) {
+            return clients;
+        }
+        ClientConnection[] recipients = new ClientConnection[ clients.length + subscribers.length ];
+        System.arraycopy( clients, 0, recipients, 0, clients.length );
+        System.arraycopy( subscribers, 0, recipients, clients.length, subscribers.length );
+        return recipients;
+    }
+
+    /**
+     * Sets the sender filter of a client from a {@link #SUBSCRIBE} line, the names after
+     * <code>cme.maxSubscriptions</code> are ignored
+     *
+     * @param clientConnection the client
+     * @param line {@link #SUBSCRIBE} and the sender names separated by {@link #COMMA}, none to drop the filter
+     */
+    public void subscribe( ClientConnection clientConnection,
+                           String line ){
+        ArrayList<String> senderNames = new ArrayList<>();
+        for ( int start = 1, end; start < line.length() && senderNames.size() < serverConfig.getMaxSubscriptions(); start = end + 1 ) {
+            end = line.indexOf( COMMA, start );
+            if ( end < 0 ) {
+                end = line.length();
+            }
+            if ( end > start ) {
+                senderNames.add( line.substring( start, end ) );
+            }
+        }
+        subscribe( clientConnection, senderNames, !senderNames.isEmpty() );
+    }
+
+    /**
+     * Sets the sender filter of a client from a binary {@link #SUBSCRIBE}, unknown ids are skipped
+     * and the ids after <code>cme.maxSubscriptions</code> ignored
+     *
+     * @param clientConnection the client
+     * @param body the varint number of senders and their varint ids, none to drop the filter
+     *
+     * @throws IOException if the frame is malformed
+     */
+    public void subscribe( ClientConnection clientConnection,
+                           ByteBuffer body ) throws IOException {
+        int ids = BinaryCodec.getVarint( body );
+        ArrayList<String> senderNames = new ArrayList<>();
+        for ( int i = 0; i < ids && i < serverConfig.getMaxSubscriptions(); i++ ) {
+            ClientConnection sender = clientRegistry.get( BinaryCodec.getVarint( body ) );
+            if ( sender != null ) {
+                senderNames.add( sender.getClientName() );
+            }
+        }
+        subscribe( clientConnection, senderNames, ids > 0 );
+    }
+
+    /**
+     * A client being filtered leaves {@link ClientRegistry#getUnfilteredClients()} before it subscribes
+     * and goes back after it unsubscribed, so no message reaches it twice while its filter changes
+     *
+     * @param clientConnection the client
+     * @param senderNames the senders it wants messages from
+     * @param filtering false to drop the filter
+     */
+    private void subscribe( ClientConnection clientConnection,
+                            ArrayList<String> senderNames,
+                            boolean filtering ){
+        if ( !filtering ) {
+            subscriptionRegistry.unsubscribe( clientConnection );
+            clientRegistry.setFiltering( clientConnection, false );
+        }
+        else if ( clientRegistry.setFiltering( clientConnection, true ) ) {
+            subscriptionRegistry.subscribe( clientConnection, senderNames );
+            if ( clientRegistry.get( clientConnection.getClientId() ) != clientConnection ) {
+                // logged out meanwhile
+                subscriptionRegistry.unsubscribe( clientConnection );
+            }
+        }
+    }
+
+    /**
+     * @param clients the recipients, {@link RemoteConnection}s among them are left to their own node
+     * @param broadcastEncoder encodes the {@link #MESSAGE}
+     * @param journalFrames the {@link #JOURNAL_MESSAGE} per {@link WireFormat} for clients with
+     *                      {@link #FEATURE_JOURNAL}, null if the message is not journaled
+     */
+    private void sendAll( ClientConnection[] clients,
+                          BroadcastEncoder broadcastEncoder,
+                          Frame[] journalFrames ){
+        Frame[] frames = new Frame[ WireFormat.values().length ];
+        for ( ClientConnection clientConnection : clients ){
+            if ( clientConnection instanceof RemoteConnection ) {
+                continue;
+            }
+            WireFormat wireFormat = clientConnection.getWireFormat();
+            if ( journalFrames != null && clientConnection.hasFeature( FEATURE_JOURNAL ) ) {
+                clientConnection.send( journalFrames[wireFormat.ordinal()] );
+                continue;
+            }
+            Frame frame = frames[wireFormat.ordinal()];
+            if ( frame == null ) {
+                frame = frames[wireFormat.ordinal()] = broadcastEncoder.encode( wireFormat, 0, clients.length );
+            }
+            clientConnection.send( frame );
+        }
+        serverMetrics.routed( clients.length, true );
+    }
+
+    /**
+     * Sends a client the journaled messages after a sequence number, straight from the journal files,
+     * followed by a {@link #REPLAY} with the last sequence number. Ignored without a {@link #messageJournal}
+     * or {@link #FEATURE_JOURNAL}.
+     *
+     * @param clientConnection the client
+     * @param afterSequence the last sequence number the client has
+     */
+    public void replayJournal( ClientConnection clientConnection,
+                               long afterSequence ){
+        if ( messageJournal == null || !clientConnection.hasFeature( FEATURE_JOURNAL ) ) {
+            return;
+        }
+        journalLock.lock();
+        try {
+            WireFormat wireFormat = clientConnection.getWireFormat();
+            for ( ByteBuffer view : messageJournal.read( wireFormat, afterSequence ) ) {
+                clientConnection.send( Frame.view( view ) );
+            }
+            clientConnection.send( wireFormat.encodeReplayEnd( messageJournal.getLastSequence() ) );
+        }
+        finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a client to a room and answers with a {@link #ROOM_JOIN}, or with a {@link #ROOM_LEAVE}
+     * if the name is invalid or the client is in to many rooms
+     *
+     * @param clientConnection the client
+     * @param roomName the room
+     */
+    public void joinRoom( ClientConnection clientConnection,
+                          String roomName ){
+        char reply = roomRegistry.join( roomName, clientConnection ) ? ROOM_JOIN : ROOM_LEAVE;
+        clientConnection.send( clientConnection.getWireFormat().encodeRoomReply( reply, roomName ) );
+    }
+
+    /**
+     * Takes a client out of a room
+     *
+     * @param clientConnection the client
+     * @param roomName the room
+     */
+    public void leaveRoom( ClientConnection clientConnection,
+                           String roomName ){
+        roomRegistry.leave( roomName, clientConnection );
+    }
+
+    /**
+     * Routes a {@link #ROOM_MESSAGE} line to the members of the room, only members may send to a room.
+     * The members get a {@link #ROOM_MESSAGE} too, naming the room. The cost is the size of the room, not the number of clients.
+     *
+     * @param sender the sending client
+     * @param line {@link #ROOM_MESSAGE}, the room, {@link #SEPERATOR} and the text
+     */
+    public void routeRoomMessage( ClientConnection sender,
+                                  String line ){
+        int seperatorPosition = line.indexOf( SEPERATOR, 1 );
+        if ( seperatorPosition < 0 ) {
+            return;
+        }
+        String roomName = line.substring( 1, seperatorPosition );
+        ClientConnection[] members = roomRegistry.getMembers( roomName );
+        if ( !isMember( sender, members ) ) {
+            return;
+        }
+        Frame[] frames = new Frame[ WireFormat.values().length ];
+        for ( ClientConnection clientConnection : members ){
+            WireFormat wireFormat = clientConnection.getWireFormat();
+            Frame frame = frames[wireFormat.ordinal()];
+            if ( frame == null ) {
+                frame = frames[wireFormat.ordinal()] = wireFormat.encodeRoomMessage( roomName, line, seperatorPosition + 1, members.length );
+            }
+            clientConnection.send( frame );
+        }
+        serverMetrics.routed( members.length, true );
+    }
+
+    /**
+     * Routes a binary {@link #ROOM_MESSAGE} to the members of the room, only members may send to a room.
+     *
+     * @param sender the sending client
+     * @param roomName the room
+     * @param utf8Text the message text between position and limit
+     */
+    public void routeRoomMessage( ClientConnection sender,
+                                  String roomName,
+                                  ByteBuffer utf8Text ){
+        ClientConnection[] members = roomRegistry.getMembers( roomName );
+        if ( !isMember( sender, members ) ) {
+            return;
+        }
+        Frame[] frames = new Frame[ WireFormat.values().length ];
+        for ( ClientConnection clientConnection : members ){
+            WireFormat wireFormat = clientConnection.getWireFormat();
+            Frame frame = frames[wireFormat.ordinal()];
+            if ( frame == null ) {
+                frame = frames[wireFormat.ordinal()] = wireFormat.encodeRoomMessage( roomName, utf8Text, members.length );
+            }
+            clientConnection.send( frame );
+        }
+        serverMetrics.routed( members.length, true );
+    }
+
+    /**
+     * @param clientConnection a client
+     * @param members the members of a room
+     *
+     * @return true if the client is one of them
+     */
+    private static boolean isMember( ClientConnection clientConnection,
+                                     ClientConnection[] members ){
+        return isMember( clientConnection, members, members.length );
+    }
+
+    /**
+     * @param clientConnection a client
+     * @param members holds the clients
+     * @param count the number of clients in members
+     *
+     * @return true if the client is one of them
+     */
+    private static boolean isMember( ClientConnection clientConnection,
+                                     ClientConnection[] members,
+                                     int count ){
+        for ( int i = 0; i < count; i++ ) {
+            if ( members[i] == clientConnection ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the roster to one client that asked for it again
+     *
+     * @param clientConnection the client
+     */
+    public void sendUserList( ClientConnection clientConnection ){
+        rosterPublisher.sendRoster( clientConnection );
+    }
+
+    /**
+     * @return {@link #admissionControl}
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * @return {@link #roomRegistry}
+     */
+    public RoomRegistry getRoomRegistry() {
+        return roomRegistry;
+    }
+
+    /**
+     * @return {@link #subscriptionRegistry}
+     */
+    public SubscriptionRegistry getSubscriptionRegistry() {
+        return subscriptionRegistry;
+    }
+
+    /**
+     * @return {@link #clientRegistry}
+     */
+    public ClientRegistry getClientRegistry() {
+        return clientRegistry;
+    }
+
+    /**
+     * Shuts down, letting the clients leave on their own:
+     * <UL>
+     *     <LI>stops accepting; the connections already in the accept backlog are still taken and told to reconnect
+     *     once they logged on, so only a connection arriving after the last look at the backlog is reset.
+     *     With <code>cme.reusePort</code> a new server on the same port gets the new connections.</LI>
+     *     <LI>sends every local client a {@link #RECONNECT}, queued after all else for it, with a random delay up to
+     *     <code>cme.drain.reconnectSpreadMillis</code> so the clients do not all come back at once</LI>
+     *     <LI>keeps routing while the clients leave, up to <code>cme.drain.timeoutMillis</code>,
+     *     then disconnects the rest, which lose what they have not read yet, and {@link #close()}s</LI>
+     * </UL>
+     * Runs from a shutdown hook, so stopping the process drains it. A second call waits for the first to finish.
+     */
+    public void drain(){
+        if ( !draining.compareAndSet( false, true ) ) {
+            try {
+                drained.await();
+            }
+            catch ( InterruptedException interruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        try {
+            if ( serverSocketChannel != null && !acceptorDone.await( 10 * ACCEPT_POLL_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                // no acceptor is running
+                stopAccepting();
+            }
+            int localClients = 0;
+            for ( ClientConnection clientConnection : clientRegistry.getClients() ) {
+                if ( !( clientConnection instanceof RemoteConnection ) ) {
+                    sendReconnect( clientConnection );
+                    localClients++;
                 }
             }
-            String stringBuilderString = stringBuilder.toString();
-            System.out.println( stringBuilderString );
-            for ( String clientThreadName : clientThreadHashMap.keySet() ) {
-                clientThreadHashMap.get( clientThreadName ).getPrintWriter().println( stringBuilderString );
+            System.out.println( "ChatServer: draining " + localClients + " clients" );
+            localClients = awaitLocalClients( serverConfig.getDrainTimeoutMillis() );
+            for ( ClientConnection clientConnection : clientRegistry.getClients() ) {
+                if ( !( clientConnection instanceof RemoteConnection ) ) {
+                    clientConnection.close();
+                }
             }
+            System.out.println( "ChatServer: drained, " + localClients + " clients disconnected" );
+            // the connections log out on their own threads
+            awaitLocalClients( DRAIN_LOGOUT_MILLIS );
+        }
+        catch ( InterruptedException interruptedException ) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            close();
+            drained.countDown();
         }
     }
 
     /**
-     * @return {@link #clientThreadHashMap}
+     * Waits for the local clients to log out
+     *
+     * @param timeoutMillis the longest wait
+     *
+     * @return the number of local clients still logged on
+     *
+     * @throws InterruptedException if interrupted
      */
-    public HashMap<String, ServerThread> getClientThreadHashMap() {
-        return clientThreadHashMap;
+    private int awaitLocalClients( long timeoutMillis ) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        while ( true ) {
+            int localClients = 0;
+            for ( ClientConnection clientConnection : clientRegistry.getClients() ) {
+                if ( !( clientConnection instanceof RemoteConnection ) ) {
+                    localClients++;
+                }
+            }
+            if ( localClients == 0 || System.nanoTime() >= deadline ) {
+                return localClients;
+            }
+            Thread.sleep( 100 );
+        }
     }
 
     /**
-     * Removes the client name from {@link #clientThreadHashMap}
+     * Sends a {@link #RECONNECT} with a random delay up to <code>cme.drain.reconnectSpreadMillis</code>
      *
-     * @param clientName
+     * @param clientConnection the client
      */
-    public void removeServerThread( String clientName ){
-        clientThreadHashMap.remove( clientName );
+    private void sendReconnect( ClientConnection clientConnection ){
+        int delayMillis = ThreadLocalRandom.current().nextInt( Math.max( 0, serverConfig.getDrainReconnectSpreadMillis() ) + 1 );
+        clientConnection.send( clientConnection.getWireFormat().encodeReconnect( delayMillis ) );
     }
 
     /**
-     * closes {@link #serverSocket}
+     * closes {@link #serverSocket}, leaves the cluster, stops {@link #rosterPublisher}, {@link #idleReaper},
+     * {@link #serverMetrics}, {@link #offlineStore} and the {@link #ioLoops} and forces {@link #messageJournal} to disk
      */
     public void close(){
+        if ( clusterNode != null ) {
+            clusterNode.close();
+        }
+        rosterPublisher.close();
+        idleReaper.close();
+        serverMetrics.stop();
+        if ( offlineStore != null ) {
+            offlineStore.close();
+        }
+        if ( messageJournal != null ) {
+            journalLock.lock();
+            try {
+                messageJournal.close();
+            }
+            finally {
+                journalLock.unlock();
+            }
+        }
+        if ( tlsTaskExecutor != null ) {
+            tlsTaskExecutor.shutdownNow();
+        }
+        IoLoop[] loops = ioLoops;
+        if ( loops != null ) {
+            for ( IoLoop ioLoop : loops ) {
+                if ( ioLoop != null ) {
+                    ioLoop.close();
+                }
+            }
+        }
+        if ( serverSocket == null ) {
+            return;
+        }
         try {
             serverSocket.close();
         } catch ( IOException ioException ){
@@ -197,17 +1464,46 @@ public class ChatServer implements Protocol{
      * @param args
      */
     public static void main( String[] args ){
+        try {
+            ServerConfig.fromSystemProperties();
+        }
+        catch ( IllegalArgumentException illegalArgumentException ) {
+            System.err.println( "ChatServer: " + illegalArgumentException.getMessage() );
+            System.exit( 1 );
+        }
+        ServerMode serverMode = ServerMode.THREAD;
+        int argCount = args.length;
+        if ( argCount > 1 && ServerMode.parse( args[argCount - 1] ) != null ){
+            serverMode = ServerMode.parse( args[argCount - 1] );
+            argCount--;
+        }
 
-        if ( args.length == 1 ){
-            ChatServer server = new ChatServer( Integer.parseInt( args[0] ) );
+        if ( argCount == 1 ){
+            ChatServer server = new ChatServer( Integer.parseInt( args[0] ), serverMode );
         }
-        else if ( args.length == 2 ){
+        else if ( argCount == 2 ){
             System.out.println( args[1] + " : " + args[0]);
-            ChatServer server = new ChatServer( Integer.parseInt( args[0] ), args[1] );
+            ChatServer server = new ChatServer( Integer.parseInt( args[0] ), args[1], serverMode );
         }
         else  {
-            System.out.println( "Usage: java ChatServer port <server-name>" );
+            System.out.println( "Usage: java ChatServer port <server-name> <thread|virtual|nio>" );
             System.exit( 1 );
         }
     }
+
+    /**
+     * Encodes one message to {@link #ALL} for {@link #broadcast(BroadcastEncoder, String, boolean)}
+     */
+    private interface BroadcastEncoder {
+        /**
+         * @param wireFormat the format
+         * @param sequence the journal sequence number for a {@link #JOURNAL_MESSAGE}, 0 for a {@link #MESSAGE}
+         * @param fanOut number of clients the frame will be sent to
+         *
+         * @return the frame
+         */
+        Frame encode( WireFormat wireFormat,
+                      long sequence,
+                      int fanOut );
+    }
 }
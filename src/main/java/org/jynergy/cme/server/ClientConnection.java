@@ -0,0 +1,56 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+/**
+ * A logged on client as seen by {@link ChatServer}, independent of how its socket is serviced
+ */
+public interface ClientConnection {
+    /**
+     * @return the name the client logged on with, null before the name handshake
+     */
+    public String getClientName();
+
+    /**
+     * @return the id the {@link ClientRegistry} gave the client, used by {@link WireFormat#BINARY}
+     */
+    public int getClientId();
+
+    /**
+     * @param clientId the id the {@link ClientRegistry} gave the client
+     */
+    public void setClientId( int clientId );
+
+    /**
+     * @return the format every {@link Frame} sent to this client must be encoded in
+     */
+    public WireFormat getWireFormat();
+
+    /**
+     * @param feature a feature char such as {@link org.jynergy.cme.protocol.Protocol#FEATURE_USER_DELTAS}
+     *
+     * @return true if it was agreed on in the {@link Handshake}
+     */
+    public boolean hasFeature( char feature );
+
+    /**
+     * Writes one encoded {@link org.jynergy.cme.protocol.Protocol} message to the client.
+     * The frame is encoded in {@link #getWireFormat()}, may be shared with other clients and is never modified.
+     *
+     * @param frame the encoded message
+     */
+    public void send( Frame frame );
+
+    /**
+     * @return the number of frames waiting to be written to the client
+     */
+    public int getQueuedFrames();
+
+    /**
+     * Closes the connection to the client
+     */
+    public void close();
+}
@@ -0,0 +1,255 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The logged on clients of a {@link ChatServer}.
+ * <UL>
+ *     <LI>directed lookups by id or name go to a {@link ConnectionTable}, never lock and never box or copy a key</LI>
+ *     <LI>broadcasts iterate a copy on write array of the clients without a sender filter that joins, leaves and
+ *     {@link #setFiltering(ClientConnection, boolean)} replace, never lock</LI>
+ *     <LI>only joins and leaves serialize among themselves, to keep the size limit and the array exact</LI>
+ * </UL>
+ */
+public class ClientRegistry implements Protocol {
+    /**
+     * Shared empty {@link #clients}
+     */
+    private static final ClientConnection[] NO_CLIENTS = new ClientConnection[0];
+
+    /**
+     * The clients by the hash of their names, written under {@link #membershipLock}
+     */
+    private final ConnectionTable clientsByName = new ConnectionTable();
+
+    /**
+     * The clients by their ids, written under {@link #membershipLock}
+     */
+    private final ConnectionTable clientsById = new ConnectionTable();
+
+    /**
+     * Id given to the next client, ids are never reused
+     */
+    private int nextClientId = ALL_ID + 1;
+
+    /**
+     * Raised by one on every join and leave
+     */
+    private volatile int version;
+
+    /**
+     * All clients in logon order, replaced as a whole on every join and leave
+     */
+    private volatile ClientConnection[] clients = NO_CLIENTS;
+
+    /**
+     * The clients in {@link #clients} that have no sender filter, in logon order, replaced as a whole with it
+     */
+    private volatile ClientConnection[] unfilteredClients = NO_CLIENTS;
+
+    /**
+     * The clients with a sender filter, guarded by {@link #membershipLock}
+     */
+    private final HashSet<ClientConnection> filteringClients = new HashSet<>();
+
+    /**
+     * Number of {@link RemoteConnection}s in {@link #clients}, which do not count against the size limit
+     */
+    private int remoteClients;
+
+    /**
+     * Serializes joins and leaves
+     */
+    private final ReentrantLock membershipLock = new ReentrantLock();
+
+    /**
+     * Adds a client and gives it an id
+     *
+     * @param clientName the name of the client
+     * @param clientConnection the connection of the client
+     * @param maxClients the most local clients allowed at once
+     *
+     * @return 0 if added, otherwise {@link #TO_MANY_USERS} or {@link #USER_EXISTS}
+     */
+    public char add( String clientName,
+                     ClientConnection clientConnection,
+                     int maxClients ){
+        membershipLock.lock();
+        try {
+            boolean remote = clientConnection instanceof RemoteConnection;
+            if ( !remote && clients.length - remoteClients >= maxClients ) {
+                return TO_MANY_USERS;
+            }
+            if ( get( clientName ) != null ) {
+                return USER_EXISTS;
+            }
+            if ( remote ) {
+                remoteClients++;
+            }
+            clientConnection.setClientId( nextClientId++ );
+            clientsByName.put( clientName.hashCode(), clientConnection );
+            clientsById.put( clientConnection.getClientId(), clientConnection );
+            ClientConnection[] newClients = Arrays.copyOf( clients, clients.length + 1 );
+            newClients[clients.length] = clientConnection;
+            clients = newClients;
+            ClientConnection[] newUnfilteredClients = Arrays.copyOf( unfilteredClients, unfilteredClients.length + 1 );
+            newUnfilteredClients[unfilteredClients.length] = clientConnection;
+            unfilteredClients = newUnfilteredClients;
+            version++;
+            return 0;
+        }
+        finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client if it is still registered
+     *
+     * @param clientConnection the connection of the client
+     *
+     * @return true if it was removed
+     */
+    public boolean remove( ClientConnection clientConnection ){
+        String clientName = clientConnection.getClientName();
+        if ( clientName == null ) {
+            return false;
+        }
+        membershipLock.lock();
+        try {
+            if ( !clientsByName.remove( clientName.hashCode(), clientConnection ) ) {
+                return false;
+            }
+            clientsById.remove( clientConnection.getClientId(), clientConnection );
+            if ( clientConnection instanceof RemoteConnection ) {
+                remoteClients--;
+            }
+            ClientConnection[] oldClients = clients;
+            ClientConnection[] newClients = new ClientConnection[ oldClients.length - 1 ];
+            int index = 0;
+            for ( ClientConnection client : oldClients ) {
+                if ( client != clientConnection ) {
+                    newClients[index++] = client;
+                }
+            }
+            clients = newClients;
+            filteringClients.remove( clientConnection );
+            unfilteredClients = unfiltered( newClients );
+            version++;
+            return true;
+        }
+        finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * @param clientName name of a client
+     *
+     * @return the client or null if there is none with that name
+     */
+    public ClientConnection get( String clientName ){
+        return clientsByName.get( clientName, 0, clientName.length() );
+    }
+
+    /**
+     * @param text holds the name of a client
+     * @param start index of the first char of the name
+     * @param end index after the last char of the name
+     *
+     * @return the client or null if there is none with that name
+     */
+    public ClientConnection get( CharSequence text,
+                                 int start,
+                                 int end ){
+        return clientsByName.get( text, start, end );
+    }
+
+    /**
+     * @param clientId id of a client
+     *
+     * @return the client or null if there is none with that id
+     */
+    public ClientConnection get( int clientId ){
+        return clientsById.get( clientId );
+    }
+
+    /**
+     * @return a stable snapshot of all clients, must not be modified
+     */
+    public ClientConnection[] getClients(){
+        return clients;
+    }
+
+    /**
+     * @return a stable snapshot of the clients without a sender filter, must not be modified
+     */
+    public ClientConnection[] getUnfilteredClients(){
+        return unfilteredClients;
+    }
+
+    /**
+     * Moves a client out of or back into {@link #getUnfilteredClients()}
+     *
+     * @param clientConnection the client
+     * @param filtering true if it has a sender filter now
+     *
+     * @return false if the client is not registered
+     */
+    public boolean setFiltering( ClientConnection clientConnection,
+                                 boolean filtering ){
+        membershipLock.lock();
+        try {
+            if ( clientsById.get( clientConnection.getClientId() ) != clientConnection ) {
+                return false;
+            }
+            if ( filtering ? filteringClients.add( clientConnection ) : filteringClients.remove( clientConnection ) ) {
+                unfilteredClients = unfiltered( clients );
+            }
+            return true;
+        }
+        finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * @return the clients not in {@link #filteringClients}, called under {@link #membershipLock}
+     */
+    private ClientConnection[] unfiltered( ClientConnection[] allClients ){
+        if ( filteringClients.isEmpty() ) {
+            return allClients;
+        }
+        ClientConnection[] newUnfilteredClients = new ClientConnection[ allClients.length ];
+        int count = 0;
+        for ( ClientConnection client : allClients ) {
+            if ( !filteringClients.contains( client ) ) {
+                newUnfilteredClients[count++] = client;
+            }
+        }
+        return Arrays.copyOf( newUnfilteredClients, count );
+    }
+
+    /**
+     * @return the roster version, raised by one on every join and leave
+     */
+    public int getVersion(){
+        return version;
+    }
+
+    /**
+     * @return the number of clients
+     */
+    public int size(){
+        return clients.length;
+    }
+}
@@ -0,0 +1,866 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One node of a cluster of {@link ChatServer}s sharing one user namespace.
+ * <UL>
+ *     <LI>Every node knows all members from <code>cme.cluster.members</code> and keeps one outgoing link to each,
+ *     which writes everything queued for it at once and reconnects when it breaks</LI>
+ *     <LI>Nodes gossip their local users: a join or leave as it happens and all of them every gossip interval.
+ *     Users of other nodes are registered as {@link RemoteConnection}s, so rosters and directed messages span
+ *     the cluster; they are dropped when the link from their node breaks.</LI>
+ *     <LI>Messages to {@link org.jynergy.cme.protocol.Protocol#ALL} are forwarded once to every node with the name of their sender,
+ *     which sends them to its local users only</LI>
+ *     <LI>Every name has an owner on a {@link HashRing}. A node asks the owner to claim a name before logging a
+ *     user on, so a name is used once in the whole cluster; if the owner cannot be reached in time
+ *     the gossiped roster decides. The owner also keeps the {@link OfflineStore} mailbox of the name.</LI>
+ *     <LI>A node listens on the host and port it has in the members only. It sends every incoming link a random
+ *     challenge and trusts the link only if its {@link #HELLO} answers it with the HMAC of the shared
+ *     <code>cme.cluster.secret</code>, so a host that is not a member cannot inject users or messages.</LI>
+ * </UL>
+ */
+public class ClusterNode {
+    private static final byte HELLO = 1;
+    private static final byte JOIN = 2;
+    private static final byte LEAVE = 3;
+    private static final byte SNAPSHOT = 4;
+    private static final byte DIRECT = 5;
+    private static final byte ALL = 6;
+    private static final byte CLAIM = 7;
+    private static final byte CLAIM_REPLY = 8;
+    private static final byte RELEASE = 9;
+
+    /**
+     * Most messages queued for one link, later ones are dropped while the node is unreachable
+     */
+    private static final int LINK_CAPACITY = 64 * 1024;
+
+    /**
+     * Most messages written by one batch
+     */
+    private static final int BATCH_LIMIT = 1024;
+
+    /**
+     * Time between attempts to connect a link
+     */
+    private static final long RECONNECT_MILLIS = 1000;
+
+    /**
+     * Longest wait for the challenge of a node and for the {@link #HELLO} of a link
+     */
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Length of the challenge sent to every incoming link
+     */
+    private static final int CHALLENGE_BYTES = 32;
+
+    /**
+     * The MAC answering the challenge, keyed with the shared secret
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Longest name in a link message, in the modified UTF-8 bytes of {@link DataOutputStream#writeUTF(String)}
+     */
+    private static final int MAX_NAME_BYTES = 65535;
+
+    /**
+     * Id of this node
+     */
+    private final String nodeId;
+
+    /**
+     * Address of every node by id, this one included
+     */
+    private final LinkedHashMap<String,InetSocketAddress> members;
+
+    /**
+     * The key of the {@link #MAC_ALGORITHM} answering a challenge, the shared secret of all nodes
+     */
+    private final SecretKeySpec secretKey;
+
+    /**
+     * Makes the challenges
+     */
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * The owners of the names
+     */
+    private final HashRing hashRing;
+
+    /**
+     * The server of this node
+     */
+    private final ChatServer chatServer;
+
+    /**
+     * Time between two gossips of all local users
+     */
+    private final long gossipMillis;
+
+    /**
+     * Longest wait for the owner of a name to answer a claim
+     */
+    private final long claimTimeoutMillis;
+
+    /**
+     * The outgoing link to every other node by id
+     */
+    private final HashMap<String,PeerLink> peerLinks = new HashMap<>();
+
+    /**
+     * The node holding each name this node owns
+     */
+    private final ConcurrentHashMap<String,String> claims = new ConcurrentHashMap<>();
+
+    /**
+     * Claims waiting for the answer of their owner, by request id
+     */
+    private final ConcurrentHashMap<Long,CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+
+    /**
+     * Id of the next claim request
+     */
+    private final AtomicLong nextClaimId = new AtomicLong();
+
+    /**
+     * Messages dropped because a link was full
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Gossips all local users
+     */
+    private final ScheduledExecutorService gossiper;
+
+    /**
+     * Takes the incoming links
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Set once {@link #close()} was called
+     */
+    private volatile boolean closed;
+
+    /**
+     * @param nodeId {@link #nodeId}, one of the members
+     * @param members the nodes as <code>id@host:port</code> seperated by commas, this one included
+     * @param secret the secret shared by all nodes, a link is only trusted if it knows it
+     * @param gossipMillis {@link #gossipMillis}
+     * @param claimTimeoutMillis {@link #claimTimeoutMillis}
+     * @param chatServer {@link #chatServer}
+     *
+     * @throws IllegalArgumentException if the members are malformed or do not include nodeId or the secret is empty
+     */
+    public ClusterNode( String nodeId,
+                        String members,
+                        String secret,
+                        long gossipMillis,
+                        long claimTimeoutMillis,
+                        ChatServer chatServer ){
+        this.nodeId = nodeId;
+        this.members = parseMembers( members );
+        if ( !this.members.containsKey( nodeId ) ) {
+            throw new IllegalArgumentException( "node " + nodeId + " is not one of " + members );
+        }
+        if ( secret.isEmpty() ) {
+            throw new IllegalArgumentException( "cme.cluster.secret is not set" );
+        }
+        this.secretKey = new SecretKeySpec( secret.getBytes( StandardCharsets.UTF_8 ), MAC_ALGORITHM );
+        this.hashRing = new HashRing( this.members.keySet() );
+        this.gossipMillis = gossipMillis;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.chatServer = chatServer;
+        this.gossiper = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "ChatServer-gossip" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * @param members the nodes as <code>id@host:port</code> seperated by commas
+     *
+     * @return the address of every node by id
+     */
+    private static LinkedHashMap<String,InetSocketAddress> parseMembers( String members ){
+        LinkedHashMap<String,InetSocketAddress> addresses = new LinkedHashMap<>();
+        for ( String member : members.split( "," ) ) {
+            member = member.trim();
+            int at = member.indexOf( '@' );
+            int colon = member.lastIndexOf( ':' );
+            if ( at <= 0 || colon < at ) {
+                throw new IllegalArgumentException( "member " + member + " is not id@host:port" );
+            }
+            addresses.put( member.substring( 0, at ),
+                           new InetSocketAddress( member.substring( at + 1, colon ), Integer.parseInt( member.substring( colon + 1 ) ) ) );
+        }
+        return addresses;
+    }
+
+    /**
+     * Listens on the address of this node for the links of the other nodes, connects to them and starts gossiping
+     *
+     * @throws IOException if the address of this node cannot be bound
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind( members.get( nodeId ) );
+        Thread acceptThread = new Thread( this::acceptLinks, "ChatServer-cluster-accept" );
+        acceptThread.setDaemon( true );
+        acceptThread.start();
+        for ( Map.Entry<String,InetSocketAddress> member : members.entrySet() ) {
+            if ( !member.getKey().equals( nodeId ) ) {
+                PeerLink peerLink = new PeerLink( member.getKey(), member.getValue() );
+                peerLinks.put( member.getKey(), peerLink );
+                Thread thread = new Thread( peerLink, "ChatServer-cluster-" + member.getKey() );
+                thread.setDaemon( true );
+                thread.start();
+            }
+        }
+        gossiper.scheduleWithFixedDelay( this::gossip, gossipMillis, gossipMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * @return {@link #nodeId}
+     */
+    public String getNodeId(){
+        return nodeId;
+    }
+
+    /**
+     * @param clientName a user name
+     *
+     * @return true if this node owns the name
+     */
+    public boolean isOwner( String clientName ){
+        return hashRing.owner( clientName ).equals( nodeId );
+    }
+
+    /**
+     * Claims a name for a user logging on at this node, asking its owner if that is another node.
+     * Blocks for at most {@link #claimTimeoutMillis}.
+     *
+     * @param clientName the name
+     *
+     * @return false if the name is held at a node or too long for a link message,
+     * true if it was claimed or the owner could not be reached
+     */
+    public boolean claim( String clientName ){
+        if ( !fits( clientName ) ) {
+            return false;
+        }
+        String owner = hashRing.owner( clientName );
+        if ( owner.equals( nodeId ) ) {
+            return claims.putIfAbsent( clientName, nodeId ) == null;
+        }
+        PeerLink peerLink = peerLinks.get( owner );
+        if ( !peerLink.connected ) {
+            return true;
+        }
+        long claimId = nextClaimId.incrementAndGet();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pendingClaims.put( claimId, reply );
+        peerLink.send( new Message( CLAIM ).putLong( claimId ).putString( clientName ).toByteArray() );
+        try {
+            return reply.get( claimTimeoutMillis, TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException | ExecutionException exception ) {
+            ServerLog.info( "ChatServer: no claim reply from " + owner + " for " + clientName );
+            return true;
+        }
+        catch ( InterruptedException interruptedException ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            pendingClaims.remove( claimId );
+        }
+    }
+
+    /**
+     * Gives back the claim of a name at its owner
+     *
+     * @param clientName the name
+     */
+    public void release( String clientName ){
+        if ( !fits( clientName ) ) {
+            return;
+        }
+        String owner = hashRing.owner( clientName );
+        if ( owner.equals( nodeId ) ) {
+            claims.remove( clientName, nodeId );
+        }
+        else {
+            peerLinks.get( owner ).send( new Message( RELEASE ).putString( clientName ).toByteArray() );
+        }
+    }
+
+    /**
+     * Tells the other nodes a user logged on here
+     *
+     * @param clientName the name
+     */
+    public void joined( String clientName ){
+        sendAll( new Message( JOIN ).putString( clientName ).toByteArray() );
+    }
+
+    /**
+     * Tells the other nodes a user logged off here and releases its name
+     *
+     * @param clientName the name
+     */
+    public void left( String clientName ){
+        sendAll( new Message( LEAVE ).putString( clientName ).toByteArray() );
+        release( clientName );
+    }
+
+    /**
+     * Forwards a message to {@link org.jynergy.cme.protocol.Protocol#ALL} to every other node
+     *
+     * @param senderName the user that sent it, for the sender filters of the other nodes
+     * @param utf8Text the text between position and limit, left unchanged
+     */
+    public void forwardAll( String senderName,
+                            ByteBuffer utf8Text ){
+        sendAll( new Message( ALL ).putString( senderName ).putBytes( utf8Text ).toByteArray() );
+    }
+
+    /**
+     * Forwards a directed message to a node
+     *
+     * @param toNodeId the node
+     * @param clientName the recipient, dropped if longer than a link message takes, no user has such a name
+     * @param utf8Text the text between position and limit, left unchanged
+     */
+    public void forwardDirect( String toNodeId,
+                               String clientName,
+                               ByteBuffer utf8Text ){
+        PeerLink peerLink = peerLinks.get( toNodeId );
+        if ( peerLink != null && fits( clientName ) ) {
+            peerLink.send( new Message( DIRECT ).putString( clientName ).putBytes( utf8Text ).toByteArray() );
+        }
+    }
+
+    /**
+     * Forwards a directed message to the owner of the name, to be kept in its {@link OfflineStore}
+     *
+     * @param clientName the recipient, logged on nowhere
+     * @param utf8Text the text between position and limit, left unchanged
+     */
+    public void forwardToOwner( String clientName,
+                                ByteBuffer utf8Text ){
+        forwardDirect( hashRing.owner( clientName ), clientName, utf8Text );
+    }
+
+    /**
+     * @return the number of messages dropped because a link was full
+     */
+    public long getDropped(){
+        return dropped.sum();
+    }
+
+    /**
+     * Stops listening, linking and gossiping
+     */
+    public void close(){
+        closed = true;
+        gossiper.shutdownNow();
+        try {
+            if ( serverSocket != null ) {
+                serverSocket.close();
+            }
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+        }
+        for ( PeerLink peerLink : peerLinks.values() ) {
+            peerLink.close();
+        }
+    }
+
+    /**
+     * @param name a user name
+     *
+     * @return true if it fits in a link message; only such names are claimed, so every logged on user's does
+     */
+    private static boolean fits( String name ){
+        int bytes = 0;
+        for ( int i = 0; i < name.length() && bytes <= MAX_NAME_BYTES; i++ ) {
+            char c = name.charAt( i );
+            bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return bytes <= MAX_NAME_BYTES;
+    }
+
+    /**
+     * @param challenge the challenge of the node the link goes to
+     * @param peerId the id of the node the link comes from
+     *
+     * @return the answer to the challenge, the {@link #MAC_ALGORITHM} of both
+     */
+    private byte[] answer( byte[] challenge,
+                           String peerId ){
+        try {
+            Mac mac = Mac.getInstance( MAC_ALGORITHM );
+            mac.init( secretKey );
+            mac.update( challenge );
+            return mac.doFinal( peerId.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        catch ( GeneralSecurityException generalSecurityException ) {
+            throw new IllegalStateException( generalSecurityException );
+        }
+    }
+
+    private void sendAll( byte[] message ){
+        for ( PeerLink peerLink : peerLinks.values() ) {
+            peerLink.send( message );
+        }
+    }
+
+    /**
+     * Sends all local users to every other node
+     */
+    private void gossip(){
+        try {
+            sendAll( snapshot() );
+        }
+        catch ( RuntimeException runtimeException ) {
+            runtimeException.printStackTrace();
+        }
+    }
+
+    /**
+     * @return a {@link #SNAPSHOT} of the local users
+     */
+    private byte[] snapshot(){
+        ArrayList<String> names = new ArrayList<>();
+        for ( ClientConnection clientConnection : chatServer.getClientRegistry().getClients() ) {
+            if ( !( clientConnection instanceof RemoteConnection ) ) {
+                names.add( clientConnection.getClientName() );
+            }
+        }
+        Message message = new Message( SNAPSHOT ).putInt( names.size() );
+        for ( String name : names ) {
+            message.putString( name );
+        }
+        return message.toByteArray();
+    }
+
+    /**
+     * Takes the incoming links, each is read by its own thread
+     */
+    private void acceptLinks(){
+        while ( !closed ) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread( new InboundLink( socket ), "ChatServer-cluster-in" );
+                thread.setDaemon( true );
+                thread.start();
+            }
+            catch ( IOException ioException ) {
+                if ( !closed ) {
+                    ioException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds one link message
+     */
+    private static final class Message {
+        private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+        private final DataOutputStream dataOutputStream = new DataOutputStream( byteArrayOutputStream );
+
+        private Message( byte type ){
+            try {
+                dataOutputStream.writeByte( type );
+            }
+            catch ( IOException ioException ) {
+                throw new UncheckedIOException( ioException );
+            }
+        }
+
+        private Message putString( String value ){
+            try {
+                dataOutputStream.writeUTF( value );
+            }
+            catch ( IOException ioException ) {
+                throw new UncheckedIOException( ioException );
+            }
+            return this;
+        }
+
+        private Message putInt( int value ){
+            try {
+                dataOutputStream.writeInt( value );
+            }
+            catch ( IOException ioException ) {
+                throw new UncheckedIOException( ioException );
+            }
+            return this;
+        }
+
+        private Message putLong( long value ){
+            try {
+                dataOutputStream.writeLong( value );
+            }
+            catch ( IOException ioException ) {
+                throw new UncheckedIOException( ioException );
+            }
+            return this;
+        }
+
+        private Message putBytes( byte[] value ){
+            putInt( value.length );
+            byteArrayOutputStream.write( value, 0, value.length );
+            return this;
+        }
+
+        private Message putBoolean( boolean value ){
+            try {
+                dataOutputStream.writeBoolean( value );
+            }
+            catch ( IOException ioException ) {
+                throw new UncheckedIOException( ioException );
+            }
+            return this;
+        }
+
+        /**
+         * Puts the length and the bytes between position and limit, leaves the buffer unchanged
+         */
+        private Message putBytes( ByteBuffer byteBuffer ){
+            putInt( byteBuffer.remaining() );
+            for ( int i = byteBuffer.position(); i < byteBuffer.limit(); i++ ) {
+                byteArrayOutputStream.write( byteBuffer.get( i ) );
+            }
+            return this;
+        }
+
+        private byte[] toByteArray(){
+            return byteArrayOutputStream.toByteArray();
+        }
+    }
+
+    /**
+     * The outgoing link to one node. Messages are queued and written by its thread,
+     * everything queued at once in one batch with one flush.
+     */
+    private class PeerLink implements Runnable {
+        /**
+         * Id of the node
+         */
+        private final String peerId;
+
+        /**
+         * Address of the node
+         */
+        private final InetSocketAddress address;
+
+        /**
+         * Messages waiting to be written
+         */
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>( LINK_CAPACITY );
+
+        /**
+         * Set while connected
+         */
+        private volatile boolean connected;
+
+        /**
+         * The current socket, null while not connected
+         */
+        private volatile Socket socket;
+
+        private PeerLink( String peerId,
+                          InetSocketAddress address ){
+            this.peerId = peerId;
+            this.address = address;
+        }
+
+        /**
+         * Queues a message, dropped if the queue is full
+         */
+        private void send( byte[] message ){
+            if ( !queue.offer( message ) ) {
+                dropped.increment();
+            }
+        }
+
+        /**
+         * Connects, answers the challenge of the node, says hello with all local users
+         * and writes the queued messages until the link breaks, then again
+         */
+        public void run(){
+            ArrayList<byte[]> batch = new ArrayList<>();
+            while ( !closed ) {
+                try ( Socket socket = new Socket() ) {
+                    this.socket = socket;
+                    socket.connect( address, (int) RECONNECT_MILLIS );
+                    socket.setTcpNoDelay( true );
+                    socket.setSoTimeout( HELLO_TIMEOUT_MILLIS );
+                    byte[] challenge = new byte[ CHALLENGE_BYTES ];
+                    new DataInputStream( socket.getInputStream() ).readFully( challenge );
+                    DataOutputStream dataOutputStream =
+                        new DataOutputStream( new BufferedOutputStream( socket.getOutputStream(), 64 * 1024 ) );
+                    dataOutputStream.write( new Message( HELLO ).putString( nodeId ).putBytes( answer( challenge, nodeId ) ).toByteArray() );
+                    dataOutputStream.write( snapshot() );
+                    dataOutputStream.flush();
+                    connected = true;
+                    ServerLog.info( "ChatServer: linked to " + peerId );
+                    while ( !closed ) {
+                        batch.add( queue.take() );
+                        queue.drainTo( batch, BATCH_LIMIT - 1 );
+                        for ( byte[] message : batch ) {
+                            dataOutputStream.write( message );
+                        }
+                        dataOutputStream.flush();
+                        batch.clear();
+                    }
+                }
+                catch ( IOException ioException ) {
+                    if ( connected ) {
+                        ServerLog.info( "ChatServer: lost link to " + peerId + ": " + ioException.getMessage() );
+                    }
+                }
+                catch ( InterruptedException interruptedException ) {
+                    return;
+                }
+                finally {
+                    connected = false;
+                    this.socket = null;
+                    batch.clear();
+                }
+                try {
+                    Thread.sleep( RECONNECT_MILLIS );
+                }
+                catch ( InterruptedException interruptedException ) {
+                    return;
+                }
+            }
+        }
+
+        private void close(){
+            Socket current = socket;
+            if ( current != null ) {
+                try {
+                    current.close();
+                }
+                catch ( IOException ioException ) {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * An incoming link from one node, read by its own thread. The users it registers are its own,
+     * so a link that breaks takes exactly its users along.
+     */
+    private class InboundLink implements Runnable {
+        private final Socket socket;
+
+        /**
+         * Id of the node, from its {@link #HELLO}
+         */
+        private String peerId;
+
+        /**
+         * The users of the node registered through this link, by name
+         */
+        private final HashMap<String,RemoteConnection> remoteUsers = new HashMap<>();
+
+        private InboundLink( Socket socket ){
+            this.socket = socket;
+        }
+
+        /**
+         * Challenges the node and reads its messages once it answered, until the link breaks
+         */
+        public void run(){
+            try {
+                socket.setSoTimeout( HELLO_TIMEOUT_MILLIS );
+                byte[] challenge = new byte[ CHALLENGE_BYTES ];
+                secureRandom.nextBytes( challenge );
+                socket.getOutputStream().write( challenge );
+                DataInputStream dataInputStream = new DataInputStream( new BufferedInputStream( socket.getInputStream(), 64 * 1024 ) );
+                if ( dataInputStream.readByte() != HELLO ) {
+                    return;
+                }
+                String helloId = dataInputStream.readUTF();
+                int answerLength = dataInputStream.readInt();
+                if ( answerLength < 0 || answerLength > 1024 ) {
+                    return;
+                }
+                byte[] answer = new byte[ answerLength ];
+                dataInputStream.readFully( answer );
+                if ( !members.containsKey( helloId ) || helloId.equals( nodeId )
+                     || !MessageDigest.isEqual( answer, answer( challenge, helloId ) ) ) {
+                    ServerLog.info( "ChatServer: refused link from " + socket.getRemoteSocketAddress() );
+                    return;
+                }
+                peerId = helloId;
+                socket.setSoTimeout( 0 );
+                while ( !closed ) {
+                    receive( dataInputStream );
+                }
+            }
+            catch ( IOException ioException ) {
+                // the node went away
+            }
+            finally {
+                try {
+                    socket.close();
+                }
+                catch ( IOException ioException ) {
+                    // closing anyway
+                }
+                for ( RemoteConnection remoteConnection : remoteUsers.values() ) {
+                    chatServer.removeRemoteUser( remoteConnection );
+                }
+                if ( peerId != null ) {
+                    claims.values().removeIf( peerId::equals );
+                    ServerLog.info( "ChatServer: link from " + peerId + " closed" );
+                }
+            }
+        }
+
+        /**
+         * Reads and handles one message
+         */
+        private void receive( DataInputStream dataInputStream ) throws IOException {
+            byte type = dataInputStream.readByte();
+            switch ( type ) {
+                case JOIN: {
+                    String clientName = dataInputStream.readUTF();
+                    addUser( clientName );
+                    if ( isOwner( clientName ) ) {
+                        claims.putIfAbsent( clientName, peerId );
+                    }
+                    break;
+                }
+                case LEAVE:
+                    removeUser( dataInputStream.readUTF() );
+                    break;
+                case SNAPSHOT: {
+                    int count = dataInputStream.readInt();
+                    HashSet<String> names = new HashSet<>();
+                    for ( int i = 0; i < count; i++ ) {
+                        names.add( dataInputStream.readUTF() );
+                    }
+                    for ( String name : new ArrayList<>( remoteUsers.keySet() ) ) {
+                        if ( !names.contains( name ) ) {
+                            removeUser( name );
+                        }
+                    }
+                    for ( String name : names ) {
+                        if ( !remoteUsers.containsKey( name ) ) {
+                            addUser( name );
+                        }
+                        if ( isOwner( name ) ) {
+                            claims.putIfAbsent( name, peerId );
+                        }
+                    }
+                    break;
+                }
+                case DIRECT: {
+                    String clientName = dataInputStream.readUTF();
+                    chatServer.deliverForwarded( clientName, readBytes( dataInputStream ) );
+                    break;
+                }
+                case ALL: {
+                    String senderName = dataInputStream.readUTF();
+                    chatServer.broadcastForwarded( senderName, readBytes( dataInputStream ) );
+                    break;
+                }
+                case CLAIM: {
+                    long claimId = dataInputStream.readLong();
+                    String clientName = dataInputStream.readUTF();
+                    boolean granted = isOwner( clientName ) && claims.putIfAbsent( clientName, peerId ) == null;
+                    peerLinks.get( peerId ).send( new Message( CLAIM_REPLY ).putLong( claimId ).putBoolean( granted ).toByteArray() );
+                    break;
+                }
+                case CLAIM_REPLY: {
+                    CompletableFuture<Boolean> reply = pendingClaims.get( dataInputStream.readLong() );
+                    boolean granted = dataInputStream.readBoolean();
+                    if ( reply != null ) {
+                        reply.complete( granted );
+                    }
+                    break;
+                }
+                case RELEASE:
+                    claims.remove( dataInputStream.readUTF(), peerId );
+                    break;
+                default:
+                    throw new IOException( "unknown link message " + type + " from " + peerId );
+            }
+        }
+
+        private ByteBuffer readBytes( DataInputStream dataInputStream ) throws IOException {
+            int length = dataInputStream.readInt();
+            if ( length < 0 || length > LineFramer.MAX_LINE_LENGTH * 4 ) {
+                throw new IOException( "message of " + length + " bytes from " + peerId );
+            }
+            byte[] bytes = new byte[ length ];
+            dataInputStream.readFully( bytes );
+            return ByteBuffer.wrap( bytes );
+        }
+
+        private void addUser( String clientName ){
+            RemoteConnection remoteConnection = new RemoteConnection( clientName, peerId, ClusterNode.this );
+            if ( chatServer.addRemoteUser( remoteConnection ) ) {
+                remoteUsers.put( clientName, remoteConnection );
+            }
+        }
+
+        private void removeUser( String clientName ){
+            RemoteConnection remoteConnection = remoteUsers.remove( clientName );
+            if ( remoteConnection != null ) {
+                chatServer.removeRemoteUser( remoteConnection );
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link ClientConnection}s by an int key in an open addressing table with linear probing, without boxing:
+ * keyed either by client id, or by the {@link String#hashCode()} of the client name, then lookups compare the names.
+ * <p>
+ * Lookups never lock. Puts and removes must be serialized by the caller. A removed entry leaves a marker behind
+ * that lookups probe past; a slot is never reused, the markers go when the table is rebuilt into a new one.
+ */
+public class ConnectionTable {
+    /**
+     * Marks a removed entry
+     */
+    private static final Object REMOVED = new Object();
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The current slots, replaced as a whole when rebuilt
+     */
+    private volatile Slots slots = new Slots( MIN_CAPACITY );
+
+    /**
+     * Number of entries, only used by the writers
+     */
+    private int size;
+
+    /**
+     * @param key a key
+     *
+     * @return the connection with that key, the first one if several share it
+     */
+    public ClientConnection get( int key ){
+        Slots current = slots;
+        for ( int index = current.index( key ); ; index = ( index + 1 ) & current.mask ) {
+            Object value = current.values.get( index );
+            if ( value == null ) {
+                return null;
+            }
+            // the key is written before the value, so reading the value first makes the key visible
+            if ( value != REMOVED && current.keys[index] == key ) {
+                return (ClientConnection) value;
+            }
+        }
+    }
+
+    /**
+     * Looks up a connection by the name in part of a text, without copying it
+     *
+     * @param text holds the name
+     * @param start index of the first char of the name
+     * @param end index after the last char of the name
+     *
+     * @return the connection of that name in a table keyed by {@link #hash(CharSequence, int, int)}, null if none
+     */
+    public ClientConnection get( CharSequence text,
+                                 int start,
+                                 int end ){
+        int key = hash( text, start, end );
+        Slots current = slots;
+        for ( int index = current.index( key ); ; index = ( index + 1 ) & current.mask ) {
+            Object value = current.values.get( index );
+            if ( value == null ) {
+                return null;
+            }
+            if ( value != REMOVED && current.keys[index] == key && nameEquals( (ClientConnection) value, text, start, end ) ) {
+                return (ClientConnection) value;
+            }
+        }
+    }
+
+    /**
+     * Adds a connection, keys are not checked for duplicates
+     *
+     * @param key the key
+     * @param clientConnection the connection
+     */
+    public void put( int key,
+                     ClientConnection clientConnection ){
+        Slots current = slots;
+        if ( ( current.used + 1 ) * 2 > current.values.length() ) {
+            current = rebuild( size + 1 );
+        }
+        current.add( key, clientConnection );
+        size++;
+    }
+
+    /**
+     * Removes a connection
+     *
+     * @param key its key
+     * @param clientConnection the connection
+     *
+     * @return false if it was not in the table
+     */
+    public boolean remove( int key,
+                           ClientConnection clientConnection ){
+        Slots current = slots;
+        for ( int index = current.index( key ); ; index = ( index + 1 ) & current.mask ) {
+            Object value = current.values.get( index );
+            if ( value == null ) {
+                return false;
+            }
+            if ( value == clientConnection ) {
+                current.values.set( index, REMOVED );
+                size--;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of connections
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return the same hash as {@link String#hashCode()} of the part of the text
+     */
+    public static int hash( CharSequence text,
+                            int start,
+                            int end ){
+        int hash = 0;
+        for ( int i = start; i < end; i++ ) {
+            hash = 31 * hash + text.charAt( i );
+        }
+        return hash;
+    }
+
+    private static boolean nameEquals( ClientConnection clientConnection,
+                                       CharSequence text,
+                                       int start,
+                                       int end ){
+        String clientName = clientConnection.getClientName();
+        if ( clientName == null || clientName.length() != end - start ) {
+            return false;
+        }
+        for ( int i = 0; i < clientName.length(); i++ ) {
+            if ( clientName.charAt( i ) != text.charAt( start + i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the entries into new slots at most a quarter full and publishes them
+     */
+    private Slots rebuild( int entries ){
+        int capacity = MIN_CAPACITY;
+        while ( capacity < entries * 4 ) {
+            capacity <<= 1;
+        }
+        Slots old = slots;
+        Slots rebuilt = new Slots( capacity );
+        for ( int index = 0; index < old.values.length(); index++ ) {
+            Object value = old.values.get( index );
+            if ( value != null && value != REMOVED ) {
+                rebuilt.add( old.keys[index], (ClientConnection) value );
+            }
+        }
+        slots = rebuilt;
+        return rebuilt;
+    }
+
+    /**
+     * One generation of the table
+     */
+    private static class Slots {
+        private final int[] keys;
+
+        /**
+         * null for a slot never used, {@link #REMOVED} or a {@link ClientConnection}
+         */
+        private final AtomicReferenceArray<Object> values;
+
+        private final int mask;
+
+        private final int shift;
+
+        /**
+         * Slots not null, only used by the writers
+         */
+        private int used;
+
+        private Slots( int capacity ){
+            keys = new int[ capacity ];
+            values = new AtomicReferenceArray<>( capacity );
+            mask = capacity - 1;
+            shift = 32 - Integer.numberOfTrailingZeros( capacity );
+        }
+
+        /**
+         * @return the home slot of a key, Fibonacci hashing spreads the consecutive ids and the string hashes alike
+         */
+        private int index( int key ){
+            return ( key * 0x9E3779B9 ) >>> shift;
+        }
+
+        private void add( int key,
+                          ClientConnection clientConnection ){
+            int index = index( key );
+            while ( values.get( index ) != null ) {
+                index = ( index + 1 ) & mask;
+            }
+            keys[index] = key;
+            values.set( index, clientConnection );
+            used++;
+        }
+    }
+}
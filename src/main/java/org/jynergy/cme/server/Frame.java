@@ -0,0 +1,260 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Compression;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * One {@link org.jynergy.cme.protocol.Protocol} message encoded in one {@link WireFormat}, such as
+ * a UTF-8 line with its terminator.
+ * A frame is encoded once and then shared by every recipient, each writer gets its own view through {@link #buffer()}.
+ */
+public final class Frame {
+    /**
+     * Frames sent to at least this many clients are encoded into a direct buffer,
+     * which the socket writes without another copy
+     */
+    public static final int DIRECT_FAN_OUT = 16;
+
+    /**
+     * Replaces a lone surrogate
+     */
+    private static final byte REPLACEMENT = '?';
+
+    /**
+     * The encoded line, read only and never moved
+     */
+    private final ByteBuffer byteBuffer;
+
+    /**
+     * This frame as a {@link org.jynergy.cme.protocol.Protocol#COMPRESSED}, this frame itself if compressing
+     * does not pay, null until {@link #compressed(WireFormat, int)} is first called
+     */
+    private volatile Frame compressed;
+
+    /**
+     * @param byteBuffer {@link #byteBuffer}
+     */
+    private Frame( ByteBuffer byteBuffer ){
+        this.byteBuffer = byteBuffer;
+    }
+
+    /**
+     * Encodes a whole line
+     *
+     * @param line the line without its terminator
+     *
+     * @return the frame
+     */
+    public static Frame of( String line ){
+        return encode( line, 0, line.length(), false );
+    }
+
+    /**
+     * Encodes a whole line sent to many clients
+     *
+     * @param line the line without its terminator
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public static Frame of( String line,
+                            int fanOut ){
+        return encode( line, 0, line.length(), fanOut >= DIRECT_FAN_OUT );
+    }
+
+    /**
+     * Encodes a tag char followed by part of a string
+     *
+     * @param tag first char of the line, such as {@link org.jynergy.cme.protocol.Protocol#MESSAGE}
+     * @param text holds the rest of the line
+     * @param start index of the first char of the rest in text
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public static Frame of( char tag,
+                            CharSequence text,
+                            int start,
+                            int fanOut ){
+        ByteBuffer byteBuffer = allocate( 1 + utf8Length( text, start, text.length() ) + 1, fanOut );
+        byteBuffer.put( (byte) tag );
+        putUtf8( byteBuffer, text, start, text.length() );
+        byteBuffer.put( (byte) '\n' );
+        return wrap( byteBuffer );
+    }
+
+    /**
+     * Allocates the buffer for a frame
+     *
+     * @param length number of bytes
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return a direct buffer if fanOut is at least {@link #DIRECT_FAN_OUT}, a heap buffer otherwise
+     */
+    static ByteBuffer allocate( int length,
+                                int fanOut ){
+        return fanOut >= DIRECT_FAN_OUT ? ByteBuffer.allocateDirect( length ) : ByteBuffer.allocate( length );
+    }
+
+    /**
+     * Turns a filled buffer into a frame, the buffer must not be used afterwards
+     *
+     * @param byteBuffer the encoded bytes, in write mode
+     *
+     * @return the frame
+     */
+    static Frame wrap( ByteBuffer byteBuffer ){
+        byteBuffer.flip();
+        return new Frame( byteBuffer.asReadOnlyBuffer() );
+    }
+
+    /**
+     * Wraps bytes that are already encoded and never change again, such as part of a {@link MessageJournal} segment
+     *
+     * @param byteBuffer the encoded bytes between position and limit
+     *
+     * @return the frame
+     */
+    static Frame view( ByteBuffer byteBuffer ){
+        return new Frame( byteBuffer.slice().asReadOnlyBuffer() );
+    }
+
+    /**
+     * Joins frames of one {@link WireFormat} into one, so they go out in one write
+     *
+     * @param frames the frames
+     *
+     * @return the frame
+     */
+    static Frame concat( List<Frame> frames ){
+        int length = 0;
+        for ( Frame frame : frames ) {
+            length += frame.length();
+        }
+        ByteBuffer byteBuffer = ByteBuffer.allocate( length );
+        for ( Frame frame : frames ) {
+            byteBuffer.put( frame.buffer() );
+        }
+        return wrap( byteBuffer );
+    }
+
+    /**
+     * Encodes part of a string followed by the line terminator
+     */
+    private static Frame encode( CharSequence text,
+                                 int start,
+                                 int end,
+                                 boolean direct ){
+        int length = utf8Length( text, start, end ) + 1;
+        ByteBuffer byteBuffer = direct ? ByteBuffer.allocateDirect( length ) : ByteBuffer.allocate( length );
+        putUtf8( byteBuffer, text, start, end );
+        byteBuffer.put( (byte) '\n' );
+        return wrap( byteBuffer );
+    }
+
+    /**
+     * @return a view of the bytes with its own position, for one writer
+     */
+    public ByteBuffer buffer(){
+        return byteBuffer.duplicate();
+    }
+
+    /**
+     * Compresses this frame once for all recipients with {@link org.jynergy.cme.protocol.Protocol#FEATURE_COMPRESSION}
+     *
+     * @param wireFormat the format of this frame
+     * @param minBytes the shortest frame worth compressing
+     *
+     * @return the compressed frame, or this frame if it is too short or too long or compressing does not make it shorter
+     */
+    public Frame compressed( WireFormat wireFormat,
+                             int minBytes ){
+        int length = byteBuffer.remaining();
+        if ( length < minBytes || length > Compression.MAX_INFLATED_LENGTH ) {
+            return this;
+        }
+        Frame frame = compressed;
+        if ( frame == null ) {
+            frame = wireFormat.encodeCompressed( this );
+            compressed = frame = frame != null ? frame : this;
+        }
+        return frame;
+    }
+
+    /**
+     * @return the number of bytes, terminator included
+     */
+    public int length(){
+        return byteBuffer.remaining();
+    }
+
+    /**
+     * @return the number of UTF-8 bytes of the chars from start to end
+     */
+    static int utf8Length( CharSequence text,
+                           int start,
+                           int end ){
+        int length = 0;
+        for ( int i = start; i < end; i++ ) {
+            char c = text.charAt( i );
+            if ( c < 0x80 ) {
+                length++;
+            }
+            else if ( c < 0x800 ) {
+                length += 2;
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < end && Character.isLowSurrogate( text.charAt( i + 1 ) ) ) {
+                length += 4;
+                i++;
+            }
+            else if ( Character.isSurrogate( c ) ) {
+                length++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Puts the UTF-8 bytes of the chars from start to end
+     */
+    static void putUtf8( ByteBuffer byteBuffer,
+                         CharSequence text,
+                         int start,
+                         int end ){
+        for ( int i = start; i < end; i++ ) {
+            char c = text.charAt( i );
+            if ( c < 0x80 ) {
+                byteBuffer.put( (byte) c );
+            }
+            else if ( c < 0x800 ) {
+                byteBuffer.put( (byte) ( 0xC0 | ( c >> 6 ) ) );
+                byteBuffer.put( (byte) ( 0x80 | ( c & 0x3F ) ) );
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < end && Character.isLowSurrogate( text.charAt( i + 1 ) ) ) {
+                int codePoint = Character.toCodePoint( c, text.charAt( ++i ) );
+                byteBuffer.put( (byte) ( 0xF0 | ( codePoint >> 18 ) ) );
+                byteBuffer.put( (byte) ( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) ) );
+                byteBuffer.put( (byte) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) ) );
+                byteBuffer.put( (byte) ( 0x80 | ( codePoint & 0x3F ) ) );
+            }
+            else if ( Character.isSurrogate( c ) ) {
+                byteBuffer.put( REPLACEMENT );
+            }
+            else {
+                byteBuffer.put( (byte) ( 0xE0 | ( c >> 12 ) ) );
+                byteBuffer.put( (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) ) );
+                byteBuffer.put( (byte) ( 0x80 | ( c & 0x3F ) ) );
+            }
+        }
+    }
+}
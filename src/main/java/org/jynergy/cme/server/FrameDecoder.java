@@ -0,0 +1,50 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts the bytes read from a client into {@link org.jynergy.cme.protocol.Protocol} messages, one {@link WireFormat} each.
+ * Bytes of a message that has not been completed yet are kept until the rest arrives.
+ */
+public interface FrameDecoder {
+    /**
+     * Receives every complete message
+     */
+    public interface Handler {
+        /**
+         * @param line a text line without its terminator
+         *
+         * @throws IOException if the connection has to be closed
+         */
+        public void onLine( String line ) throws IOException;
+
+        /**
+         * @param tag the tag of a binary frame
+         * @param body the body of the frame between position and limit, only valid during the call
+         *
+         * @throws IOException if the connection has to be closed
+         */
+        public void onFrame( char tag,
+                             ByteBuffer body ) throws IOException;
+    }
+
+    /**
+     * Consumes bytes up to the end of the next message and hands it over.
+     * Returns after one message so the handler can switch decoders in between.
+     *
+     * @param buffer bytes read, in read mode
+     * @param handler gets the message
+     *
+     * @return true if a message was handed over, false if all remaining bytes were consumed without completing one
+     *
+     * @throws IOException if the bytes are malformed or too long
+     */
+    public boolean decode( ByteBuffer buffer,
+                           Handler handler ) throws IOException;
+}
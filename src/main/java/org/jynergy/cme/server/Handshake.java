@@ -0,0 +1,111 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+
+/**
+ * The first line a client sends: either a plain name or {@link Protocol#HELLO} with features and a name
+ */
+public class Handshake implements Protocol {
+    /**
+     * Features this server implements
+     */
+    public static final String SUPPORTED_FEATURES =
+        new String( new char[]{ FEATURE_BINARY, FEATURE_USER_DELTAS, FEATURE_JOURNAL, FEATURE_COMPRESSION, FEATURE_HEARTBEAT,
+                                FEATURE_SUBSCRIPTIONS } );
+
+    /**
+     * The client name
+     */
+    private final String clientName;
+
+    /**
+     * Requested features this server implements, null for a plain name
+     */
+    private final String features;
+
+    /**
+     * @param clientName {@link #clientName}
+     * @param features {@link #features}
+     */
+    private Handshake( String clientName,
+                       String features ){
+        this.clientName = clientName;
+        this.features = features;
+    }
+
+    /**
+     * @param line the first line from a client
+     *
+     * @return the handshake, accepting any of the {@link #SUPPORTED_FEATURES}
+     */
+    public static Handshake parse( String line ){
+        return parse( line, SUPPORTED_FEATURES );
+    }
+
+    /**
+     * @param line the first line from a client
+     * @param supportedFeatures the features this server offers, some of {@link #SUPPORTED_FEATURES}
+     *
+     * @return the handshake
+     */
+    public static Handshake parse( String line,
+                                   String supportedFeatures ){
+        if ( line.isEmpty() || line.charAt( 0 ) != HELLO ) {
+            return new Handshake( line, null );
+        }
+        int seperatorPosition = line.indexOf( SEPERATOR );
+        if ( seperatorPosition < 0 ) {
+            return new Handshake( line.substring( 1 ), "" );
+        }
+        StringBuilder accepted = new StringBuilder();
+        for ( int i = 1; i < seperatorPosition; i++ ) {
+            char feature = line.charAt( i );
+            if ( supportedFeatures.indexOf( feature ) >= 0 && accepted.indexOf( String.valueOf( feature ) ) < 0 ) {
+                accepted.append( feature );
+            }
+        }
+        return new Handshake( line.substring( seperatorPosition + 1 ), accepted.toString() );
+    }
+
+    /**
+     * @return {@link #clientName}
+     */
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * @return true if the client sent {@link #HELLO} and expects {@link #getReply()}
+     */
+    public boolean isHello(){
+        return features != null;
+    }
+
+    /**
+     * @param feature a feature char such as {@link #FEATURE_BINARY}
+     *
+     * @return true if the feature was requested and is supported
+     */
+    public boolean has( char feature ){
+        return features != null && features.indexOf( feature ) >= 0;
+    }
+
+    /**
+     * @return the {@link WireFormat} agreed on
+     */
+    public WireFormat getWireFormat(){
+        return has( FEATURE_BINARY ) ? WireFormat.BINARY : WireFormat.TEXT;
+    }
+
+    /**
+     * @return the {@link #HELLO} line listing the accepted features, always sent as text
+     */
+    public Frame getReply(){
+        return Frame.of( HELLO + features );
+    }
+}
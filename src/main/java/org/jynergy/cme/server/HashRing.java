@@ -0,0 +1,64 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash of user names onto cluster nodes. Every node builds the same ring from the same members,
+ * so all agree on the owner of a name without asking each other, and adding a node moves only its share of names.
+ */
+public class HashRing {
+    /**
+     * Points every node gets on the ring, to spread the names evenly
+     */
+    private static final int POINTS_PER_NODE = 128;
+
+    /**
+     * Node ids by their points
+     */
+    private final TreeMap<Long,String> ring = new TreeMap<>();
+
+    /**
+     * @param nodeIds the ids of all nodes
+     */
+    public HashRing( Collection<String> nodeIds ){
+        for ( String nodeId : nodeIds ) {
+            for ( int i = 0; i < POINTS_PER_NODE; i++ ) {
+                ring.put( hash( nodeId + "#" + i ), nodeId );
+            }
+        }
+    }
+
+    /**
+     * @param clientName a user name
+     *
+     * @return the id of the node owning it
+     */
+    public String owner( String clientName ){
+        Map.Entry<Long,String> entry = ring.ceilingEntry( hash( clientName ) );
+        return ( entry != null ? entry : ring.firstEntry() ).getValue();
+    }
+
+    /**
+     * @return the first 8 bytes of the MD5 of the UTF-8 key, the same on every JVM
+     */
+    private static long hash( String key ){
+        try {
+            byte[] digest = MessageDigest.getInstance( "MD5" ).digest( key.getBytes( StandardCharsets.UTF_8 ) );
+            return ByteBuffer.wrap( digest ).getLong();
+        }
+        catch ( NoSuchAlgorithmException noSuchAlgorithmException ) {
+            throw new IllegalStateException( noSuchAlgorithmException );
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Disconnects the clients the server no longer hears from, so half open connections do not keep their
+ * name, their slot and their share of every broadcast.
+ * <UL>
+ *     <LI>a connection that has not logged on after the heartbeat timeout</LI>
+ *     <LI>a client with {@link Protocol#FEATURE_HEARTBEAT} silent for the heartbeat interval gets a
+ *     {@link Protocol#PING} and is disconnected if it stays silent for the heartbeat timeout</LI>
+ *     <LI>any other client silent for the idle timeout, if there is one</LI>
+ * </UL>
+ * The connections only note the time of every read in their {@link Watch}; one {@link TimingWheel} looks at
+ * each connection when it could be due and schedules it again from its last read if it was not.
+ */
+public class IdleReaper {
+    /**
+     * Length of a tick of the {@link #timingWheel}
+     */
+    private static final long TICK_MILLIS = 100;
+
+    private final long intervalNanos;
+
+    private final long timeoutNanos;
+
+    private final long idleTimeoutNanos;
+
+    private final TimingWheel timingWheel;
+
+    /**
+     * Clients disconnected
+     */
+    private final LongAdder reaped = new LongAdder();
+
+    /**
+     * @param intervalMillis silence before a {@link Protocol#PING}, 0 for no heartbeats
+     * @param timeoutMillis time to answer a {@link Protocol#PING} and to log on, 0 for no limit and no heartbeats
+     * @param idleTimeoutMillis silence before a client without heartbeats is disconnected, 0 for never
+     */
+    public IdleReaper( long intervalMillis,
+                       long timeoutMillis,
+                       long idleTimeoutMillis ){
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos( intervalMillis );
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos( idleTimeoutMillis );
+        this.timingWheel = new TimingWheel( TICK_MILLIS, "ChatServer-reaper" );
+    }
+
+    /**
+     * Starts watching a new connection
+     *
+     * @param clientConnection the connection, not logged on yet
+     *
+     * @return the watch, to {@link Watch#touch()} on every read and {@link Watch#cancel()} on close
+     */
+    public Watch watch( ClientConnection clientConnection ){
+        Watch watch = new Watch( clientConnection );
+        long delayNanos = timeoutNanos > 0 ? timeoutNanos : idleTimeoutNanos;
+        if ( delayNanos > 0 ) {
+            watch.schedule( delayNanos );
+        }
+        return watch;
+    }
+
+    /**
+     * @return the clients disconnected so far
+     */
+    public long getReaped(){
+        return reaped.sum();
+    }
+
+    /**
+     * Stops watching
+     */
+    public void close(){
+        timingWheel.close();
+    }
+
+    /**
+     * The last read of one connection
+     */
+    public class Watch {
+        private final ClientConnection clientConnection;
+
+        /**
+         * {@link System#nanoTime()} of the last read
+         */
+        private volatile long lastReadNanos = System.nanoTime();
+
+        /**
+         * The next look at the connection
+         */
+        private volatile TimingWheel.Timeout timeout;
+
+        private volatile boolean cancelled;
+
+        /**
+         * Set while a {@link Protocol#PING} is unanswered, only used on the {@link #timingWheel} thread
+         */
+        private boolean pinged;
+
+        private Watch( ClientConnection clientConnection ){
+            this.clientConnection = clientConnection;
+        }
+
+        /**
+         * Notes a read from the client
+         */
+        public void touch(){
+            lastReadNanos = System.nanoTime();
+        }
+
+        /**
+         * Stops watching the connection
+         */
+        public void cancel(){
+            cancelled = true;
+            TimingWheel.Timeout scheduled = timeout;
+            if ( scheduled != null ) {
+                scheduled.cancel();
+            }
+        }
+
+        private void schedule( long delayNanos ){
+            timeout = timingWheel.schedule( this::check, delayNanos );
+            if ( cancelled ) {
+                timeout.cancel();
+            }
+        }
+
+        /**
+         * Pings or disconnects the client if it was silent too long, otherwise looks again when it could be
+         */
+        private void check(){
+            if ( cancelled ) {
+                return;
+            }
+            long silentNanos = System.nanoTime() - lastReadNanos;
+            long limitNanos;
+            if ( clientConnection.getClientName() == null ) {
+                if ( timeoutNanos == 0 ) {
+                    // no limit to log on, look again when the client could be idle once it did
+                    schedule( idleTimeoutNanos );
+                    return;
+                }
+                limitNanos = timeoutNanos;
+            }
+            else if ( intervalNanos > 0 && timeoutNanos > 0 && clientConnection.hasFeature( Protocol.FEATURE_HEARTBEAT ) ) {
+                if ( silentNanos < intervalNanos ) {
+                    pinged = false;
+                    limitNanos = intervalNanos;
+                }
+                else {
+                    if ( !pinged ) {
+                        pinged = true;
+                        clientConnection.send( clientConnection.getWireFormat().encodeReply( Protocol.PING ) );
+                    }
+                    limitNanos = intervalNanos + timeoutNanos;
+                }
+            }
+            else {
+                limitNanos = idleTimeoutNanos;
+            }
+            if ( limitNanos <= 0 ) {
+                return;
+            }
+            if ( silentNanos >= limitNanos ) {
+                reaped.increment();
+                String clientName = clientConnection.getClientName();
+                ServerLog.info( "ChatServer: silent for " + TimeUnit.NANOSECONDS.toMillis( silentNanos ) + " ms, disconnect "
+                                + ( clientName != null ? clientName : "before logon" ) );
+                clientConnection.close();
+                return;
+            }
+            schedule( limitNanos - silentNanos );
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One selector thread servicing many {@link NioConnection}s.
+ * Everything touching a {@link SelectionKey} runs on this thread, other threads hand work over with {@link #execute(Runnable)}.
+ */
+public class IoLoop implements Runnable {
+    /**
+     * Size of the read buffer shared by all connections of this loop
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Selector for all channels of this loop
+     */
+    private final Selector selector;
+
+    /**
+     * Work handed to this loop from other threads
+     */
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Work to run later, soonest first, only touched by this loop
+     */
+    private final PriorityQueue<TimedTask> timedTasks = new PriorityQueue<>();
+
+    /**
+     * Read buffer shared by all connections, a connection keeps only the bytes of its unfinished line
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect( READ_BUFFER_SIZE );
+
+    /**
+     * A reference to {@link ChatServer}
+     */
+    private final ChatServer chatServer;
+
+    /**
+     * The thread running this loop
+     */
+    private Thread thread;
+
+    /**
+     * @param chatServer {@link #chatServer}
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public IoLoop( ChatServer chatServer ) throws IOException {
+        this.chatServer = chatServer;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the thread running this loop
+     *
+     * @param name name of the thread
+     */
+    public void start( String name ){
+        thread = new Thread( this, name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * @return true if called from the thread of this loop
+     */
+    public boolean inLoop(){
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the thread of this loop
+     *
+     * @param task the task
+     */
+    public void execute( Runnable task ){
+        taskQueue.add( task );
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the thread of this loop after a delay
+     *
+     * @param task the task
+     * @param delayNanos the delay
+     */
+    public void schedule( Runnable task,
+                          long delayNanos ){
+        TimedTask timedTask = new TimedTask( System.nanoTime() + delayNanos, task );
+        if ( inLoop() ) {
+            timedTasks.add( timedTask );
+        }
+        else {
+            execute( () -> timedTasks.add( timedTask ) );
+        }
+    }
+
+    /**
+     * Reads what a connection has outside of a select, runs on this loop
+     *
+     * @param nioConnection the connection
+     */
+    public void read( NioConnection nioConnection ){
+        readBuffer.clear();
+        nioConnection.onReadable( readBuffer );
+    }
+
+    /**
+     * Takes over an accepted channel
+     *
+     * @param socketChannel a freshly accepted channel
+     * @param admission its ticket from {@link AdmissionControl}
+     */
+    public void register( final SocketChannel socketChannel,
+                          final AdmissionControl.Admission admission ){
+        execute( () -> {
+            try {
+                TlsSession tlsSession = chatServer.newTlsSession( true );
+                socketChannel.configureBlocking( false );
+                SelectionKey selectionKey = socketChannel.register( selector, SelectionKey.OP_READ );
+                selectionKey.attach( new NioConnection( socketChannel, selectionKey, tlsSession, this, admission, chatServer ) );
+            }
+            catch ( IOException ioException ) {
+                ioException.printStackTrace();
+                admission.release();
+                try {
+                    socketChannel.close();
+                }
+                catch ( IOException closeException ) {
+                    closeException.printStackTrace();
+                }
+            }
+        } );
+    }
+
+    /**
+     * Selects and dispatches ready channels and runs the due {@link #timedTasks} until the selector is closed
+     */
+    public void run(){
+        try {
+            loop();
+        }
+        catch ( ClosedSelectorException closedSelectorException ) {
+            // closed by close() while selecting
+        }
+    }
+
+    private void loop(){
+        while ( selector.isOpen() ) {
+            try {
+                TimedTask next = timedTasks.peek();
+                if ( next == null ) {
+                    selector.select();
+                }
+                else {
+                    long delayNanos = next.due - System.nanoTime();
+                    if ( delayNanos <= 0 ) {
+                        selector.selectNow();
+                    }
+                    else {
+                        selector.select( Math.max( 1, TimeUnit.NANOSECONDS.toMillis( delayNanos ) ) );
+                    }
+                }
+            }
+            catch ( IOException ioException ) {
+                ioException.printStackTrace();
+                break;
+            }
+            Runnable task;
+            while ( ( task = taskQueue.poll() ) != null ) {
+                task.run();
+            }
+            long now = System.nanoTime();
+            while ( !timedTasks.isEmpty() && timedTasks.peek().due - now <= 0 ) {
+                timedTasks.poll().task.run();
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while ( iterator.hasNext() ) {
+                SelectionKey selectionKey = iterator.next();
+                iterator.remove();
+                NioConnection nioConnection = (NioConnection) selectionKey.attachment();
+                try {
+                    if ( selectionKey.isReadable() ) {
+                        readBuffer.clear();
+                        nioConnection.onReadable( readBuffer );
+                    }
+                    if ( selectionKey.isValid() && selectionKey.isWritable() ) {
+                        nioConnection.flush();
+                    }
+                }
+                catch ( CancelledKeyException cancelledKeyException ) {
+                    nioConnection.close();
+                }
+                catch ( RuntimeException runtimeException ) {
+                    // only the connection that sent what could not be handled goes, the loop serves the others
+                    runtimeException.printStackTrace();
+                    nioConnection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the selector, which ends {@link #run()}
+     */
+    public void close(){
+        try {
+            selector.close();
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+        }
+    }
+
+    /**
+     * A task of {@link #schedule(Runnable, long)}
+     */
+    private static class TimedTask implements Comparable<TimedTask> {
+        /**
+         * {@link System#nanoTime()} to run at
+         */
+        private final long due;
+
+        private final Runnable task;
+
+        private TimedTask( long due,
+                           Runnable task ){
+            this.due = due;
+            this.task = task;
+        }
+
+        public int compareTo( TimedTask other ){
+            return Long.compare( due - other.due, 0 );
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the bytes read from a client into {@link org.jynergy.cme.protocol.Protocol} lines of {@link WireFormat#TEXT}.
+ */
+public class LineFramer implements FrameDecoder {
+    /**
+     * Longest line accepted from a client
+     */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * Bytes of the current incomplete line, null while there are none
+     */
+    private byte[] partial;
+
+    /**
+     * Number of bytes used in {@link #partial}
+     */
+    private int partialLength;
+
+    /**
+     * Consumes bytes up to the end of the next line
+     *
+     * @param buffer bytes read, in read mode
+     * @param handler gets the line
+     *
+     * @return true if a line was handed over
+     *
+     * @throws IOException if a line is longer than {@link #MAX_LINE_LENGTH}
+     */
+    public boolean decode( ByteBuffer buffer,
+                           Handler handler ) throws IOException {
+        int start = buffer.position();
+        int end = start;
+        int limit = buffer.limit();
+        while ( end < limit && buffer.get( end ) != '\n' ) {
+            end++;
+        }
+        append( buffer, start, end );
+        if ( end == limit ) {
+            buffer.position( limit );
+            return false;
+        }
+        buffer.position( end + 1 );
+        int length = partialLength;
+        if ( length > 0 && partial[length - 1] == '\r' ) {
+            length--;
+        }
+        String line = new String( partial, 0, length, StandardCharsets.UTF_8 );
+        partialLength = 0;
+        if ( partial.length > 1024 ) {
+            partial = null;
+        }
+        handler.onLine( line );
+        return true;
+    }
+
+    /**
+     * Appends a range of the buffer to {@link #partial}
+     */
+    private void append( ByteBuffer buffer, int start, int end ) throws IOException {
+        int length = end - start;
+        if ( partialLength + length > MAX_LINE_LENGTH ) {
+            throw new IOException( "line longer than " + MAX_LINE_LENGTH + " bytes" );
+        }
+        if ( partial == null ) {
+            partial = new byte[ Math.max( 128, length ) ];
+        }
+        else if ( partialLength + length > partial.length ) {
+            partial = Arrays.copyOf( partial, Math.max( partial.length * 2, partialLength + length ) );
+        }
+        for ( int i = start; i < end; i++ ) {
+            partial[partialLength++] = buffer.get( i );
+        }
+    }
+}
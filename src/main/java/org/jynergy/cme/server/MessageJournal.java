@@ -0,0 +1,416 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append only journal of the messages to {@link org.jynergy.cme.protocol.Protocol#ALL}, numbered from 1.
+ * <p>
+ * The journal is a row of segments in one directory. A segment holds the records from its first sequence number on,
+ * each already encoded as the {@link Frame} a client gets, in one memory mapped file per {@link WireFormat},
+ * and an index file with the end offset of every record in every data file and a checksum of it. A replay is therefore a few views of
+ * the mapped files, written to the socket straight from the page cache without being copied onto the heap.
+ * <p>
+ * Records are only visible once their index entry is written. After a crash of the OS the pages of the mapped
+ * files may have reached the disk in any order, so a journal is reopened up to the first record whose offsets
+ * or checksum do not match its bytes, and ends at the last whole record either way; what was forced before
+ * the crash is kept. Segments before a gap in the numbering are dropped. When the journal holds more than
+ * the retained segments the oldest is deleted.
+ * <p>
+ * Not thread safe, except {@link #force()}: the caller serializes appends and reads.
+ */
+public class MessageJournal {
+    /**
+     * Smallest segment, leaves room for the longest frame
+     */
+    private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+
+    /**
+     * Extension of the index files
+     */
+    private static final String INDEX = ".index";
+
+    /**
+     * Average record size the index of a segment is sized for
+     */
+    private static final int RECORD_BYTES = 64;
+
+    /**
+     * The directory of the segments
+     */
+    private final File directory;
+
+    /**
+     * Size of every data file of a segment
+     */
+    private final int segmentBytes;
+
+    /**
+     * Most segments kept
+     */
+    private final int retainSegments;
+
+    /**
+     * The segments, oldest first
+     */
+    private final ArrayList<Segment> segments = new ArrayList<>();
+
+    /**
+     * The segment appended to, also read by the thread of {@link #forcer}
+     */
+    private volatile Segment current;
+
+    /**
+     * Sequence number of the last record, 0 if none
+     */
+    private long lastSequence;
+
+    /**
+     * Forces {@link #current} to disk every fsyncMillis if fsyncMillis is positive, null otherwise
+     */
+    private ScheduledExecutorService forcer;
+
+    /**
+     * Set if every append is forced to disk
+     */
+    private final boolean forceEveryAppend;
+
+    /**
+     * Opens the journal in a directory, creating it if needed, and recovers the segments in it
+     *
+     * @param directory {@link #directory}
+     * @param segmentBytes {@link #segmentBytes}, at least {@link #MIN_SEGMENT_BYTES}
+     * @param fsyncMillis time between forcing appends to disk, 0 forces every append, less than 0 leaves it to the OS
+     * @param retainSegments {@link #retainSegments}, at least 1
+     *
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    public MessageJournal( File directory,
+                           int segmentBytes,
+                           long fsyncMillis,
+                           int retainSegments ) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max( MIN_SEGMENT_BYTES, segmentBytes );
+        this.retainSegments = Math.max( 1, retainSegments );
+        this.forceEveryAppend = fsyncMillis == 0;
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "cannot create " + directory );
+        }
+        String[] indexNames = directory.list( ( dir, name ) -> name.endsWith( INDEX ) );
+        Arrays.sort( indexNames );
+        for ( String indexName : indexNames ) {
+            long firstSequence = Long.parseLong( indexName.substring( 0, indexName.length() - INDEX.length() ) );
+            Segment segment = new Segment( firstSequence );
+            if ( !segments.isEmpty() && firstSequence != lastSequence + 1 ) {
+                for ( Segment older : segments ) {
+                    older.delete();
+                }
+                segments.clear();
+            }
+            segments.add( segment );
+            lastSequence = firstSequence + segment.count - 1;
+        }
+        current = segments.isEmpty() ? null : segments.get( segments.size() - 1 );
+        if ( fsyncMillis > 0 ) {
+            forcer = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                Thread thread = new Thread( runnable, "ChatServer-journal" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            forcer.scheduleWithFixedDelay( this::force, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * @return {@link #lastSequence}
+     */
+    public long getLastSequence(){
+        return lastSequence;
+    }
+
+    /**
+     * Appends the record with sequence number {@link #getLastSequence()} + 1
+     *
+     * @param records the record encoded in every {@link WireFormat}, indexed by ordinal
+     *
+     * @throws IOException if a new segment cannot be created, the record is not appended
+     */
+    public void append( Frame[] records ) throws IOException {
+        if ( current == null || !current.fits( records ) ) {
+            roll();
+        }
+        current.append( records );
+        lastSequence++;
+        if ( forceEveryAppend ) {
+            current.force();
+        }
+    }
+
+    /**
+     * Starts a new segment after {@link #lastSequence} and drops the oldest ones over {@link #retainSegments}
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    private void roll() throws IOException {
+        Segment segment = new Segment( lastSequence + 1 );
+        if ( current != null ) {
+            current.force();
+        }
+        segments.add( segment );
+        current = segment;
+        while ( segments.size() > retainSegments ) {
+            segments.remove( 0 ).delete();
+        }
+    }
+
+    /**
+     * @param wireFormat the format of the client
+     * @param afterSequence the last sequence number the client has
+     *
+     * @return views of the records after afterSequence, at most one per segment, or of all records kept
+     * if the older ones are gone
+     */
+    public List<ByteBuffer> read( WireFormat wireFormat,
+                                  long afterSequence ){
+        ArrayList<ByteBuffer> views = new ArrayList<>();
+        for ( Segment segment : segments ) {
+            if ( segment.count > 0 && segment.firstSequence + segment.count - 1 > afterSequence ) {
+                int from = (int) Math.max( 0, afterSequence + 1 - segment.firstSequence );
+                views.add( segment.view( wireFormat.ordinal(), from ) );
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Forces the records of the current segment to disk, safe to call from any thread
+     */
+    public void force(){
+        Segment segment = current;
+        if ( segment != null ) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Stops forcing and forces what was appended
+     */
+    public void close(){
+        if ( forcer != null ) {
+            forcer.shutdownNow();
+        }
+        force();
+    }
+
+    /**
+     * The records from one sequence number on, in one data file per {@link WireFormat} and an index file
+     */
+    private class Segment {
+        /**
+         * Sequence number of the first record
+         */
+        private final long firstSequence;
+
+        /**
+         * Files of {@link #data} followed by the index file
+         */
+        private final File[] files;
+
+        /**
+         * The mapped data file of every {@link WireFormat}, indexed by ordinal
+         */
+        private final MappedByteBuffer[] data;
+
+        /**
+         * For every record the end offset in every data file, 0 where no record is written yet,
+         * then the CRC32 of the record in all of them
+         */
+        private final MappedByteBuffer index;
+
+        /**
+         * Ints in the {@link #index} entry of a record
+         */
+        private final int entryInts;
+
+        /**
+         * Most records {@link #index} holds
+         */
+        private final int capacity;
+
+        /**
+         * Number of records
+         */
+        private int count;
+
+        /**
+         * Maps the files of the segment, creating them if needed, and counts the records in them
+         *
+         * @param firstSequence {@link #firstSequence}
+         *
+         * @throws IOException if a file cannot be mapped
+         */
+        private Segment( long firstSequence ) throws IOException {
+            this.firstSequence = firstSequence;
+            WireFormat[] wireFormats = WireFormat.values();
+            String baseName = String.format( "%020d", firstSequence );
+            files = new File[ wireFormats.length + 1 ];
+            data = new MappedByteBuffer[ wireFormats.length ];
+            for ( WireFormat wireFormat : wireFormats ) {
+                files[wireFormat.ordinal()] = new File( directory, baseName + "." + wireFormat.name().toLowerCase() );
+                data[wireFormat.ordinal()] = map( files[wireFormat.ordinal()], segmentBytes );
+            }
+            capacity = segmentBytes / RECORD_BYTES;
+            entryInts = wireFormats.length + 1;
+            files[wireFormats.length] = new File( directory, baseName + INDEX );
+            index = map( files[wireFormats.length], capacity * 4 * entryInts );
+            while ( count < capacity && isWritten( count ) ) {
+                count++;
+            }
+            // entries after a torn record would pass for records once appends reach them
+            for ( int record = count; record < capacity && !isClear( record ); record++ ) {
+                for ( int i = 0; i < entryInts; i++ ) {
+                    index.putInt( ( record * entryInts + i ) * 4, 0 );
+                }
+            }
+            for ( int format = 0; format < data.length; format++ ) {
+                data[format].position( count == 0 ? 0 : end( count - 1, format ) );
+            }
+        }
+
+        /**
+         * @return the file mapped read write, grown to size
+         */
+        private MappedByteBuffer map( File file,
+                                      int size ) throws IOException {
+            try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" ) ) {
+                return randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+            }
+        }
+
+        /**
+         * @return true if record has an end offset in every data file, after the one of the record before,
+         * and its bytes match its checksum
+         */
+        private boolean isWritten( int record ){
+            for ( int format = 0; format < data.length; format++ ) {
+                int start = record == 0 ? 0 : end( record - 1, format );
+                int end = end( record, format );
+                if ( end == 0 || end < start || end > data[format].capacity() ) {
+                    return false;
+                }
+            }
+            return index.getInt( ( record * entryInts + data.length ) * 4 ) == checksum( record );
+        }
+
+        /**
+         * @return true if the {@link #index} entry of record is all 0
+         */
+        private boolean isClear( int record ){
+            for ( int i = 0; i < entryInts; i++ ) {
+                if ( index.getInt( ( record * entryInts + i ) * 4 ) != 0 ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the CRC32 of the bytes of record in every data file, its end offsets must be written
+         */
+        private int checksum( int record ){
+            CRC32 crc32 = new CRC32();
+            for ( int format = 0; format < data.length; format++ ) {
+                ByteBuffer bytes = data[format].duplicate();
+                bytes.limit( end( record, format ) );
+                bytes.position( record == 0 ? 0 : end( record - 1, format ) );
+                crc32.update( bytes );
+            }
+            return (int) crc32.getValue();
+        }
+
+        /**
+         * @return the end offset of record in the data file of format
+         */
+        private int end( int record,
+                         int format ){
+            return index.getInt( ( record * entryInts + format ) * 4 );
+        }
+
+        /**
+         * @return true if {@link #index} and every data file have room for the record
+         */
+        private boolean fits( Frame[] records ){
+            if ( count == capacity ) {
+                return false;
+            }
+            for ( int format = 0; format < data.length; format++ ) {
+                if ( records[format].length() > data[format].remaining() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes the record and then its index entry, the checksum last
+         */
+        private void append( Frame[] records ){
+            for ( int format = 0; format < data.length; format++ ) {
+                data[format].put( records[format].buffer() );
+            }
+            for ( int format = 0; format < data.length; format++ ) {
+                index.putInt( ( count * entryInts + format ) * 4, data[format].position() );
+            }
+            index.putInt( ( count * entryInts + data.length ) * 4, checksum( count ) );
+            count++;
+        }
+
+        /**
+         * @return a read only view of the data file of format from record on to the last record
+         */
+        private ByteBuffer view( int format,
+                                 int record ){
+            ByteBuffer byteBuffer = data[format].duplicate();
+            byteBuffer.limit( end( count - 1, format ) );
+            byteBuffer.position( record == 0 ? 0 : end( record - 1, format ) );
+            return byteBuffer;
+        }
+
+        /**
+         * Forces the data files and then the index to disk
+         */
+        private void force(){
+            for ( MappedByteBuffer mappedByteBuffer : data ) {
+                mappedByteBuffer.force();
+            }
+            index.force();
+        }
+
+        /**
+         * Deletes the files, views already handed out stay readable until they are collected
+         */
+        private void delete(){
+            for ( File file : files ) {
+                if ( !file.delete() ) {
+                    ServerLog.info( "ChatServer: cannot delete " + file );
+                }
+            }
+        }
+    }
+}
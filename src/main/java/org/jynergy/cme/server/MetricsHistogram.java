@@ -0,0 +1,104 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe histogram with one bucket per power of two.
+ * Recording is a few uncontended adds, so it can sit on the message path;
+ * percentiles are the upper bound of their bucket, within a factor of two.
+ */
+public class MetricsHistogram {
+    /**
+     * Bucket i counts the values whose highest one bit is bit i - 1, bucket 0 counts zeros
+     */
+    private final LongAdder[] buckets = new LongAdder[ 65 ];
+
+    /**
+     * Sum of all values
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Largest value
+     */
+    private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+    public MetricsHistogram(){
+        for ( int i = 0; i < buckets.length; i++ ) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a value
+     *
+     * @param value a non negative value, negative ones count as 0
+     */
+    public void record( long value ){
+        if ( value < 0 ) {
+            value = 0;
+        }
+        buckets[64 - Long.numberOfLeadingZeros( value )].increment();
+        sum.add( value );
+        max.accumulate( value );
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount(){
+        long count = 0;
+        for ( LongAdder bucket : buckets ) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the mean value, 0 if none was recorded
+     */
+    public double getMean(){
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     *
+     * @return the upper bound of the bucket holding the value at the percentile, 0 if empty
+     */
+    public long getValueAtPercentile( double percentile ){
+        long[] counts = new long[ buckets.length ];
+        long total = 0;
+        for ( int i = 0; i < buckets.length; i++ ) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if ( total == 0 ) {
+            return 0;
+        }
+        long target = Math.max( 1, (long) Math.ceil( percentile / 100 * total ) );
+        long count = 0;
+        for ( int i = 0; i < counts.length; i++ ) {
+            count += counts[i];
+            if ( count >= target ) {
+                long upper = i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : ( 1L << i ) - 1;
+                return Math.min( upper, getMax() );
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,537 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.BinaryCodec;
+import org.jynergy.cme.protocol.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handles all communication with a client over a non blocking {@link SocketChannel} owned by an {@link IoLoop}
+ */
+public class NioConnection implements ClientConnection, Protocol, FrameDecoder.Handler {
+    /**
+     * Most frames written by one gathering write
+     */
+    private static final int GATHER_LIMIT = 64;
+
+    /**
+     * The client name, null until the name handshake is done
+     */
+    private volatile String clientName;
+
+    /**
+     * The id {@link ClientRegistry} gave the client
+     */
+    private int clientId;
+
+    /**
+     * The format agreed on in the handshake
+     */
+    private volatile WireFormat wireFormat = WireFormat.TEXT;
+
+    /**
+     * The features agreed on, null until the handshake is done
+     */
+    private volatile Handshake agreed;
+
+    /**
+     * Channel that handles the connection with the client
+     */
+    private final SocketChannel socketChannel;
+
+    /**
+     * Key of {@link #socketChannel} in the selector of {@link #ioLoop}
+     */
+    private final SelectionKey selectionKey;
+
+    /**
+     * TLS over {@link #socketChannel}, null for plain TCP
+     */
+    private final TlsSession tlsSession;
+
+    /**
+     * The loop servicing this connection
+     */
+    private final IoLoop ioLoop;
+
+    /**
+     * Slots and message rate given by {@link AdmissionControl}
+     */
+    private final AdmissionControl.Admission admission;
+
+    /**
+     * A reference to {@link ChatServer}
+     */
+    private final ChatServer chatServer;
+
+    /**
+     * Cuts the incoming bytes into messages of {@link #wireFormat}
+     */
+    private FrameDecoder frameDecoder = new LineFramer();
+
+    /**
+     * Views of the frames waiting to be written to {@link #socketChannel}
+     */
+    private final OutboundQueue<ByteBuffer> writeQueue;
+
+    /**
+     * The frames being written by one gathering write, taken off {@link #writeQueue} so an overflow
+     * never drops a half written frame. Allocated on the first write, idle connections never need it.
+     */
+    private ByteBuffer[] writeBuffers;
+
+    /**
+     * Index of the first unwritten buffer in {@link #writeBuffers}
+     */
+    private int writeOffset;
+
+    /**
+     * Number of buffers in {@link #writeBuffers}
+     */
+    private int writeCount;
+
+    /**
+     * Set while a flush is pending on {@link #ioLoop} or the channel waits for {@link SelectionKey#OP_WRITE}
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * Bytes queued since the last {@link #flush()} started, roughly: frames dropped on overflow still count
+     */
+    private final AtomicLong unflushedBytes = new AtomicLong();
+
+    /**
+     * Longest time a queued frame waits for more before {@link #flush()}, 0 for none
+     */
+    private final long flushNanos;
+
+    /**
+     * {@link #unflushedBytes} that are flushed without waiting longer
+     */
+    private final int flushBytes;
+
+    /**
+     * Shortest frame sent compressed if the client has {@link #FEATURE_COMPRESSION}
+     */
+    private final int compressionMinBytes;
+
+    /**
+     * Set when the connection should be closed once {@link #writeQueue} is drained
+     */
+    private volatile boolean closeAfterFlush;
+
+    /**
+     * Set once {@link #close()} was called
+     */
+    private volatile boolean closed;
+
+    /**
+     * Notes the reads for the {@link IdleReaper}
+     */
+    private final IdleReaper.Watch watch;
+
+    /**
+     * @param socketChannel {@link #socketChannel}
+     * @param selectionKey {@link #selectionKey}
+     * @param tlsSession {@link #tlsSession}
+     * @param ioLoop {@link #ioLoop}
+     * @param admission {@link #admission}
+     * @param chatServer {@link #chatServer}
+     */
+    public NioConnection( SocketChannel socketChannel,
+                          SelectionKey selectionKey,
+                          TlsSession tlsSession,
+                          IoLoop ioLoop,
+                          AdmissionControl.Admission admission,
+                          ChatServer chatServer ){
+        this.socketChannel = socketChannel;
+        this.selectionKey = selectionKey;
+        this.tlsSession = tlsSession;
+        this.ioLoop = ioLoop;
+        this.admission = admission;
+        this.chatServer = chatServer;
+        this.writeQueue = chatServer.newOutboundQueue();
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos( chatServer.getServerConfig().getWriteFlushMillis() );
+        this.flushBytes = chatServer.getServerConfig().getWriteFlushBytes();
+        this.compressionMinBytes = chatServer.getServerConfig().getCompressionMinBytes();
+        this.watch = chatServer.getIdleReaper().watch( this );
+        if ( tlsSession != null ) {
+            tlsSession.setTasksDone( () -> ioLoop.execute( this::resume ) );
+        }
+    }
+
+    /**
+     * @return {@link #clientName}
+     */
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * @return {@link #clientId}
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    /**
+     * sets {@link #clientId}
+     * @param clientId {@link #clientId}
+     */
+    public void setClientId( int clientId ) {
+        this.clientId = clientId;
+    }
+
+    /**
+     * @return {@link #wireFormat}
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * @param feature a feature char such as {@link #FEATURE_USER_DELTAS}
+     *
+     * @return true if it was agreed on in the {@link Handshake}
+     */
+    public boolean hasFeature( char feature ){
+        Handshake handshake = agreed;
+        return handshake != null && handshake.has( feature );
+    }
+
+    /**
+     * Queues the frame and makes sure {@link #ioLoop} will write it, closes the connection if the client
+     * does not keep up. Safe to call from any thread.
+     * With a {@link #flushNanos} the write waits that long for more frames, or until {@link #flushBytes} are queued.
+     * Long frames are compressed if the client has {@link #FEATURE_COMPRESSION}.
+     *
+     * @param frame the encoded line
+     */
+    public void send( Frame frame ){
+        if ( closed ) {
+            return;
+        }
+        if ( hasFeature( FEATURE_COMPRESSION ) ) {
+            frame = frame.compressed( wireFormat, compressionMinBytes );
+        }
+        if ( !writeQueue.offer( frame.buffer() ) ) {
+            ServerLog.info( "ChatServer: too slow " + clientName );
+            close();
+            return;
+        }
+        long bytes = unflushedBytes.addAndGet( frame.length() );
+        if ( flushScheduled.compareAndSet( false, true ) ) {
+            if ( flushNanos > 0 && bytes < flushBytes ) {
+                ioLoop.schedule( this::flush, flushNanos );
+            }
+            else {
+                ioLoop.execute( this::flush );
+            }
+        }
+        else if ( flushNanos > 0 && bytes >= flushBytes && bytes - frame.length() < flushBytes ) {
+            ioLoop.execute( this::flush );
+        }
+    }
+
+    /**
+     * @return the size of {@link #writeQueue}, not counting frames already taken into {@link #writeBuffers}
+     */
+    public int getQueuedFrames(){
+        return writeQueue.size();
+    }
+
+    /**
+     * Sends the frame and closes the connection once it has been written
+     *
+     * @param frame the encoded message
+     */
+    public void sendAndClose( Frame frame ){
+        closeAfterFlush = true;
+        send( frame );
+    }
+
+    /**
+     * Reads what is available on {@link #socketChannel}, runs on {@link #ioLoop}.
+     * With TLS everything already unwrapped is read too, the selector would not report it,
+     * and what the handshake needs to send is flushed. While the delegated tasks of the handshake run
+     * elsewhere the channel is not selected for reading, {@link #resume()} goes on once they are done.
+     *
+     * @param readBuffer cleared buffer to read into
+     */
+    public void onReadable( ByteBuffer readBuffer ){
+        watch.touch();
+        try {
+            while ( true ) {
+                int count = tlsSession == null ? socketChannel.read( readBuffer ) : tlsSession.read( socketChannel, readBuffer );
+                if ( count < 0 ) {
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                while ( !closed && !closeAfterFlush && frameDecoder.decode( readBuffer, this ) ) {
+                }
+                if ( tlsSession == null || count == 0 || closed || closeAfterFlush ) {
+                    break;
+                }
+                readBuffer.clear();
+            }
+            if ( tlsSession != null && tlsSession.isWaitingForTasks() ) {
+                selectionKey.interestOps( selectionKey.interestOps() & ~SelectionKey.OP_READ );
+            }
+            if ( tlsSession != null && tlsSession.hasPendingOutput() && flushScheduled.compareAndSet( false, true ) ) {
+                flush();
+            }
+        }
+        catch ( IOException ioException ) {
+            close();
+        }
+    }
+
+    /**
+     * Goes on with the TLS handshake once its delegated tasks are done, then writes what waited for it, runs on {@link #ioLoop}
+     */
+    private void resume(){
+        if ( closed ) {
+            return;
+        }
+        selectionKey.interestOps( selectionKey.interestOps() | SelectionKey.OP_READ );
+        ioLoop.read( this );
+        if ( !closed && flushScheduled.get() ) {
+            flush();
+        }
+    }
+
+    /**
+     * The first line is the {@link Handshake}, every later line a {@link #MESSAGE}, {@link #MULTICAST} or {@link #ROOM_MESSAGE},
+     * dropped if over the rate, a {@link #ROOM_JOIN} or {@link #ROOM_LEAVE}, a {@link #SUBSCRIBE}, a {@link #REPLAY},
+     * a lone {@link #USER_LIST} asking for the roster again or a lone {@link #PING}
+     *
+     * @param line a line from the client
+     */
+    public void onLine( String line ){
+        if ( clientName == null ) {
+            handshake( Handshake.parse( line, chatServer.getSupportedFeatures() ) );
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == MESSAGE ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeMessage( this, line );
+            }
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == MULTICAST ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeMulticast( line );
+            }
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == SUBSCRIBE ) {
+            chatServer.subscribe( this, line );
+        }
+        else if ( line.length() == 1 && line.charAt( 0 ) == USER_LIST ) {
+            chatServer.sendUserList( this );
+        }
+        else if ( line.length() == 1 && line.charAt( 0 ) == PING ) {
+            send( wireFormat.encodeReply( PONG ) );
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == ROOM_MESSAGE ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeRoomMessage( this, line );
+            }
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == ROOM_JOIN ) {
+            chatServer.joinRoom( this, line.substring( 1 ) );
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == ROOM_LEAVE ) {
+            chatServer.leaveRoom( this, line.substring( 1 ) );
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == REPLAY ) {
+            try {
+                chatServer.replayJournal( this, Long.parseLong( line.substring( 1 ) ) );
+            }
+            catch ( NumberFormatException numberFormatException ) {
+                // not a sequence number, ignored like any unknown line
+            }
+        }
+    }
+
+    /**
+     * Handles binary {@link #MESSAGE}, {@link #MULTICAST}, {@link #ROOM_MESSAGE}, {@link #ROOM_JOIN}, {@link #ROOM_LEAVE}, {@link #REPLAY} frames,
+     * {@link #SUBSCRIBE}s, {@link #USER_LIST} requests and {@link #PING}s
+     *
+     * @param tag the tag of the frame
+     * @param body the body of the frame
+     *
+     * @throws IOException if the frame is malformed
+     */
+    public void onFrame( char tag,
+                         ByteBuffer body ) throws IOException {
+        if ( tag == MESSAGE ) {
+            int recipientId = BinaryCodec.getVarint( body );
+            if ( admission.tryMessage() ) {
+                chatServer.routeMessage( this, recipientId, body );
+            }
+        }
+        else if ( tag == MULTICAST ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeMulticast( body );
+            }
+        }
+        else if ( tag == SUBSCRIBE ) {
+            chatServer.subscribe( this, body );
+        }
+        else if ( tag == USER_LIST ) {
+            chatServer.sendUserList( this );
+        }
+        else if ( tag == PING ) {
+            send( wireFormat.encodeReply( PONG ) );
+        }
+        else if ( tag == ROOM_MESSAGE ) {
+            String roomName = BinaryCodec.getUtf8( body, BinaryCodec.getVarint( body ) );
+            if ( admission.tryMessage() ) {
+                chatServer.routeRoomMessage( this, roomName, body );
+            }
+        }
+        else if ( tag == ROOM_JOIN ) {
+            chatServer.joinRoom( this, BinaryCodec.getUtf8( body, body.remaining() ) );
+        }
+        else if ( tag == ROOM_LEAVE ) {
+            chatServer.leaveRoom( this, BinaryCodec.getUtf8( body, body.remaining() ) );
+        }
+        else if ( tag == REPLAY ) {
+            chatServer.replayJournal( this, BinaryCodec.getVarlong( body ) );
+        }
+    }
+
+    /**
+     * Agrees on the features and logs the client on
+     *
+     * @param handshake the first line from the client
+     */
+    private void handshake( Handshake handshake ){
+        if ( handshake.getClientName().isEmpty() ) {
+            close();
+            return;
+        }
+        if ( handshake.isHello() ) {
+            send( handshake.getReply() );
+        }
+        if ( handshake.getWireFormat() == WireFormat.BINARY ) {
+            frameDecoder = new BinaryFramer();
+        }
+        wireFormat = handshake.getWireFormat();
+        agreed = handshake;
+        clientName = handshake.getClientName();
+        char reply = chatServer.login( this, clientName );
+        if ( reply != 0 ) {
+            clientName = null;
+            sendAndClose( wireFormat.encodeReply( reply ) );
+        }
+    }
+
+    /**
+     * Writes as much of {@link #writeQueue} as the socket takes with gathering writes, runs on {@link #ioLoop}
+     */
+    public void flush(){
+        if ( closed ) {
+            return;
+        }
+        unflushedBytes.set( 0 );
+        try {
+            if ( tlsSession != null && tlsSession.isWaitingForTasks() ) {
+                // resume() flushes once the handshake goes on
+                return;
+            }
+            if ( tlsSession != null && !tlsSession.flush( socketChannel ) ) {
+                selectionKey.interestOps( selectionKey.interestOps() | SelectionKey.OP_WRITE );
+                return;
+            }
+            while ( true ) {
+                while ( writeOffset < writeCount || fillWriteBuffers() ) {
+                    long startNanos = System.nanoTime();
+                    boolean drained = true;
+                    if ( tlsSession == null ) {
+                        socketChannel.write( writeBuffers, writeOffset, writeCount - writeOffset );
+                    }
+                    else {
+                        drained = tlsSession.write( socketChannel, writeBuffers, writeOffset, writeCount - writeOffset );
+                    }
+                    chatServer.getServerMetrics().written( System.nanoTime() - startNanos );
+                    int written = writeOffset;
+                    while ( writeOffset < writeCount && !writeBuffers[writeOffset].hasRemaining() ) {
+                        writeBuffers[writeOffset++] = null;
+                    }
+                    chatServer.getOutboundCounters().written( writeOffset - written );
+                    if ( writeOffset < writeCount || !drained ) {
+                        selectionKey.interestOps( selectionKey.interestOps() | SelectionKey.OP_WRITE );
+                        return;
+                    }
+                }
+                selectionKey.interestOps( selectionKey.interestOps() & ~SelectionKey.OP_WRITE );
+                flushScheduled.set( false );
+                if ( writeQueue.isEmpty() || !flushScheduled.compareAndSet( false, true ) ) {
+                    break;
+                }
+            }
+            if ( closeAfterFlush ) {
+                close();
+            }
+        }
+        catch ( IOException ioException ) {
+            close();
+        }
+    }
+
+    /**
+     * Moves the next queued frames into {@link #writeBuffers}
+     *
+     * @return false if nothing was queued
+     */
+    private boolean fillWriteBuffers(){
+        if ( writeBuffers == null ) {
+            writeBuffers = new ByteBuffer[ GATHER_LIMIT ];
+        }
+        writeOffset = 0;
+        writeCount = writeQueue.drainTo( writeBuffers, 0, GATHER_LIMIT );
+        return writeCount > 0;
+    }
+
+    /**
+     * Closes {@link #socketChannel} and logs the client off, runs on {@link #ioLoop}
+     */
+    public void close(){
+        if ( !ioLoop.inLoop() ) {
+            ioLoop.execute( this::close );
+            return;
+        }
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        watch.cancel();
+        selectionKey.cancel();
+        try {
+            socketChannel.close();
+        }
+        catch ( IOException ioException ) {
+            ioException.printStackTrace();
+        }
+        admission.release();
+        writeQueue.close();
+        writeBuffers = null;
+        writeOffset = 0;
+        writeCount = 0;
+        if ( clientName != null ) {
+            ServerLog.info( "ChatServer: disconnect " + clientName );
+            chatServer.logout( this );
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps directed messages to users that are not logged on in one mailbox file per user
+ * and hands them over in one write when the user logs on again.
+ * <p>
+ * A mailbox holds at most maxBytes; storing into a full one first drops the expired and then the oldest messages.
+ * Messages older than the time to live are never delivered and mailboxes not written for that long are deleted.
+ * All file work happens on one daemon thread, so the reading threads only queue a task.
+ */
+public class OfflineStore {
+    /**
+     * Extension of the mailbox files
+     */
+    private static final String MAILBOX = ".mbox";
+
+    /**
+     * Bytes a message takes besides its text: expiry time and text length
+     */
+    private static final int RECORD_OVERHEAD = 8 + 4;
+
+    /**
+     * The directory of the mailboxes
+     */
+    private final File directory;
+
+    /**
+     * Most bytes of one mailbox
+     */
+    private final int maxBytes;
+
+    /**
+     * Most mailboxes
+     */
+    private final int maxMailboxes;
+
+    /**
+     * How long a message is kept
+     */
+    private final long ttlMillis;
+
+    /**
+     * The logged on clients, checked again before storing
+     */
+    private final ClientRegistry clientRegistry;
+
+    /**
+     * Runs all file work in order
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Number of mailbox files, only used on {@link #executor}
+     */
+    private int mailboxes;
+
+    /**
+     * Opens the store in a directory, creating it if needed
+     *
+     * @param directory {@link #directory}
+     * @param maxBytes {@link #maxBytes}
+     * @param maxMailboxes {@link #maxMailboxes}
+     * @param ttlSeconds how long a message is kept
+     * @param clientRegistry {@link #clientRegistry}
+     *
+     * @throws IOException if the directory cannot be created
+     */
+    public OfflineStore( File directory,
+                         int maxBytes,
+                         int maxMailboxes,
+                         long ttlSeconds,
+                         ClientRegistry clientRegistry ) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxMailboxes = maxMailboxes;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis( ttlSeconds );
+        this.clientRegistry = clientRegistry;
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "cannot create " + directory );
+        }
+        executor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "ChatServer-mailbox" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        executor.execute( this::sweep );
+        long sweepMillis = Math.max( 1000, Math.min( ttlMillis, TimeUnit.HOURS.toMillis( 1 ) ) );
+        executor.scheduleWithFixedDelay( this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Stores a message for a user, or sends it if the user logged on meanwhile
+     *
+     * @param clientName the recipient
+     * @param text the message text as the recipient gets it
+     */
+    public void store( String clientName,
+                       String text ){
+        executor.execute( () -> {
+            ClientConnection clientConnection = clientRegistry.get( clientName );
+            if ( clientConnection != null ) {
+                clientConnection.send( clientConnection.getWireFormat().encodeMessage( text, 0, 1 ) );
+                return;
+            }
+            try {
+                write( clientName, text );
+            }
+            catch ( IOException ioException ) {
+                ServerLog.info( "ChatServer: cannot store message for " + clientName + ": " + ioException.getMessage() );
+            }
+        } );
+    }
+
+    /**
+     * Sends a user that just logged on the messages kept for it, all in one {@link Frame}, and empties its mailbox
+     *
+     * @param clientConnection the client
+     */
+    public void deliver( ClientConnection clientConnection ){
+        String clientName = clientConnection.getClientName();
+        executor.execute( () -> {
+            File file = mailbox( clientName );
+            if ( !file.exists() ) {
+                return;
+            }
+            try {
+                ArrayList<Record> records = read( file );
+                WireFormat wireFormat = clientConnection.getWireFormat();
+                ArrayList<Frame> frames = new ArrayList<>();
+                for ( Record record : records ) {
+                    frames.add( wireFormat.encodeMessage( record.text, 0, 1 ) );
+                }
+                if ( !frames.isEmpty() ) {
+                    clientConnection.send( Frame.concat( frames ) );
+                    ServerLog.info( "ChatServer: delivered " + frames.size() + " stored messages to " + clientName );
+                }
+            }
+            catch ( IOException ioException ) {
+                ServerLog.info( "ChatServer: cannot read mailbox of " + clientName + ": " + ioException.getMessage() );
+            }
+            delete( file );
+        } );
+    }
+
+    /**
+     * Stops the file work, queued messages are not stored
+     */
+    public void close(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * Appends a message to a mailbox, rewriting it without the expired and oldest messages if it would not fit
+     */
+    private void write( String clientName,
+                        String text ) throws IOException {
+        byte[] textBytes = text.getBytes( StandardCharsets.UTF_8 );
+        int length = RECORD_OVERHEAD + textBytes.length;
+        if ( length > maxBytes ) {
+            return;
+        }
+        File file = mailbox( clientName );
+        boolean exists = file.exists();
+        if ( !exists && mailboxes >= maxMailboxes ) {
+            ServerLog.info( "ChatServer: too many mailboxes, dropped message for " + clientName );
+            return;
+        }
+        long expires = System.currentTimeMillis() + ttlMillis;
+        if ( !exists || file.length() + length <= maxBytes ) {
+            try ( DataOutputStream dataOutputStream =
+                      new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file, true ) ) ) ) {
+                writeRecord( dataOutputStream, expires, textBytes );
+            }
+            if ( !exists ) {
+                mailboxes++;
+            }
+            return;
+        }
+        ArrayList<Record> records = read( file );
+        int bytes = length;
+        for ( Record record : records ) {
+            bytes += record.length();
+        }
+        while ( bytes > maxBytes ) {
+            bytes -= records.remove( 0 ).length();
+        }
+        File temporary = new File( directory, file.getName() + ".tmp" );
+        try ( DataOutputStream dataOutputStream =
+                  new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temporary ) ) ) ) {
+            for ( Record record : records ) {
+                writeRecord( dataOutputStream, record.expires, record.textBytes );
+            }
+            writeRecord( dataOutputStream, expires, textBytes );
+        }
+        if ( !temporary.renameTo( file ) ) {
+            throw new IOException( "cannot replace " + file );
+        }
+    }
+
+    private static void writeRecord( DataOutputStream dataOutputStream,
+                                     long expires,
+                                     byte[] textBytes ) throws IOException {
+        dataOutputStream.writeLong( expires );
+        dataOutputStream.writeInt( textBytes.length );
+        dataOutputStream.write( textBytes );
+    }
+
+    /**
+     * @return the messages of a mailbox that have not expired, oldest first, a torn last record is left out
+     */
+    private ArrayList<Record> read( File file ) throws IOException {
+        ArrayList<Record> records = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        try ( DataInputStream dataInputStream = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) ) {
+            while ( true ) {
+                long expires;
+                byte[] textBytes;
+                try {
+                    expires = dataInputStream.readLong();
+                    int length = dataInputStream.readInt();
+                    if ( length < 0 || length > maxBytes ) {
+                        throw new IOException( "corrupt mailbox " + file );
+                    }
+                    textBytes = new byte[ length ];
+                    dataInputStream.readFully( textBytes );
+                }
+                catch ( EOFException eofException ) {
+                    break;
+                }
+                if ( expires > now ) {
+                    records.add( new Record( expires, textBytes ) );
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Deletes the mailboxes not written for longer than the time to live and counts the others
+     */
+    private void sweep(){
+        File[] files = directory.listFiles( ( dir, name ) -> name.endsWith( MAILBOX ) );
+        if ( files == null ) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        mailboxes = files.length;
+        for ( File file : files ) {
+            if ( file.lastModified() < oldest ) {
+                delete( file );
+            }
+        }
+    }
+
+    private void delete( File file ){
+        if ( file.delete() ) {
+            mailboxes--;
+        }
+    }
+
+    /**
+     * @return the mailbox file of a user, named by the hex of the UTF-8 name so any name is a valid file name
+     */
+    private File mailbox( String clientName ){
+        StringBuilder stringBuilder = new StringBuilder();
+        for ( byte b : clientName.getBytes( StandardCharsets.UTF_8 ) ) {
+            stringBuilder.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return new File( directory, stringBuilder.append( MAILBOX ).toString() );
+    }
+
+    /**
+     * One stored message
+     */
+    private static class Record {
+        /**
+         * {@link System#currentTimeMillis()} after which it is dropped
+         */
+        private final long expires;
+
+        /**
+         * The UTF-8 text
+         */
+        private final byte[] textBytes;
+
+        /**
+         * The text
+         */
+        private final String text;
+
+        private Record( long expires,
+                        byte[] textBytes ){
+            this.expires = expires;
+            this.textBytes = textBytes;
+            this.text = new String( textBytes, StandardCharsets.UTF_8 );
+        }
+
+        /**
+         * @return the bytes it takes in a mailbox
+         */
+        private int length(){
+            return RECORD_OVERHEAD + textBytes.length;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide counters of all {@link OutboundQueue}s
+ */
+public class OutboundCounters {
+    /**
+     * Items accepted by a queue
+     */
+    private final LongAdder enqueued = new LongAdder();
+
+    /**
+     * Items written to a client
+     */
+    private final LongAdder written = new LongAdder();
+
+    /**
+     * Items dropped by {@link OverflowPolicy#DROP_OLDEST}
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Senders that had to wait under {@link OverflowPolicy#BLOCK}
+     */
+    private final LongAdder blocked = new LongAdder();
+
+    /**
+     * Clients disconnected because their queue overflowed
+     */
+    private final LongAdder disconnected = new LongAdder();
+
+    /**
+     * Counts an item accepted by a queue
+     */
+    public void enqueued(){
+        enqueued.increment();
+    }
+
+    /**
+     * Counts an item written to a client
+     */
+    public void written(){
+        written.increment();
+    }
+
+    /**
+     * Counts items written to a client at once
+     *
+     * @param count the number of items
+     */
+    public void written( int count ){
+        written.add( count );
+    }
+
+    /**
+     * Counts an item dropped by {@link OverflowPolicy#DROP_OLDEST}
+     */
+    public void dropped(){
+        dropped.increment();
+    }
+
+    /**
+     * Counts a sender that had to wait under {@link OverflowPolicy#BLOCK}
+     */
+    public void blocked(){
+        blocked.increment();
+    }
+
+    /**
+     * Counts a client disconnected because its queue overflowed
+     */
+    public void disconnected(){
+        disconnected.increment();
+    }
+
+    /**
+     * @return {@link #enqueued}
+     */
+    public long getEnqueued(){
+        return enqueued.sum();
+    }
+
+    /**
+     * @return {@link #written}
+     */
+    public long getWritten(){
+        return written.sum();
+    }
+
+    /**
+     * @return {@link #dropped}
+     */
+    public long getDropped(){
+        return dropped.sum();
+    }
+
+    /**
+     * @return {@link #blocked}
+     */
+    public long getBlocked(){
+        return blocked.sum();
+    }
+
+    /**
+     * @return {@link #disconnected}
+     */
+    public long getDisconnected(){
+        return disconnected.sum();
+    }
+
+    /**
+     * @return all counters on one line
+     */
+    public String toString(){
+        return "enqueued=" + getEnqueued() +
+               " written=" + getWritten() +
+               " dropped=" + getDropped() +
+               " blocked=" + getBlocked() +
+               " disconnected=" + getDisconnected();
+    }
+}
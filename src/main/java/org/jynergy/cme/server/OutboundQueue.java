@@ -0,0 +1,287 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The bounded queue of items waiting to be written to one client.
+ * Senders only ever touch the queue, the client's own writer drains it, so a slow client
+ * costs its senders at most what its {@link OverflowPolicy} allows.
+ *
+ * @param <E> the queued item type
+ */
+public class OutboundQueue<E> {
+    /**
+     * The queued items, oldest first
+     */
+    private final ArrayDeque<E> deque;
+
+    /**
+     * Most items held at once
+     */
+    private final int capacity;
+
+    /**
+     * What happens when the queue is full
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * How long a sender waits under {@link OverflowPolicy#BLOCK}
+     */
+    private final long blockTimeoutNanos;
+
+    /**
+     * Asked before a sender waits under {@link OverflowPolicy#BLOCK}, false if it must not,
+     * the client is then disconnected at once
+     */
+    private final BooleanSupplier mayWait;
+
+    /**
+     * Server wide counters
+     */
+    private final OutboundCounters outboundCounters;
+
+    /**
+     * Guards all state, a {@link ReentrantLock} so waiting virtual threads do not pin their carrier
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when an item is added or the queue is closed
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Signalled when an item is removed or the queue is closed
+     */
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Set by {@link #close()}
+     */
+    private boolean closed;
+
+    /**
+     * @param capacity {@link #capacity}
+     * @param overflowPolicy {@link #overflowPolicy}
+     * @param blockTimeoutMillis how long a sender waits under {@link OverflowPolicy#BLOCK}
+     * @param mayWait {@link #mayWait}
+     * @param outboundCounters {@link #outboundCounters}
+     */
+    public OutboundQueue( int capacity,
+                          OverflowPolicy overflowPolicy,
+                          long blockTimeoutMillis,
+                          BooleanSupplier mayWait,
+                          OutboundCounters outboundCounters ){
+        this.deque = new ArrayDeque<>( Math.min( capacity, 16 ) );
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos( blockTimeoutMillis );
+        this.mayWait = mayWait;
+        this.outboundCounters = outboundCounters;
+    }
+
+    /**
+     * Queues an item, applying {@link #overflowPolicy} if the queue is full
+     *
+     * @param item the item
+     *
+     * @return false if the client has to be disconnected
+     */
+    public boolean offer( E item ){
+        lock.lock();
+        try {
+            if ( closed ) {
+                return true;
+            }
+            if ( deque.size() >= capacity ) {
+                switch ( overflowPolicy ) {
+                    case DROP_OLDEST:
+                        deque.pollFirst();
+                        outboundCounters.dropped();
+                        break;
+                    case DISCONNECT:
+                        outboundCounters.disconnected();
+                        return false;
+                    case BLOCK:
+                        if ( !mayWait.getAsBoolean() ) {
+                            outboundCounters.disconnected();
+                            return false;
+                        }
+                        outboundCounters.blocked();
+                        long nanos = blockTimeoutNanos;
+                        while ( deque.size() >= capacity && !closed ) {
+                            if ( nanos <= 0 ) {
+                                outboundCounters.disconnected();
+                                return false;
+                            }
+                            nanos = notFull.awaitNanos( nanos );
+                        }
+                        if ( closed ) {
+                            return true;
+                        }
+                        break;
+                }
+            }
+            deque.addLast( item );
+            outboundCounters.enqueued();
+            notEmpty.signal();
+            return true;
+        }
+        catch ( InterruptedException interruptedException ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the oldest item or null if there is none
+     */
+    public E poll(){
+        lock.lock();
+        try {
+            E item = deque.pollFirst();
+            if ( item != null ) {
+                notFull.signal();
+            }
+            return item;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for an item
+     *
+     * @return the oldest item or null once the queue is closed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E take() throws InterruptedException {
+        lock.lock();
+        try {
+            while ( deque.isEmpty() ) {
+                if ( closed ) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            notFull.signal();
+            return deque.pollFirst();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits a limited time for an item
+     *
+     * @param timeoutNanos longest wait
+     *
+     * @return the oldest item or null if none came in time or the queue is closed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E poll( long timeoutNanos ) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while ( deque.isEmpty() ) {
+                if ( closed || nanos <= 0 ) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos( nanos );
+            }
+            notFull.signal();
+            return deque.pollFirst();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves queued items into an array without waiting
+     *
+     * @param array receives the items, oldest first
+     * @param offset index of the first item in the array
+     * @param maxItems most items to move
+     *
+     * @return the number of items moved
+     */
+    public int drainTo( E[] array,
+                        int offset,
+                        int maxItems ){
+        lock.lock();
+        try {
+            int count = 0;
+            while ( count < maxItems && !deque.isEmpty() ) {
+                array[offset + count] = deque.pollFirst();
+                count++;
+            }
+            if ( count > 0 ) {
+                notFull.signalAll();
+            }
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if no items are queued
+     */
+    public boolean isEmpty(){
+        lock.lock();
+        try {
+            return deque.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queued items
+     */
+    public int size(){
+        lock.lock();
+        try {
+            return deque.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all items and releases everyone waiting, later items are ignored
+     */
+    public void close(){
+        lock.lock();
+        try {
+            closed = true;
+            deque.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
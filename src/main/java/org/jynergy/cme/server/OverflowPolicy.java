@@ -0,0 +1,28 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+/**
+ * What an {@link OutboundQueue} does when a client does not keep up and the queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the oldest queued item to make room, the client misses messages but stays connected
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnect the client
+     */
+    DISCONNECT,
+
+    /**
+     * Make the sender wait for room up to a timeout, then disconnect the client.
+     * A sender that must not wait, one holding the journal lock, disconnects the client at once;
+     * in {@link ServerMode#NIO} the senders are the io loops, so the server uses {@link #DISCONNECT} instead.
+     */
+    BLOCK
+}
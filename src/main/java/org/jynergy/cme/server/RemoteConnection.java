@@ -0,0 +1,115 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stands in the {@link ClientRegistry} for a user logged on at another node of the cluster,
+ * so rosters list it and directed messages find it like any local client.
+ * It takes {@link WireFormat#TEXT} frames and forwards the {@link #MESSAGE}s among them to its node;
+ * roster frames are not forwarded, every node pushes its own.
+ */
+public class RemoteConnection implements ClientConnection, Protocol {
+    /**
+     * The user name
+     */
+    private final String clientName;
+
+    /**
+     * Id of the node the user is logged on at
+     */
+    private final String nodeId;
+
+    /**
+     * The link to {@link #nodeId}
+     */
+    private final ClusterNode clusterNode;
+
+    /**
+     * The id the local {@link ClientRegistry} gave the user
+     */
+    private int clientId;
+
+    /**
+     * @param clientName {@link #clientName}
+     * @param nodeId {@link #nodeId}
+     * @param clusterNode {@link #clusterNode}
+     */
+    public RemoteConnection( String clientName,
+                             String nodeId,
+                             ClusterNode clusterNode ){
+        this.clientName = clientName;
+        this.nodeId = nodeId;
+        this.clusterNode = clusterNode;
+    }
+
+    public String getClientName(){
+        return clientName;
+    }
+
+    public int getClientId(){
+        return clientId;
+    }
+
+    public void setClientId( int clientId ){
+        this.clientId = clientId;
+    }
+
+    /**
+     * @return {@link #nodeId}
+     */
+    public String getNodeId(){
+        return nodeId;
+    }
+
+    /**
+     * @return {@link WireFormat#TEXT}, whose message lines hold the text as is
+     */
+    public WireFormat getWireFormat(){
+        return WireFormat.TEXT;
+    }
+
+    public boolean hasFeature( char feature ){
+        return false;
+    }
+
+    /**
+     * Forwards the text of every {@link #MESSAGE} line in the frame to {@link #nodeId}
+     *
+     * @param frame one or more text lines
+     */
+    public void send( Frame frame ){
+        ByteBuffer byteBuffer = frame.buffer();
+        int start = byteBuffer.position();
+        for ( int i = start; i < byteBuffer.limit(); i++ ) {
+            if ( byteBuffer.get( i ) == '\n' ) {
+                if ( i > start && byteBuffer.get( start ) == MESSAGE ) {
+                    ByteBuffer utf8Text = byteBuffer.duplicate();
+                    utf8Text.limit( i );
+                    utf8Text.position( start + 1 );
+                    clusterNode.forwardDirect( nodeId, clientName, utf8Text );
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * @return 0, the frames are queued on the link of the node
+     */
+    public int getQueuedFrames(){
+        return 0;
+    }
+
+    /**
+     * Does nothing, the user is logged off by its node
+     */
+    public void close(){
+    }
+}
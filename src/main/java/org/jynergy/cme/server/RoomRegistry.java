@@ -0,0 +1,241 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The rooms of a {@link ChatServer} and their members.
+ * Every room keeps a copy on write array of its members, so a message to a room touches only its members
+ * and never locks, while joins and leaves of a room serialize on that room alone.
+ */
+public class RoomRegistry implements Protocol {
+    /**
+     * Longest room name in chars
+     */
+    public static final int MAX_ROOM_NAME_LENGTH = 64;
+
+    /**
+     * Shared empty member array
+     */
+    private static final ClientConnection[] NO_MEMBERS = new ClientConnection[0];
+
+    /**
+     * The rooms with at least one member by name
+     */
+    private final ConcurrentHashMap<String,Room> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * The rooms every client is in, so a leaving client is taken out of all of them.
+     * Only the reading thread of a client joins and leaves for it, so its list needs no lock.
+     */
+    private final ConcurrentHashMap<ClientConnection,ArrayList<Room>> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * Most rooms one client may be in
+     */
+    private final int maxRoomsPerClient;
+
+    /**
+     * @param maxRoomsPerClient {@link #maxRoomsPerClient}
+     */
+    public RoomRegistry( int maxRoomsPerClient ){
+        this.maxRoomsPerClient = maxRoomsPerClient;
+    }
+
+    /**
+     * @param roomName a room name sent by a client
+     *
+     * @return true if it is not empty, not to long and has no {@link #SEPERATOR} or line break
+     */
+    public static boolean isValidName( String roomName ){
+        if ( roomName.isEmpty() || roomName.length() > MAX_ROOM_NAME_LENGTH ) {
+            return false;
+        }
+        for ( int i = 0; i < roomName.length(); i++ ) {
+            char c = roomName.charAt( i );
+            if ( c == SEPERATOR || c == '\n' || c == '\r' ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a client to a room, creating the room if needed
+     *
+     * @param roomName the room
+     * @param clientConnection the client
+     *
+     * @return false if the name is invalid or the client is in to many rooms
+     */
+    public boolean join( String roomName,
+                         ClientConnection clientConnection ){
+        if ( !isValidName( roomName ) ) {
+            return false;
+        }
+        ArrayList<Room> clientRooms = memberships.computeIfAbsent( clientConnection, c -> new ArrayList<>() );
+        for ( Room room : clientRooms ) {
+            if ( room.name.equals( roomName ) ) {
+                return true;
+            }
+        }
+        if ( clientRooms.size() >= maxRoomsPerClient ) {
+            return false;
+        }
+        while ( true ) {
+            Room room = rooms.computeIfAbsent( roomName, Room::new );
+            if ( room.add( clientConnection ) ) {
+                clientRooms.add( room );
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a client out of a room, the room goes away with its last member
+     *
+     * @param roomName the room
+     * @param clientConnection the client
+     */
+    public void leave( String roomName,
+                       ClientConnection clientConnection ){
+        ArrayList<Room> clientRooms = memberships.get( clientConnection );
+        if ( clientRooms == null ) {
+            return;
+        }
+        for ( int i = 0; i < clientRooms.size(); i++ ) {
+            Room room = clientRooms.get( i );
+            if ( room.name.equals( roomName ) ) {
+                clientRooms.remove( i );
+                remove( room, clientConnection );
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a client out of all its rooms
+     *
+     * @param clientConnection the client
+     */
+    public void leaveAll( ClientConnection clientConnection ){
+        ArrayList<Room> clientRooms = memberships.remove( clientConnection );
+        if ( clientRooms == null ) {
+            return;
+        }
+        for ( Room room : clientRooms ) {
+            remove( room, clientConnection );
+        }
+        clientRooms.clear();
+    }
+
+    /**
+     * @param roomName the room
+     *
+     * @return a stable snapshot of the members of the room, must not be modified
+     */
+    public ClientConnection[] getMembers( String roomName ){
+        Room room = rooms.get( roomName );
+        return room == null ? NO_MEMBERS : room.members;
+    }
+
+    /**
+     * @return the number of rooms
+     */
+    public int size(){
+        return rooms.size();
+    }
+
+    /**
+     * Removes a member from a room and the room from {@link #rooms} once it is empty
+     */
+    private void remove( Room room,
+                         ClientConnection clientConnection ){
+        if ( room.remove( clientConnection ) ) {
+            rooms.remove( room.name, room );
+        }
+    }
+
+    /**
+     * One room and its members
+     */
+    private static class Room {
+        /**
+         * The room name
+         */
+        private final String name;
+
+        /**
+         * The members in joining order, replaced as a whole on every join and leave
+         */
+        private volatile ClientConnection[] members = NO_MEMBERS;
+
+        /**
+         * Set once the last member left, a closed room is never reused
+         */
+        private boolean closed;
+
+        /**
+         * Serializes joins and leaves of this room
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private Room( String name ){
+            this.name = name;
+        }
+
+        /**
+         * @return false if the room is closed and a new one has to be made
+         */
+        private boolean add( ClientConnection clientConnection ){
+            lock.lock();
+            try {
+                if ( closed ) {
+                    return false;
+                }
+                ClientConnection[] newMembers = Arrays.copyOf( members, members.length + 1 );
+                newMembers[members.length] = clientConnection;
+                members = newMembers;
+                return true;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return true if the room is now empty and closed
+         */
+        private boolean remove( ClientConnection clientConnection ){
+            lock.lock();
+            try {
+                ClientConnection[] oldMembers = members;
+                int index = Arrays.asList( oldMembers ).indexOf( clientConnection );
+                if ( index < 0 ) {
+                    return false;
+                }
+                ClientConnection[] newMembers = new ClientConnection[ oldMembers.length - 1 ];
+                System.arraycopy( oldMembers, 0, newMembers, 0, index );
+                System.arraycopy( oldMembers, index + 1, newMembers, index, oldMembers.length - index - 1 );
+                members = newMembers;
+                if ( newMembers.length == 0 ) {
+                    closed = true;
+                    return true;
+                }
+                return false;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Joins and leaves clients in a {@link ClientRegistry} and tells the clients about them.
+ * Changes are collected and pushed by one scheduler thread at most once per coalescing window,
+ * so a storm of logons costs every client a few roster frames instead of one per logon,
+ * and neither the accept path nor the handshakes ever encode or send a roster.
+ */
+public class RosterPublisher implements Protocol {
+    /**
+     * The logged on clients
+     */
+    private final ClientRegistry clientRegistry;
+
+    /**
+     * Shortest time between two pushes
+     */
+    private final long windowNanos;
+
+    /**
+     * Runs {@link #publish()}, one thread so pushes never overtake each other
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Serializes joins, leaves and taking {@link #pending}, so versions and changes stay in step.
+     * A {@link ReentrantLock} rather than a monitor so a {@link ServerMode#VIRTUAL} thread waiting for it
+     * does not pin its carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Changes not pushed yet, oldest first
+     */
+    private ArrayList<Change> pending = new ArrayList<>();
+
+    /**
+     * Set while a {@link #publish()} is scheduled
+     */
+    private boolean scheduled;
+
+    /**
+     * {@link System#nanoTime()} of the last push
+     */
+    private long lastPublishNanos;
+
+    /**
+     * @param clientRegistry {@link #clientRegistry}
+     * @param windowMillis shortest time between two pushes, 0 pushes every change as soon as possible
+     */
+    public RosterPublisher( ClientRegistry clientRegistry,
+                            long windowMillis ){
+        this.clientRegistry = clientRegistry;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos( windowMillis );
+        this.lastPublishNanos = System.nanoTime() - windowNanos;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "ChatServer-roster" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Adds a client and schedules telling the others
+     *
+     * @param clientName the name of the client
+     * @param clientConnection the connection of the client
+     * @param maxClients the most clients allowed at once
+     *
+     * @return 0 if added, otherwise {@link #TO_MANY_USERS} or {@link #USER_EXISTS}
+     */
+    public char join( String clientName,
+                      ClientConnection clientConnection,
+                      int maxClients ){
+        lock.lock();
+        try {
+            char reply = clientRegistry.add( clientName, clientConnection, maxClients );
+            if ( reply == 0 ) {
+                changed( USER_JOINED, clientConnection );
+            }
+            return reply;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client if it is still registered and schedules telling the others
+     *
+     * @param clientConnection the connection of the client
+     *
+     * @return true if it was removed
+     */
+    public boolean leave( ClientConnection clientConnection ){
+        lock.lock();
+        try {
+            if ( !clientRegistry.remove( clientConnection ) ) {
+                return false;
+            }
+            changed( USER_LEFT, clientConnection );
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the roster to one client that asked for it again,
+     * a {@link #USER_SNAPSHOT} if it has {@link #FEATURE_USER_DELTAS}, otherwise a {@link #USER_LIST}
+     *
+     * @param clientConnection the client
+     */
+    public void sendRoster( ClientConnection clientConnection ){
+        ClientConnection[] clients;
+        int version;
+        lock.lock();
+        try {
+            clients = clientRegistry.getClients();
+            version = clientRegistry.getVersion();
+        }
+        finally {
+            lock.unlock();
+        }
+        WireFormat wireFormat = clientConnection.getWireFormat();
+        if ( clientConnection.hasFeature( FEATURE_USER_DELTAS ) ) {
+            clientConnection.send( wireFormat.encodeUserSnapshot( version, clients, 1 ) );
+        }
+        else {
+            clientConnection.send( wireFormat.encodeUserList( clients ) );
+        }
+    }
+
+    /**
+     * Records a change and schedules {@link #publish()} if none is, must hold {@link #lock}
+     *
+     * @param tag {@link #USER_JOINED} or {@link #USER_LEFT}
+     * @param clientConnection the client that joined or left
+     */
+    private void changed( char tag,
+                          ClientConnection clientConnection ){
+        pending.add( new Change( tag, clientRegistry.getVersion(), clientConnection ) );
+        if ( !scheduled ) {
+            scheduled = true;
+            long delayNanos = Math.max( 0, lastPublishNanos + windowNanos - System.nanoTime() );
+            scheduler.schedule( this::publish, delayNanos, TimeUnit.NANOSECONDS );
+        }
+    }
+
+    /**
+     * Pushes the pending changes, every frame encoded at most once per {@link WireFormat}
+     * <UL>
+     *     <LI>clients without {@link #FEATURE_USER_DELTAS} get the whole {@link #USER_LIST}</LI>
+     *     <LI>clients with it that joined since the last push get a {@link #USER_SNAPSHOT}</LI>
+     *     <LI>the other clients with it get the {@link #USER_JOINED} and {@link #USER_LEFT} in order,
+     *     or a {@link #USER_SNAPSHOT} too if there are at least as many changes as clients</LI>
+     * </UL>
+     * {@link RemoteConnection}s are listed but get nothing, their own node pushes their roster
+     */
+    private void publish(){
+        ArrayList<Change> changes;
+        ClientConnection[] clients;
+        int version;
+        lock.lock();
+        try {
+            changes = pending;
+            pending = new ArrayList<>();
+            scheduled = false;
+            lastPublishNanos = System.nanoTime();
+            clients = clientRegistry.getClients();
+            version = clientRegistry.getVersion();
+        }
+        finally {
+            lock.unlock();
+        }
+        try {
+            Set<ClientConnection> joined = Collections.newSetFromMap( new IdentityHashMap<>() );
+            for ( Change change : changes ) {
+                if ( change.tag == USER_JOINED ) {
+                    joined.add( change.clientConnection );
+                }
+            }
+            boolean snapshotAll = changes.size() >= clients.length;
+            Frame[] listFrames = new Frame[ WireFormat.values().length ];
+            Frame[] snapshotFrames = new Frame[ WireFormat.values().length ];
+            Frame[][] changeFrames = new Frame[ changes.size() ][ WireFormat.values().length ];
+            for ( ClientConnection clientConnection : clients ) {
+                if ( clientConnection instanceof RemoteConnection ) {
+                    continue;
+                }
+                WireFormat wireFormat = clientConnection.getWireFormat();
+                int format = wireFormat.ordinal();
+                if ( !clientConnection.hasFeature( FEATURE_USER_DELTAS ) ) {
+                    if ( listFrames[format] == null ) {
+                        listFrames[format] = wireFormat.encodeUserList( clients );
+                    }
+                    clientConnection.send( listFrames[format] );
+                }
+                else if ( snapshotAll || joined.contains( clientConnection ) ) {
+                    if ( snapshotFrames[format] == null ) {
+                        snapshotFrames[format] = wireFormat.encodeUserSnapshot( version, clients, clients.length );
+                    }
+                    clientConnection.send( snapshotFrames[format] );
+                }
+                else {
+                    for ( int i = 0; i < changes.size(); i++ ) {
+                        Change change = changes.get( i );
+                        if ( changeFrames[i][format] == null ) {
+                            changeFrames[i][format] = wireFormat.encodeUserChange( change.tag, change.version, change.clientId,
+                                                                                   change.clientName, clients.length );
+                        }
+                        clientConnection.send( changeFrames[i][format] );
+                    }
+                }
+            }
+            ServerLog.info( "ChatServer: " + clients.length + " users" );
+        }
+        catch ( RuntimeException runtimeException ) {
+            runtimeException.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the scheduler, pending changes are not pushed
+     */
+    public void close(){
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * A join or leave waiting to be pushed
+     */
+    private static class Change {
+        /**
+         * {@link #USER_JOINED} or {@link #USER_LEFT}
+         */
+        private final char tag;
+
+        /**
+         * The roster version after the change
+         */
+        private final int version;
+
+        /**
+         * The client that joined or left
+         */
+        private final ClientConnection clientConnection;
+
+        /**
+         * Id of {@link #clientConnection}, kept since a connection forgets it once closed
+         */
+        private final int clientId;
+
+        /**
+         * Name of {@link #clientConnection}, kept since a connection forgets it once closed
+         */
+        private final String clientName;
+
+        private Change( char tag,
+                        int version,
+                        ClientConnection clientConnection ){
+            this.tag = tag;
+            this.version = version;
+            this.clientConnection = clientConnection;
+            this.clientId = clientConnection.getClientId();
+            this.clientName = clientConnection.getClientName();
+        }
+    }
+}
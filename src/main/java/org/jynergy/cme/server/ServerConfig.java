@@ -0,0 +1,746 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Tunables of a {@link ChatServer}, read from properties prefixed with {@link #PREFIX}
+ * such as <code>-Dcme.outbound.capacity=256</code>, or from a properties file named by <code>-Dcme.config</code>
+ */
+public class ServerConfig {
+    /**
+     * Prefix of all property names
+     */
+    public static final String PREFIX = "cme.";
+
+    /**
+     * Most items queued for one client before {@link #overflowPolicy} applies
+     */
+    private final int outboundCapacity;
+
+    /**
+     * What happens when a client's queue is full
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * How long a sender waits under {@link OverflowPolicy#BLOCK}
+     */
+    private final long blockTimeoutMillis;
+
+    /**
+     * Shortest time between two roster pushes, joins and leaves in between are pushed together
+     */
+    private final long rosterCoalesceMillis;
+
+    /**
+     * Most open connections, also the most users logged on
+     */
+    private final int maxConnections;
+
+    /**
+     * Backlog of the listening socket
+     */
+    private final int acceptBacklog;
+
+    /**
+     * Most open connections from one address, 0 for no limit
+     */
+    private final int maxConnectionsPerAddress;
+
+    /**
+     * Messages a client may send per second, 0 for no limit
+     */
+    private final int messageRate;
+
+    /**
+     * Messages a client may send at once after being quiet
+     */
+    private final int messageBurst;
+
+    /**
+     * Most rooms one client may be in
+     */
+    private final int maxRoomsPerClient;
+
+    /**
+     * Loopback port of the plain text metrics of {@link ServerMetrics}, 0 for none
+     */
+    private final int metricsHttpPort;
+
+    /**
+     * Directory of the {@link MessageJournal}, empty for no journal
+     */
+    private final String journalDir;
+
+    /**
+     * Size of every data file of a journal segment
+     */
+    private final int journalSegmentBytes;
+
+    /**
+     * Time between forcing the journal to disk, 0 forces every message, -1 leaves it to the OS
+     */
+    private final int journalFsyncMillis;
+
+    /**
+     * Most journal segments kept, the oldest are deleted
+     */
+    private final int journalRetainSegments;
+
+    /**
+     * Directory of the {@link OfflineStore}, empty to drop messages to users that are not logged on
+     */
+    private final String mailboxDir;
+
+    /**
+     * Most bytes kept for one user that is not logged on
+     */
+    private final int mailboxMaxBytes;
+
+    /**
+     * Most users with kept messages
+     */
+    private final int mailboxMaxMailboxes;
+
+    /**
+     * Seconds a message for a user that is not logged on is kept
+     */
+    private final int mailboxTtlSeconds;
+
+    /**
+     * Id of this node in {@link #clusterMembers}, empty runs the server alone
+     */
+    private final String clusterNodeId;
+
+    /**
+     * The nodes of the cluster as <code>id@host:port</code> seperated by commas, this one included
+     */
+    private final String clusterMembers;
+
+    /**
+     * The secret shared by the nodes of the cluster, a link that cannot prove it knows it is refused
+     */
+    private final String clusterSecret;
+
+    /**
+     * Time between two gossips of all local users to the other nodes
+     */
+    private final int clusterGossipMillis;
+
+    /**
+     * Longest wait for the owner node of a name to answer a logon claim
+     */
+    private final int clusterClaimTimeoutMillis;
+
+    /**
+     * Longest time a written frame waits for more frames to the same client, 0 writes as soon as possible
+     */
+    private final int writeFlushMillis;
+
+    /**
+     * Bytes waiting for one client that are written at once, without waiting for {@link #writeFlushMillis}
+     */
+    private final int writeFlushBytes;
+
+    /**
+     * Set to disable Nagle's algorithm on client sockets, clear to let the kernel coalesce small writes too
+     */
+    private final boolean tcpNoDelay;
+
+    /**
+     * Shortest frame sent compressed to clients with {@link org.jynergy.cme.protocol.Protocol#FEATURE_COMPRESSION}, 0 turns compression off
+     */
+    private final int compressionMinBytes;
+
+    /**
+     * Key store with the server certificate, empty serves plain TCP
+     */
+    private final String tlsKeyStore;
+
+    /**
+     * Password of {@link #tlsKeyStore} and its key
+     */
+    private final String tlsKeyStorePassword;
+
+    /**
+     * Type of {@link #tlsKeyStore}
+     */
+    private final String tlsKeyStoreType;
+
+    /**
+     * Most TLS sessions kept for resumption, 0 for no limit
+     */
+    private final int tlsSessionCacheSize;
+
+    /**
+     * How long a TLS session can be resumed
+     */
+    private final int tlsSessionTimeoutSeconds;
+
+    /**
+     * Silence after which a client with {@link org.jynergy.cme.protocol.Protocol#FEATURE_HEARTBEAT} gets a {@link org.jynergy.cme.protocol.Protocol#PING}, 0 turns heartbeats off
+     */
+    private final int heartbeatIntervalMillis;
+
+    /**
+     * Time to answer a {@link org.jynergy.cme.protocol.Protocol#PING} and to log on, 0 for no limit and no heartbeats
+     */
+    private final int heartbeatTimeoutMillis;
+
+    /**
+     * Silence after which a client without {@link org.jynergy.cme.protocol.Protocol#FEATURE_HEARTBEAT} is disconnected, 0 for never
+     */
+    private final int idleTimeoutMillis;
+
+    /**
+     * Most recipients of one {@link org.jynergy.cme.protocol.Protocol#MULTICAST}, longer lists are dropped
+     */
+    private final int maxRecipients;
+
+    /**
+     * Most senders in one {@link org.jynergy.cme.protocol.Protocol#SUBSCRIBE}, the rest are ignored
+     */
+    private final int maxSubscriptions;
+
+    /**
+     * Longest wait for the clients to leave on a graceful shutdown, the rest are then disconnected
+     */
+    private final int drainTimeoutMillis;
+
+    /**
+     * The clients are told to reconnect after a random delay up to this, so they do not all come back at once
+     */
+    private final int drainReconnectSpreadMillis;
+
+    /**
+     * Set SO_REUSEPORT on the server socket, so a new server can listen on the port while this one drains
+     */
+    private final boolean reusePort;
+
+    /**
+     * @param properties the properties to read, missing ones get their defaults
+     *
+     * @throws IllegalArgumentException naming the property and its value if one is malformed or out of range
+     */
+    public ServerConfig( Properties properties ){
+        outboundCapacity = getInt( properties, "outbound.capacity", 1024, 1 );
+        overflowPolicy = getOverflowPolicy( properties );
+        blockTimeoutMillis = getInt( properties, "outbound.blockTimeoutMillis", 100, 0 );
+        rosterCoalesceMillis = getInt( properties, "roster.coalesceMillis", 50, 0 );
+        maxConnections = getInt( properties, "maxConnections", 10, 1 );
+        acceptBacklog = getInt( properties, "acceptBacklog", 20, 0 );
+        maxConnectionsPerAddress = getInt( properties, "maxConnectionsPerAddress", 0, 0 );
+        messageRate = getInt( properties, "messageRate", 0, 0 );
+        messageBurst = getInt( properties, "messageBurst", Math.max( 1, messageRate ), 1 );
+        maxRoomsPerClient = getInt( properties, "maxRoomsPerClient", 64, 0 );
+        metricsHttpPort = getInt( properties, "metrics.httpPort", 0, 0, 65535 );
+        journalDir = getString( properties, "journal.dir", "" );
+        journalSegmentBytes = getInt( properties, "journal.segmentBytes", 64 * 1024 * 1024, 1 );
+        journalFsyncMillis = getInt( properties, "journal.fsyncMillis", 1000, -1 );
+        journalRetainSegments = getInt( properties, "journal.retainSegments", 8, 1 );
+        mailboxDir = getString( properties, "mailbox.dir", "" );
+        mailboxMaxBytes = getInt( properties, "mailbox.maxBytes", 64 * 1024, 1 );
+        mailboxMaxMailboxes = getInt( properties, "mailbox.maxMailboxes", 10000, 1 );
+        mailboxTtlSeconds = getInt( properties, "mailbox.ttlSeconds", 7 * 24 * 60 * 60, 1 );
+        clusterNodeId = getString( properties, "cluster.nodeId", "" );
+        clusterMembers = getString( properties, "cluster.members", "" );
+        clusterSecret = getString( properties, "cluster.secret", "" );
+        clusterGossipMillis = getInt( properties, "cluster.gossipMillis", 1000, 1 );
+        clusterClaimTimeoutMillis = getInt( properties, "cluster.claimTimeoutMillis", 500, 0 );
+        writeFlushMillis = getInt( properties, "write.flushMillis", 0, 0 );
+        writeFlushBytes = getInt( properties, "write.flushBytes", 32 * 1024, 1 );
+        tcpNoDelay = getBoolean( properties, "write.tcpNoDelay", true );
+        compressionMinBytes = getInt( properties, "compression.minBytes", 512, 0 );
+        tlsKeyStore = getString( properties, "tls.keyStore", "" );
+        tlsKeyStorePassword = getString( properties, "tls.keyStorePassword", "" );
+        tlsKeyStoreType = getString( properties, "tls.keyStoreType", "PKCS12" );
+        tlsSessionCacheSize = getInt( properties, "tls.sessionCacheSize", 20000, 0 );
+        tlsSessionTimeoutSeconds = getInt( properties, "tls.sessionTimeoutSeconds", 86400, 0 );
+        heartbeatIntervalMillis = getInt( properties, "heartbeat.intervalMillis", 30000, 0 );
+        heartbeatTimeoutMillis = getInt( properties, "heartbeat.timeoutMillis", 10000, 0 );
+        idleTimeoutMillis = getInt( properties, "idleTimeoutMillis", 0, 0 );
+        maxRecipients = getInt( properties, "maxRecipients", 256, 1 );
+        maxSubscriptions = getInt( properties, "maxSubscriptions", 64, 0 );
+        drainTimeoutMillis = getInt( properties, "drain.timeoutMillis", 30000, 0 );
+        drainReconnectSpreadMillis = getInt( properties, "drain.reconnectSpreadMillis", 5000, 0 );
+        reusePort = getBoolean( properties, "reusePort", false );
+    }
+
+    /**
+     * Reads the file named by the system property <code>cme.config</code>, if set,
+     * and then the system properties, which win over the file
+     *
+     * @return a configuration read from the file and the system properties
+     */
+    public static ServerConfig fromSystemProperties(){
+        Properties properties = new Properties();
+        String fileName = System.getProperty( PREFIX + "config" );
+        if ( fileName != null ) {
+            try ( InputStream inputStream = new FileInputStream( fileName ) ) {
+                properties.load( inputStream );
+            }
+            catch ( IOException ioException ) {
+                System.err.println( "ChatServer: cannot read " + fileName + ": " + ioException.getMessage() );
+            }
+        }
+        for ( String name : System.getProperties().stringPropertyNames() ) {
+            if ( name.startsWith( PREFIX ) ) {
+                properties.setProperty( name, System.getProperty( name ) );
+            }
+        }
+        return new ServerConfig( properties );
+    }
+
+    /**
+     * @return {@link #outboundCapacity}
+     */
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * @return {@link #overflowPolicy}
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return {@link #blockTimeoutMillis}
+     */
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    /**
+     * @return {@link #rosterCoalesceMillis}
+     */
+    public long getRosterCoalesceMillis() {
+        return rosterCoalesceMillis;
+    }
+
+    /**
+     * @return {@link #maxConnections}
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return {@link #acceptBacklog}
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * @return {@link #maxConnectionsPerAddress}
+     */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /**
+     * @return {@link #messageRate}
+     */
+    public int getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * @return {@link #messageBurst}
+     */
+    public int getMessageBurst() {
+        return messageBurst;
+    }
+
+    /**
+     * @return {@link #maxRoomsPerClient}
+     */
+    public int getMaxRoomsPerClient() {
+        return maxRoomsPerClient;
+    }
+
+    /**
+     * @return {@link #metricsHttpPort}
+     */
+    public int getMetricsHttpPort() {
+        return metricsHttpPort;
+    }
+
+    /**
+     * @return {@link #journalDir}
+     */
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    /**
+     * @return {@link #journalSegmentBytes}
+     */
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    /**
+     * @return {@link #journalFsyncMillis}
+     */
+    public int getJournalFsyncMillis() {
+        return journalFsyncMillis;
+    }
+
+    /**
+     * @return {@link #journalRetainSegments}
+     */
+    public int getJournalRetainSegments() {
+        return journalRetainSegments;
+    }
+
+    /**
+     * @return {@link #mailboxDir}
+     */
+    public String getMailboxDir() {
+        return mailboxDir;
+    }
+
+    /**
+     * @return {@link #mailboxMaxBytes}
+     */
+    public int getMailboxMaxBytes() {
+        return mailboxMaxBytes;
+    }
+
+    /**
+     * @return {@link #mailboxMaxMailboxes}
+     */
+    public int getMailboxMaxMailboxes() {
+        return mailboxMaxMailboxes;
+    }
+
+    /**
+     * @return {@link #mailboxTtlSeconds}
+     */
+    public int getMailboxTtlSeconds() {
+        return mailboxTtlSeconds;
+    }
+
+    /**
+     * @return {@link #clusterNodeId}
+     */
+    public String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    /**
+     * @return {@link #clusterMembers}
+     */
+    public String getClusterMembers() {
+        return clusterMembers;
+    }
+
+    /**
+     * @return {@link #clusterSecret}
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * @return {@link #clusterGossipMillis}
+     */
+    public int getClusterGossipMillis() {
+        return clusterGossipMillis;
+    }
+
+    /**
+     * @return {@link #clusterClaimTimeoutMillis}
+     */
+    public int getClusterClaimTimeoutMillis() {
+        return clusterClaimTimeoutMillis;
+    }
+
+    /**
+     * @return {@link #writeFlushMillis}
+     */
+    public int getWriteFlushMillis() {
+        return writeFlushMillis;
+    }
+
+    /**
+     * @return {@link #writeFlushBytes}
+     */
+    public int getWriteFlushBytes() {
+        return writeFlushBytes;
+    }
+
+    /**
+     * @return {@link #tcpNoDelay}
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return {@link #compressionMinBytes}
+     */
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    /**
+     * @return {@link #tlsKeyStore}
+     */
+    public String getTlsKeyStore() {
+        return tlsKeyStore;
+    }
+
+    /**
+     * @return {@link #tlsKeyStorePassword}
+     */
+    public String getTlsKeyStorePassword() {
+        return tlsKeyStorePassword;
+    }
+
+    /**
+     * @return {@link #tlsKeyStoreType}
+     */
+    public String getTlsKeyStoreType() {
+        return tlsKeyStoreType;
+    }
+
+    /**
+     * @return {@link #tlsSessionCacheSize}
+     */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * @return {@link #tlsSessionTimeoutSeconds}
+     */
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    /**
+     * @return {@link #heartbeatIntervalMillis}
+     */
+    public int getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    /**
+     * @return {@link #heartbeatTimeoutMillis}
+     */
+    public int getHeartbeatTimeoutMillis() {
+        return heartbeatTimeoutMillis;
+    }
+
+    /**
+     * @return {@link #idleTimeoutMillis}
+     */
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @return {@link #maxRecipients}
+     */
+    public int getMaxRecipients() {
+        return maxRecipients;
+    }
+
+    /**
+     * @return {@link #maxSubscriptions}
+     */
+    public int getMaxSubscriptions() {
+        return maxSubscriptions;
+    }
+
+    /**
+     * @return {@link #drainTimeoutMillis}
+     */
+    public int getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    /**
+     * @return {@link #drainReconnectSpreadMillis}
+     */
+    public int getDrainReconnectSpreadMillis() {
+        return drainReconnectSpreadMillis;
+    }
+
+    /**
+     * @return {@link #reusePort}
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * @param properties the properties
+     * @param name the name without {@link #PREFIX}
+     * @param defaultValue used if the property is not set
+     *
+     * @return the value
+     */
+    private static String getString( Properties properties,
+                                     String name,
+                                     String defaultValue ){
+        String value = properties.getProperty( PREFIX + name );
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /**
+     * @param properties the properties
+     * @param name the name without {@link #PREFIX}
+     * @param defaultValue used if the property is not set
+     * @param min the smallest value allowed
+     *
+     * @return the value
+     *
+     * @throws IllegalArgumentException if the value is not a whole number or less than min
+     */
+    private static int getInt( Properties properties,
+                               String name,
+                               int defaultValue,
+                               int min ){
+        return getInt( properties, name, defaultValue, min, Integer.MAX_VALUE );
+    }
+
+    /**
+     * @param properties the properties
+     * @param name the name without {@link #PREFIX}
+     * @param defaultValue used if the property is not set
+     * @param min the smallest value allowed
+     * @param max the largest value allowed
+     *
+     * @return the value
+     *
+     * @throws IllegalArgumentException if the value is not a whole number from min to max
+     */
+    private static int getInt( Properties properties,
+                               String name,
+                               int defaultValue,
+                               int min,
+                               int max ){
+        String value = getString( properties, name, String.valueOf( defaultValue ) ).trim();
+        int number;
+        try {
+            number = Integer.parseInt( value );
+        }
+        catch ( NumberFormatException numberFormatException ) {
+            throw invalid( name, value, "a whole number" );
+        }
+        if ( number < min || number > max ) {
+            throw invalid( name, value, max == Integer.MAX_VALUE ? "at least " + min : "from " + min + " to " + max );
+        }
+        return number;
+    }
+
+    /**
+     * @param properties the properties
+     * @param name the name without {@link #PREFIX}
+     * @param defaultValue used if the property is not set
+     *
+     * @return the value
+     *
+     * @throws IllegalArgumentException if the value is neither true nor false
+     */
+    private static boolean getBoolean( Properties properties,
+                                       String name,
+                                       boolean defaultValue ){
+        String value = getString( properties, name, String.valueOf( defaultValue ) ).trim();
+        if ( !value.equalsIgnoreCase( "true" ) && !value.equalsIgnoreCase( "false" ) ) {
+            throw invalid( name, value, "true or false" );
+        }
+        return Boolean.parseBoolean( value );
+    }
+
+    /**
+     * @param properties the properties
+     *
+     * @return the policy named by <code>outbound.overflow</code>, case insensitive
+     *
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    private static OverflowPolicy getOverflowPolicy( Properties properties ){
+        String value = getString( properties, "outbound.overflow", OverflowPolicy.DROP_OLDEST.name() ).trim();
+        for ( OverflowPolicy overflowPolicy : OverflowPolicy.values() ) {
+            if ( overflowPolicy.name().equalsIgnoreCase( value ) ) {
+                return overflowPolicy;
+            }
+        }
+        throw invalid( "outbound.overflow", value, "one of " + Arrays.toString( OverflowPolicy.values() ) );
+    }
+
+    /**
+     * @param name the name without {@link #PREFIX}
+     * @param value the value found
+     * @param expected what the value has to be
+     *
+     * @return the exception to throw
+     */
+    private static IllegalArgumentException invalid( String name,
+                                                     String value,
+                                                     String expected ){
+        return new IllegalArgumentException( PREFIX + name + "=" + value + " is not valid, expected " + expected );
+    }
+
+    /**
+     * @return all settings on one line
+     */
+    public String toString(){
+        return "outbound.capacity=" + outboundCapacity +
+               " outbound.overflow=" + overflowPolicy +
+               " outbound.blockTimeoutMillis=" + blockTimeoutMillis +
+               " roster.coalesceMillis=" + rosterCoalesceMillis +
+               " maxConnections=" + maxConnections +
+               " acceptBacklog=" + acceptBacklog +
+               " maxConnectionsPerAddress=" + maxConnectionsPerAddress +
+               " messageRate=" + messageRate +
+               " messageBurst=" + messageBurst +
+               " maxRoomsPerClient=" + maxRoomsPerClient +
+               " metrics.httpPort=" + metricsHttpPort +
+               " journal.dir=" + journalDir +
+               " journal.segmentBytes=" + journalSegmentBytes +
+               " journal.fsyncMillis=" + journalFsyncMillis +
+               " journal.retainSegments=" + journalRetainSegments +
+               " mailbox.dir=" + mailboxDir +
+               " mailbox.maxBytes=" + mailboxMaxBytes +
+               " mailbox.maxMailboxes=" + mailboxMaxMailboxes +
+               " mailbox.ttlSeconds=" + mailboxTtlSeconds +
+               " cluster.nodeId=" + clusterNodeId +
+               " cluster.members=" + clusterMembers +
+               " cluster.secret=" + ( clusterSecret.isEmpty() ? "" : "***" ) +
+               " cluster.gossipMillis=" + clusterGossipMillis +
+               " cluster.claimTimeoutMillis=" + clusterClaimTimeoutMillis +
+               " write.flushMillis=" + writeFlushMillis +
+               " write.flushBytes=" + writeFlushBytes +
+               " write.tcpNoDelay=" + tcpNoDelay +
+               " compression.minBytes=" + compressionMinBytes +
+               " tls.keyStore=" + tlsKeyStore +
+               " tls.keyStorePassword=" + ( tlsKeyStorePassword.isEmpty() ? "" : "***" ) +
+               " tls.keyStoreType=" + tlsKeyStoreType +
+               " tls.sessionCacheSize=" + tlsSessionCacheSize +
+               " tls.sessionTimeoutSeconds=" + tlsSessionTimeoutSeconds +
+               " heartbeat.intervalMillis=" + heartbeatIntervalMillis +
+               " heartbeat.timeoutMillis=" + heartbeatTimeoutMillis +
+               " idleTimeoutMillis=" + idleTimeoutMillis +
+               " maxRecipients=" + maxRecipients +
+               " maxSubscriptions=" + maxSubscriptions +
+               " drain.timeoutMillis=" + drainTimeoutMillis +
+               " drain.reconnectSpreadMillis=" + drainReconnectSpreadMillis +
+               " reusePort=" + reusePort;
+    }
+}
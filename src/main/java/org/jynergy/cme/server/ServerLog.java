@@ -0,0 +1,86 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The event log of the server. Callers only offer the line to a bounded queue and never wait,
+ * one daemon thread writes the lines to {@link System#out} in batches. When the queue is full
+ * lines are dropped and counted rather than slowing down message handling.
+ */
+public final class ServerLog {
+    /**
+     * Most lines waiting to be written
+     */
+    private static final int CAPACITY = 8192;
+
+    /**
+     * Lines waiting to be written
+     */
+    private static final BlockingQueue<String> QUEUE = new ArrayBlockingQueue<>( CAPACITY );
+
+    /**
+     * Lines dropped because {@link #QUEUE} was full
+     */
+    private static final LongAdder DROPPED = new LongAdder();
+
+    static {
+        Thread thread = new Thread( ServerLog::writeLoop, "ChatServer-log" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    private ServerLog(){
+    }
+
+    /**
+     * Logs a line without waiting
+     *
+     * @param line the line
+     */
+    public static void info( String line ){
+        if ( !QUEUE.offer( line ) ) {
+            DROPPED.increment();
+        }
+    }
+
+    /**
+     * @return the number of lines dropped
+     */
+    public static long getDropped(){
+        return DROPPED.sum();
+    }
+
+    /**
+     * Writes the queued lines, as many as are waiting at once
+     */
+    private static void writeLoop(){
+        PrintStream out = System.out;
+        ArrayList<String> lines = new ArrayList<>();
+        StringBuilder stringBuilder = new StringBuilder();
+        while ( true ) {
+            try {
+                lines.add( QUEUE.take() );
+            }
+            catch ( InterruptedException interruptedException ) {
+                return;
+            }
+            QUEUE.drainTo( lines, 1023 );
+            for ( String line : lines ) {
+                stringBuilder.append( line ).append( System.lineSeparator() );
+            }
+            out.print( stringBuilder );
+            out.flush();
+            lines.clear();
+            stringBuilder.setLength( 0 );
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of a {@link ChatServer}, exposed as the JMX MBean {@link #OBJECT_NAME}
+ * and, if <code>cme.metrics.httpPort</code> is set, as plain text <code>name value</code> lines
+ * over HTTP on the loopback address. Recording is a few {@link LongAdder} adds; gauges such as
+ * queue depths are only computed when read.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    /**
+     * Name of the MBean
+     */
+    public static final String OBJECT_NAME = "org.jynergy.cme:type=ChatServer";
+
+    /**
+     * The server measured
+     */
+    private final ChatServer chatServer;
+
+    private final LongAdder messagesIn = new LongAdder();
+
+    private final LongAdder messagesOut = new LongAdder();
+
+    private final LongAdder rejectedLogins = new LongAdder();
+
+    /**
+     * Recipients of broadcast and room messages
+     */
+    private final MetricsHistogram fanOut = new MetricsHistogram();
+
+    /**
+     * Time of single socket writes in microseconds
+     */
+    private final MetricsHistogram writeLatency = new MetricsHistogram();
+
+    /**
+     * Takes the per second samples
+     */
+    private ScheduledExecutorService sampler;
+
+    /**
+     * Serves the plain text metrics, null if off
+     */
+    private HttpServer httpServer;
+
+    private volatile long messagesInPerSecond;
+
+    private volatile long messagesOutPerSecond;
+
+    private long lastMessagesIn;
+
+    private long lastMessagesOut;
+
+    /**
+     * @param chatServer {@link #chatServer}
+     */
+    public ServerMetrics( ChatServer chatServer ){
+        this.chatServer = chatServer;
+    }
+
+    /**
+     * Starts sampling, registers the MBean and starts the HTTP endpoint if a port is given
+     *
+     * @param httpPort loopback port of the plain text endpoint, 0 for none
+     */
+    public void start( int httpPort ){
+        sampler = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "ChatServer-metrics" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        sampler.scheduleAtFixedRate( this::sample, 1, 1, TimeUnit.SECONDS );
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, new ObjectName( OBJECT_NAME ) );
+        }
+        catch ( JMException jmException ) {
+            System.err.println( "ChatServer: cannot register " + OBJECT_NAME + ": " + jmException.getMessage() );
+        }
+        if ( httpPort > 0 ) {
+            try {
+                httpServer = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), httpPort ), 0 );
+                httpServer.createContext( "/metrics", exchange -> {
+                    byte[] body = toText().getBytes( StandardCharsets.UTF_8 );
+                    exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" );
+                    exchange.sendResponseHeaders( 200, body.length );
+                    try ( OutputStream outputStream = exchange.getResponseBody() ) {
+                        outputStream.write( body );
+                    }
+                } );
+                httpServer.start();
+                System.out.println( "ChatServer: metrics http://localhost:" + httpPort + "/metrics" );
+            }
+            catch ( IOException ioException ) {
+                System.err.println( "ChatServer: cannot serve metrics on port " + httpPort + ": " + ioException.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * Stops sampling, the MBean and the HTTP endpoint, does nothing if never started
+     */
+    public void stop(){
+        if ( sampler == null ) {
+            return;
+        }
+        sampler.shutdownNow();
+        if ( httpServer != null ) {
+            httpServer.stop( 0 );
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( new ObjectName( OBJECT_NAME ) );
+        }
+        catch ( JMException jmException ) {
+            // was not registered
+        }
+    }
+
+    /**
+     * Counts a routed message
+     *
+     * @param recipients number of clients it was queued to
+     * @param fannedOut true for a broadcast or room message
+     */
+    public void routed( int recipients,
+                        boolean fannedOut ){
+        messagesIn.increment();
+        messagesOut.add( recipients );
+        if ( fannedOut ) {
+            fanOut.record( recipients );
+        }
+    }
+
+    /**
+     * Counts a refused login
+     */
+    public void rejectedLogin(){
+        rejectedLogins.increment();
+    }
+
+    /**
+     * Records the time of one socket write
+     *
+     * @param nanos the time in nanoseconds
+     */
+    public void written( long nanos ){
+        writeLatency.record( nanos / 1000 );
+    }
+
+    /**
+     * Takes the per second rates
+     */
+    private void sample(){
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        messagesInPerSecond = in - lastMessagesIn;
+        messagesOutPerSecond = out - lastMessagesOut;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+    }
+
+    public int getConnections(){
+        return chatServer.getAdmissionControl().getConnections();
+    }
+
+    public int getUsers(){
+        return chatServer.getClientRegistry().size();
+    }
+
+    public int getRooms(){
+        return chatServer.getRoomRegistry().size();
+    }
+
+    public long getMessagesIn(){
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut(){
+        return messagesOut.sum();
+    }
+
+    public long getMessagesInPerSecond(){
+        return messagesInPerSecond;
+    }
+
+    public long getMessagesOutPerSecond(){
+        return messagesOutPerSecond;
+    }
+
+    public double getFanOutMean(){
+        return fanOut.getMean();
+    }
+
+    public long getFanOutP99(){
+        return fanOut.getValueAtPercentile( 99 );
+    }
+
+    public int getQueueDepthMax(){
+        int max = 0;
+        for ( ClientConnection clientConnection : chatServer.getClientRegistry().getClients() ) {
+            max = Math.max( max, clientConnection.getQueuedFrames() );
+        }
+        return max;
+    }
+
+    public long getQueueDepthTotal(){
+        long total = 0;
+        for ( ClientConnection clientConnection : chatServer.getClientRegistry().getClients() ) {
+            total += clientConnection.getQueuedFrames();
+        }
+        return total;
+    }
+
+    public long getWriteLatencyP50Micros(){
+        return writeLatency.getValueAtPercentile( 50 );
+    }
+
+    public long getWriteLatencyP99Micros(){
+        return writeLatency.getValueAtPercentile( 99 );
+    }
+
+    public long getWriteLatencyMaxMicros(){
+        return writeLatency.getMax();
+    }
+
+    public long getRejectedConnections(){
+        return chatServer.getAdmissionControl().getRejected();
+    }
+
+    public long getRejectedLogins(){
+        return rejectedLogins.sum();
+    }
+
+    public long getThrottledMessages(){
+        return chatServer.getAdmissionControl().getThrottled();
+    }
+
+    public long getDroppedFrames(){
+        return chatServer.getOutboundCounters().getDropped();
+    }
+
+    public long getSlowClientDisconnects(){
+        return chatServer.getOutboundCounters().getDisconnected();
+    }
+
+    public long getIdleDisconnects(){
+        return chatServer.getIdleReaper().getReaped();
+    }
+
+    public long getDroppedLogLines(){
+        return ServerLog.getDropped();
+    }
+
+    /**
+     * @return all metrics as <code>name value</code> lines
+     */
+    public String toText(){
+        StringBuilder stringBuilder = new StringBuilder();
+        line( stringBuilder, "connections", getConnections() );
+        line( stringBuilder, "users", getUsers() );
+        line( stringBuilder, "rooms", getRooms() );
+        line( stringBuilder, "messages_in", getMessagesIn() );
+        line( stringBuilder, "messages_out", getMessagesOut() );
+        line( stringBuilder, "messages_in_per_second", getMessagesInPerSecond() );
+        line( stringBuilder, "messages_out_per_second", getMessagesOutPerSecond() );
+        line( stringBuilder, "fan_out_mean", getFanOutMean() );
+        line( stringBuilder, "fan_out_p99", getFanOutP99() );
+        line( stringBuilder, "queue_depth_max", getQueueDepthMax() );
+        line( stringBuilder, "queue_depth_total", getQueueDepthTotal() );
+        line( stringBuilder, "write_latency_p50_micros", getWriteLatencyP50Micros() );
+        line( stringBuilder, "write_latency_p99_micros", getWriteLatencyP99Micros() );
+        line( stringBuilder, "write_latency_max_micros", getWriteLatencyMaxMicros() );
+        line( stringBuilder, "rejected_connections", getRejectedConnections() );
+        line( stringBuilder, "rejected_logins", getRejectedLogins() );
+        line( stringBuilder, "throttled_messages", getThrottledMessages() );
+        line( stringBuilder, "dropped_frames", getDroppedFrames() );
+        line( stringBuilder, "slow_client_disconnects", getSlowClientDisconnects() );
+        line( stringBuilder, "idle_disconnects", getIdleDisconnects() );
+        line( stringBuilder, "dropped_log_lines", getDroppedLogLines() );
+        return stringBuilder.toString();
+    }
+
+    private static void line( StringBuilder stringBuilder,
+                              String name,
+                              Object value ){
+        stringBuilder.append( name ).append( ' ' ).append( value ).append( '\n' );
+    }
+}
@@ -0,0 +1,117 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+/**
+ * The JMX view of {@link ServerMetrics}, registered as {@link ServerMetrics#OBJECT_NAME}
+ */
+public interface ServerMetricsMBean {
+    /**
+     * @return open connections, logged on or not
+     */
+    public int getConnections();
+
+    /**
+     * @return logged on users
+     */
+    public int getUsers();
+
+    /**
+     * @return rooms with members
+     */
+    public int getRooms();
+
+    /**
+     * @return messages received and routed
+     */
+    public long getMessagesIn();
+
+    /**
+     * @return message deliveries queued to recipients
+     */
+    public long getMessagesOut();
+
+    /**
+     * @return {@link #getMessagesIn()} over the last second
+     */
+    public long getMessagesInPerSecond();
+
+    /**
+     * @return {@link #getMessagesOut()} over the last second
+     */
+    public long getMessagesOutPerSecond();
+
+    /**
+     * @return mean recipients of a broadcast or room message
+     */
+    public double getFanOutMean();
+
+    /**
+     * @return 99th percentile of the recipients of a broadcast or room message
+     */
+    public long getFanOutP99();
+
+    /**
+     * @return most frames queued for one client
+     */
+    public int getQueueDepthMax();
+
+    /**
+     * @return frames queued for all clients
+     */
+    public long getQueueDepthTotal();
+
+    /**
+     * @return median time of one socket write in microseconds
+     */
+    public long getWriteLatencyP50Micros();
+
+    /**
+     * @return 99th percentile time of one socket write in microseconds
+     */
+    public long getWriteLatencyP99Micros();
+
+    /**
+     * @return longest socket write in microseconds
+     */
+    public long getWriteLatencyMaxMicros();
+
+    /**
+     * @return connections turned away by {@link AdmissionControl}
+     */
+    public long getRejectedConnections();
+
+    /**
+     * @return logins refused with {@link org.jynergy.cme.protocol.Protocol#TO_MANY_USERS}
+     * or {@link org.jynergy.cme.protocol.Protocol#USER_EXISTS}
+     */
+    public long getRejectedLogins();
+
+    /**
+     * @return messages dropped for being over the sender's rate
+     */
+    public long getThrottledMessages();
+
+    /**
+     * @return frames dropped by {@link OverflowPolicy#DROP_OLDEST}
+     */
+    public long getDroppedFrames();
+
+    /**
+     * @return clients disconnected for not keeping up
+     */
+    public long getSlowClientDisconnects();
+
+    /**
+     * @return clients disconnected by {@link IdleReaper}
+     */
+    public long getIdleDisconnects();
+
+    /**
+     * @return log lines dropped by {@link ServerLog}
+     */
+    public long getDroppedLogLines();
+}
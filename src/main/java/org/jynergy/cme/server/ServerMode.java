@@ -0,0 +1,42 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+/**
+ * How {@link ChatServer} services its client connections
+ */
+public enum ServerMode {
+    /**
+     * One {@link ServerThread} per client blocked in its read
+     */
+    THREAD,
+
+    /**
+     * One {@link ServerThread} per client, run on a virtual thread instead of a platform thread
+     */
+    VIRTUAL,
+
+    /**
+     * Non blocking {@link java.nio.channels.SocketChannel}s multiplexed over a fixed pool of {@link IoLoop}s
+     */
+    NIO;
+
+    /**
+     * Parses a mode given on the command line
+     *
+     * @param name the mode name, case insensitive
+     *
+     * @return the matching {@link ServerMode} or null if there is none
+     */
+    public static ServerMode parse( String name ){
+        for ( ServerMode serverMode : values() ){
+            if ( serverMode.name().equalsIgnoreCase( name ) ){
+                return serverMode;
+            }
+        }
+        return null;
+    }
+}
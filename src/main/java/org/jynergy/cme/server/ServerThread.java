@@ -5,115 +5,519 @@ package org.jynergy.cme.server;
  * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
  */
 
+import org.jynergy.cme.protocol.BinaryCodec;
 import org.jynergy.cme.protocol.Protocol;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles all communication with a client {@link #clientName}
  */
-public class ServerThread extends Thread implements Protocol {
+public class ServerThread extends Thread implements ClientConnection, Protocol, FrameDecoder.Handler {
+    /**
+     * Most frames written by one gathering write
+     */
+    private static final int GATHER_LIMIT = 64;
+
+    /**
+     * Size of {@link #readBuffer}
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
     /**
      * The client name
      */
     private String clientName;
 
     /**
-     * Sockec that handles connection with a client
+     * The id {@link ClientRegistry} gave the client
+     */
+    private int clientId;
+
+    /**
+     * The first line from the client, read by {@link #handshake()}
+     */
+    private String handshakeLine;
+
+    /**
+     * The format agreed on in {@link #handshake()}
+     */
+    private volatile WireFormat wireFormat = WireFormat.TEXT;
+
+    /**
+     * The features agreed on, null until the handshake is done
+     */
+    private volatile Handshake agreed;
+
+    /**
+     * Blocking channel that handles connection with a client, all writing goes through it
+     */
+    private SocketChannel socketChannel;
+
+    /**
+     * Sockec of {@link #socketChannel}
      */
     private Socket socket;
 
     /**
-     * Handles all writing to the clent
+     * TLS over {@link #socketChannel}, null for plain TCP
      */
-    private PrintWriter printWriter;
+    private final TlsSession tlsSession;
 
     /**
      * Handles all reading from the client
      */
-    private BufferedReader bufferedReader;
+    private InputStream inputStream;
+
+    /**
+     * Bytes read from {@link #inputStream}, in read mode between reads
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate( READ_BUFFER_SIZE );
+
+    /**
+     * Cuts {@link #readBuffer} into messages of {@link #wireFormat}
+     */
+    private FrameDecoder frameDecoder = new LineFramer();
+
+    /**
+     * Slots and message rate given by {@link AdmissionControl}
+     */
+    private final AdmissionControl.Admission admission;
+
+    /**
+     * Notes the reads for the {@link IdleReaper}
+     */
+    private final IdleReaper.Watch watch;
 
     /**
      * A reference to {@link ChatServer}
      */
     private ChatServer chatServer;
 
+    /**
+     * Views of the frames waiting for {@link #writeLoop()} to write them to {@link #socketChannel}
+     */
+    private OutboundQueue<ByteBuffer> outboundQueue;
+
+    /**
+     * Longest time {@link #writeLoop()} waits for more frames before writing, 0 for none
+     */
+    private final long flushNanos;
+
+    /**
+     * Bytes {@link #writeLoop()} writes at once without waiting longer
+     */
+    private final int flushBytes;
+
+    /**
+     * Shortest frame sent compressed if the client has {@link #FEATURE_COMPRESSION}
+     */
+    private final int compressionMinBytes;
+
     /**
      * Handles the initialization of this obect
      *
-     * @param socket {@link #socket}
-     * @param printWriter  {@link @printWriter}
-     * @param bufferedReader {@link #bufferedReader}
+     * @param socketChannel {@link #socketChannel}
+     * @param admission     {@link #admission}
      * @param chatServer    {@link #chatServer}
+     *
+     * @throws IOException if the input stream cannot be opened or the TLS handshake cannot begin
      */
-    public ServerThread( Socket socket,
-                         PrintWriter printWriter,
-                         BufferedReader bufferedReader,
-                         ChatServer chatServer ){
-        this.socket = socket;
-        this.printWriter = printWriter;
-        this.bufferedReader = bufferedReader;
+    public ServerThread( SocketChannel socketChannel,
+                         AdmissionControl.Admission admission,
+                         ChatServer chatServer ) throws IOException {
+        this.socketChannel = socketChannel;
+        this.admission = admission;
+        this.socket = socketChannel.socket();
+        this.inputStream = socket.getInputStream();
+        this.tlsSession = chatServer.newTlsSession( false );
+        this.readBuffer.flip();
         this.chatServer = chatServer;
+        this.outboundQueue = chatServer.newOutboundQueue();
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos( chatServer.getServerConfig().getWriteFlushMillis() );
+        this.flushBytes = chatServer.getServerConfig().getWriteFlushBytes();
+        this.compressionMinBytes = chatServer.getServerConfig().getCompressionMinBytes();
+        this.watch = chatServer.getIdleReaper().watch( this );
     }
 
     /**
-     * sets {@link #clientName}
-     * @param clientName {@link #clientName}
+     * @return {@link #clientName}
      */
-    public void setClientName( String clientName ) {
-        this.clientName = clientName;
+    public String getClientName() {
+        return clientName;
     }
 
     /**
-     * @return {@link #printWriter}
+     * @return {@link #clientId}
      */
-    public PrintWriter getPrintWriter() {
-        return printWriter;
+    public int getClientId() {
+        return clientId;
     }
 
     /**
-     * Handles {@link #MESSAGE} messages
+     * sets {@link #clientId}
+     * @param clientId {@link #clientId}
      */
-    public void run() {
-        try{
-            while ( !socket.isClosed() ) {
-                String line = bufferedReader.readLine();
-                if ( line != null ) {
-                    switch ( line.charAt( 0 ) ) {
-
-                        case MESSAGE:
-                            line = line.substring( 1, line.length() );
-                            int seperatorPosition = line.indexOf( SEPERATOR );
-                            String whoTo = line.substring( 0, seperatorPosition );
-                            line = line.substring( seperatorPosition + 1, line.length() );
-                            synchronized ( chatServer.getServerSocket() ) {
-                                if ( !whoTo.equals( ALL ) ) {
-                                    line = MESSAGE + line;
-                                    chatServer.getClientThreadHashMap().get( whoTo ).printWriter.println( line );
-                                }
-                                else{
-                                    line = MESSAGE + line;
-                                    for ( String name : chatServer.getClientThreadHashMap().keySet()){
-                                        chatServer.getClientThreadHashMap().get( name ).printWriter.println( line );
-                                    }
-                                }
-                            }
-                            break;
-                    }
+    public void setClientId( int clientId ) {
+        this.clientId = clientId;
+    }
+
+    /**
+     * @return {@link #wireFormat}
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * @param feature a feature char such as {@link #FEATURE_USER_DELTAS}
+     *
+     * @return true if it was agreed on in the {@link Handshake}
+     */
+    public boolean hasFeature( char feature ){
+        Handshake handshake = agreed;
+        return handshake != null && handshake.has( feature );
+    }
+
+    /**
+     * Reads the first line, agrees on the features and logs the client on.
+     * Nothing else writes to {@link #socketChannel} yet, so replies are written directly.
+     *
+     * @return true if the client is logged on, otherwise the connection is closed
+     */
+    public boolean handshake(){
+        try {
+            while ( handshakeLine == null && readMessage() ) {
+            }
+            if ( handshakeLine == null ) {
+                close();
+                return false;
+            }
+            Handshake handshake = Handshake.parse( handshakeLine, chatServer.getSupportedFeatures() );
+            if ( handshake.getClientName().isEmpty() ) {
+                close();
+                return false;
+            }
+            if ( handshake.isHello() ) {
+                write( handshake.getReply().buffer() );
+            }
+            if ( handshake.getWireFormat() == WireFormat.BINARY ) {
+                frameDecoder = new BinaryFramer();
+            }
+            wireFormat = handshake.getWireFormat();
+            agreed = handshake;
+            clientName = handshake.getClientName();
+            char reply = chatServer.login( this, clientName );
+            if ( reply != 0 ) {
+                clientName = null;
+                write( wireFormat.encodeReply( reply ).buffer() );
+                close();
+                return false;
+            }
+            return true;
+        }
+        catch ( IOException ioException ) {
+            if ( clientName != null ) {
+                chatServer.logout( this );
+            }
+            clientName = null;
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the next message from {@link #readBuffer}, reading more from {@link #inputStream}
+     * or through {@link #tlsSession} as needed
+     *
+     * @return false once the client closed the connection
+     *
+     * @throws IOException if reading fails or the client sent malformed bytes
+     */
+    private boolean readMessage() throws IOException {
+        while ( !frameDecoder.decode( readBuffer, this ) ) {
+            int count;
+            if ( tlsSession == null ) {
+                count = inputStream.read( readBuffer.array() );
+                readBuffer.position( 0 );
+                readBuffer.limit( Math.max( 0, count ) );
+            }
+            else {
+                readBuffer.clear();
+                count = tlsSession.read( socketChannel, readBuffer );
+                readBuffer.flip();
+            }
+            if ( count < 0 ) {
+                return false;
+            }
+            watch.touch();
+        }
+        return true;
+    }
+
+    /**
+     * Writes to the blocking {@link #socketChannel}, through {@link #tlsSession} if there is one
+     *
+     * @param byteBuffer the bytes
+     *
+     * @throws IOException if writing fails
+     */
+    private void write( ByteBuffer byteBuffer ) throws IOException {
+        write( new ByteBuffer[]{ byteBuffer }, 0, 1 );
+    }
+
+    /**
+     * Writes to the blocking {@link #socketChannel}, through {@link #tlsSession} if there is one
+     *
+     * @param byteBuffers the bytes
+     * @param offset index of the first buffer
+     * @param length number of buffers
+     *
+     * @throws IOException if writing fails
+     */
+    private void write( ByteBuffer[] byteBuffers,
+                        int offset,
+                        int length ) throws IOException {
+        if ( tlsSession == null ) {
+            socketChannel.write( byteBuffers, offset, length );
+        }
+        else {
+            tlsSession.write( socketChannel, byteBuffers, offset, length );
+        }
+    }
+
+    /**
+     * The first line is the {@link Handshake}, every later line a {@link #MESSAGE}, {@link #MULTICAST} or {@link #ROOM_MESSAGE},
+     * dropped if over the rate, a {@link #ROOM_JOIN} or {@link #ROOM_LEAVE}, a {@link #SUBSCRIBE}, a {@link #REPLAY},
+     * a lone {@link #USER_LIST} asking for the roster again or a lone {@link #PING}
+     *
+     * @param line a line from the client
+     */
+    public void onLine( String line ){
+        if ( handshakeLine == null ) {
+            handshakeLine = line;
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == MESSAGE ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeMessage( this, line );
+            }
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == MULTICAST ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeMulticast( line );
+            }
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == SUBSCRIBE ) {
+            chatServer.subscribe( this, line );
+        }
+        else if ( line.length() == 1 && line.charAt( 0 ) == USER_LIST ) {
+            chatServer.sendUserList( this );
+        }
+        else if ( line.length() == 1 && line.charAt( 0 ) == PING ) {
+            send( wireFormat.encodeReply( PONG ) );
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == ROOM_MESSAGE ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeRoomMessage( this, line );
+            }
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == ROOM_JOIN ) {
+            chatServer.joinRoom( this, line.substring( 1 ) );
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == ROOM_LEAVE ) {
+            chatServer.leaveRoom( this, line.substring( 1 ) );
+        }
+        else if ( !line.isEmpty() && line.charAt( 0 ) == REPLAY ) {
+            try {
+                chatServer.replayJournal( this, Long.parseLong( line.substring( 1 ) ) );
+            }
+            catch ( NumberFormatException numberFormatException ) {
+                // not a sequence number, ignored like any unknown line
+            }
+        }
+    }
+
+    /**
+     * Handles binary {@link #MESSAGE}, {@link #MULTICAST}, {@link #ROOM_MESSAGE}, {@link #ROOM_JOIN}, {@link #ROOM_LEAVE}, {@link #REPLAY} frames,
+     * {@link #SUBSCRIBE}s, {@link #USER_LIST} requests and {@link #PING}s
+     *
+     * @param tag the tag of the frame
+     * @param body the body of the frame
+     *
+     * @throws IOException if the frame is malformed
+     */
+    public void onFrame( char tag,
+                         ByteBuffer body ) throws IOException {
+        if ( tag == MESSAGE ) {
+            int recipientId = BinaryCodec.getVarint( body );
+            if ( admission.tryMessage() ) {
+                chatServer.routeMessage( this, recipientId, body );
+            }
+        }
+        else if ( tag == MULTICAST ) {
+            if ( admission.tryMessage() ) {
+                chatServer.routeMulticast( body );
+            }
+        }
+        else if ( tag == SUBSCRIBE ) {
+            chatServer.subscribe( this, body );
+        }
+        else if ( tag == USER_LIST ) {
+            chatServer.sendUserList( this );
+        }
+        else if ( tag == PING ) {
+            send( wireFormat.encodeReply( PONG ) );
+        }
+        else if ( tag == ROOM_MESSAGE ) {
+            String roomName = BinaryCodec.getUtf8( body, BinaryCodec.getVarint( body ) );
+            if ( admission.tryMessage() ) {
+                chatServer.routeRoomMessage( this, roomName, body );
+            }
+        }
+        else if ( tag == ROOM_JOIN ) {
+            chatServer.joinRoom( this, BinaryCodec.getUtf8( body, body.remaining() ) );
+        }
+        else if ( tag == ROOM_LEAVE ) {
+            chatServer.leaveRoom( this, BinaryCodec.getUtf8( body, body.remaining() ) );
+        }
+        else if ( tag == REPLAY ) {
+            chatServer.replayJournal( this, BinaryCodec.getVarlong( body ) );
+        }
+    }
+
+    /**
+     * Queues the frame for {@link #writeLoop()}, compressed if long enough and the client has {@link #FEATURE_COMPRESSION},
+     * closes the connection if the client does not keep up
+     *
+     * @param frame the encoded line
+     */
+    public void send( Frame frame ){
+        if ( hasFeature( FEATURE_COMPRESSION ) ) {
+            frame = frame.compressed( wireFormat, compressionMinBytes );
+        }
+        if ( !outboundQueue.offer( frame.buffer() ) ) {
+            ServerLog.info( "ChatServer: too slow " + clientName );
+            close();
+        }
+    }
+
+    /**
+     * @return the size of {@link #outboundQueue}
+     */
+    public int getQueuedFrames(){
+        return outboundQueue.size();
+    }
+
+    /**
+     * Writes the frames of {@link #outboundQueue} to {@link #socketChannel} until {@link #close()},
+     * everything queued at once goes out in one gathering write.
+     * With a {@link #flushNanos} the first frame waits that long for more, unless {@link #flushBytes}
+     * or {@link #GATHER_LIMIT} frames come first, so a burst costs one write instead of one per frame.
+     */
+    public void writeLoop(){
+        ByteBuffer[] buffers = new ByteBuffer[ GATHER_LIMIT ];
+        try {
+            ByteBuffer buffer;
+            while ( ( buffer = outboundQueue.take() ) != null ) {
+                buffers[0] = buffer;
+                int count = 1 + outboundQueue.drainTo( buffers, 1, GATHER_LIMIT - 1 );
+                if ( flushNanos > 0 ) {
+                    count = linger( buffers, count );
                 }
-                else{
-                    break;
+                int offset = 0;
+                while ( offset < count ) {
+                    long startNanos = System.nanoTime();
+                    write( buffers, offset, count - offset );
+                    chatServer.getServerMetrics().written( System.nanoTime() - startNanos );
+                    while ( offset < count && !buffers[offset].hasRemaining() ) {
+                        offset++;
+                    }
                 }
+                Arrays.fill( buffers, 0, count, null );
+                chatServer.getOutboundCounters().written( count );
             }
         }
+        catch ( InterruptedException | IOException exception ) {
+            close();
+        }
+    }
+
+    /**
+     * Waits up to {@link #flushNanos} for more frames to write along with the ones taken
+     *
+     * @param buffers the frames taken
+     * @param count the number of frames taken
+     *
+     * @return the number of frames taken now
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private int linger( ByteBuffer[] buffers,
+                        int count ) throws InterruptedException {
+        long bytes = 0;
+        for ( int i = 0; i < count; i++ ) {
+            bytes += buffers[i].remaining();
+        }
+        long deadline = System.nanoTime() + flushNanos;
+        while ( count < GATHER_LIMIT && bytes < flushBytes ) {
+            ByteBuffer buffer = outboundQueue.poll( deadline - System.nanoTime() );
+            if ( buffer == null ) {
+                break;
+            }
+            int added = 1 + outboundQueue.drainTo( buffers, count + 1, GATHER_LIMIT - count - 1 );
+            buffers[count] = buffer;
+            for ( int i = count; i < count + added; i++ ) {
+                bytes += buffers[i].remaining();
+            }
+            count += added;
+        }
+        return count;
+    }
+
+    /**
+     * Closes {@link #socket}, which ends {@link #run()}, and {@link #outboundQueue}, which ends {@link #writeLoop()}
+     */
+    public void close(){
+        watch.cancel();
+        outboundQueue.close();
+        try {
+            socket.close();
+        }
         catch ( IOException ioException ) {
             ioException.printStackTrace();
         }
-        System.out.println( "ChatServer: disconnect " + clientName );
-        chatServer.removeServerThread( clientName );
-        chatServer.sendUserListToAll();
+        admission.release();
+    }
+
+    /**
+     * Does the {@link #handshake()}, starts {@link #writeLoop()} and handles {@link #MESSAGE} messages
+     */
+    public void run() {
+        if ( !handshake() ) {
+            return;
+        }
+        chatServer.startClientThread( this::writeLoop, "ChatServer-writer-" + clientName );
+        try{
+            while ( !socket.isClosed() && readMessage() ) {
+            }
+        }
+        catch ( IOException ioException ) {
+            if ( !socket.isClosed() ) {
+                ioException.printStackTrace();
+            }
+        }
+        catch ( RuntimeException runtimeException ) {
+            // what the client sent could not be handled, it is logged out and closed like any other
+            runtimeException.printStackTrace();
+        }
+        ServerLog.info( "ChatServer: disconnect " + clientName );
+        chatServer.logout( this );
+        close();
     }
 }
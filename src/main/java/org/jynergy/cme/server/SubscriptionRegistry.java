@@ -0,0 +1,136 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.Protocol;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The sender filters of the clients of a {@link ChatServer}: a client that sent a {@link Protocol#SUBSCRIBE}
+ * gets only the messages to {@link Protocol#ALL} from the senders it named.
+ * <p>
+ * The filters are turned around into a copy on write array of subscribers for every sender, so a broadcast looks up
+ * its sender once and never matches a filter per recipient. The clients without a filter are kept by
+ * {@link ClientRegistry#getUnfilteredClients()}. Subscriptions are rare, they serialize on one lock.
+ */
+public class SubscriptionRegistry {
+    /**
+     * Shared empty subscriber array
+     */
+    private static final ClientConnection[] NO_SUBSCRIBERS = new ClientConnection[0];
+
+    /**
+     * The subscribers by sender name, a sender without any is not in the map
+     */
+    private final ConcurrentHashMap<String,ClientConnection[]> subscribersBySender = new ConcurrentHashMap<>();
+
+    /**
+     * The senders every filtering client subscribed to, guarded by {@link #lock}
+     */
+    private final HashMap<ClientConnection,String[]> senders = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Replaces the senders a client subscribed to
+     *
+     * @param clientConnection the client
+     * @param senderNames the senders, none to get messages from all senders again
+     */
+    public void subscribe( ClientConnection clientConnection,
+                           Collection<String> senderNames ){
+        lock.lock();
+        try {
+            unsubscribe( clientConnection );
+            if ( senderNames.isEmpty() ) {
+                return;
+            }
+            String[] names = new LinkedHashSet<>( senderNames ).toArray( new String[ 0 ] );
+            senders.put( clientConnection, names );
+            for ( String senderName : names ) {
+                subscribersBySender.merge( senderName, new ClientConnection[]{ clientConnection }, SubscriptionRegistry::concat );
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the filter of a client, if it has one
+     *
+     * @param clientConnection the client
+     */
+    public void unsubscribe( ClientConnection clientConnection ){
+        lock.lock();
+        try {
+            String[] names = senders.remove( clientConnection );
+            if ( names == null ) {
+                return;
+            }
+            for ( String senderName : names ) {
+                subscribersBySender.computeIfPresent( senderName, ( name, subscribers ) -> without( subscribers, clientConnection ) );
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param senderName the sender of a message to {@link Protocol#ALL}, null if not known
+     *
+     * @return a stable snapshot of the filtering clients that want it, must not be modified
+     */
+    public ClientConnection[] getSubscribers( String senderName ){
+        if ( senderName == null ) {
+            return NO_SUBSCRIBERS;
+        }
+        ClientConnection[] subscribers = subscribersBySender.get( senderName );
+        return subscribers == null ? NO_SUBSCRIBERS : subscribers;
+    }
+
+    /**
+     * @return the number of senders with subscribers
+     */
+    public int size(){
+        return subscribersBySender.size();
+    }
+
+    private static ClientConnection[] concat( ClientConnection[] subscribers,
+                                              ClientConnection[] added ){
+        ClientConnection[] newSubscribers = Arrays.copyOf( subscribers, subscribers.length + added.length );
+        System.arraycopy( added, 0, newSubscribers, subscribers.length, added.length );
+        return newSubscribers;
+    }
+
+    /**
+     * @return the subscribers without the client, null if none are left so the sender goes from the map
+     */
+    private static ClientConnection[] without( ClientConnection[] subscribers,
+                                               ClientConnection clientConnection ){
+        if ( subscribers.length == 1 && subscribers[0] == clientConnection ) {
+            return null;
+        }
+        ClientConnection[] newSubscribers = new ClientConnection[ subscribers.length - 1 ];
+        int index = 0;
+        for ( ClientConnection subscriber : subscribers ) {
+            if ( subscriber != clientConnection ) {
+                if ( index == newSubscribers.length ) {
+                    return subscribers;
+                }
+                newSubscribers[index++] = subscriber;
+            }
+        }
+        return newSubscribers;
+    }
+}
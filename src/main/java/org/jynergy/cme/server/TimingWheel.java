@@ -0,0 +1,188 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timing wheel: timeouts hang in one of {@link #WHEEL_SIZE} buckets by their deadline and a daemon
+ * thread visits one bucket per tick, so scheduling, cancelling and expiring are O(1) whatever the number of timeouts.
+ * Deadlines are rounded up to whole ticks; the tasks run on the ticking thread and must be short.
+ */
+public class TimingWheel {
+    /**
+     * Number of buckets, a power of two
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * Length of a tick
+     */
+    private final long tickNanos;
+
+    /**
+     * Each bucket is the head of a circular list of {@link Timeout}s, guarded by {@link #lock}
+     */
+    private final Timeout[] buckets = new Timeout[ WHEEL_SIZE ];
+
+    /**
+     * Ticks done so far, guarded by {@link #lock}
+     */
+    private long tick;
+
+    /**
+     * {@link System#nanoTime()} when the wheel started
+     */
+    private final long startNanos = System.nanoTime();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Does the ticks
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Starts ticking
+     *
+     * @param tickMillis length of a tick
+     * @param threadName name of the ticking thread
+     */
+    public TimingWheel( long tickMillis,
+                        String threadName ){
+        tickNanos = TimeUnit.MILLISECONDS.toNanos( tickMillis );
+        for ( int i = 0; i < WHEEL_SIZE; i++ ) {
+            buckets[i] = new Timeout( null );
+        }
+        executor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, threadName );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        executor.scheduleAtFixedRate( this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Runs a task once after a delay
+     *
+     * @param task the task, run on the ticking thread
+     * @param delayNanos the delay
+     *
+     * @return the timeout, to {@link Timeout#cancel()} it
+     */
+    public Timeout schedule( Runnable task,
+                             long delayNanos ){
+        Timeout timeout = new Timeout( task );
+        lock.lock();
+        try {
+            // ticks are counted from the start, so a late tick does not postpone the timeouts
+            long elapsedTicks = ( System.nanoTime() - startNanos + delayNanos + tickNanos - 1 ) / tickNanos;
+            long deadlineTick = Math.max( tick + 1, elapsedTicks );
+            timeout.rounds = ( deadlineTick - tick - 1 ) / WHEEL_SIZE;
+            timeout.link( buckets[(int) ( deadlineTick & ( WHEEL_SIZE - 1 ) )] );
+        }
+        finally {
+            lock.unlock();
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops ticking, the timeouts still scheduled never run
+     */
+    public void close(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * Does the ticks that are due and runs the tasks that expired
+     */
+    private void advance(){
+        ArrayList<Runnable> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            long dueTick = ( System.nanoTime() - startNanos ) / tickNanos;
+            while ( tick < dueTick ) {
+                tick++;
+                Timeout head = buckets[(int) ( tick & ( WHEEL_SIZE - 1 ) )];
+                Timeout timeout = head.next;
+                while ( timeout != head ) {
+                    Timeout next = timeout.next;
+                    if ( timeout.rounds == 0 ) {
+                        timeout.unlink();
+                        expired.add( timeout.task );
+                    }
+                    else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        for ( Runnable task : expired ) {
+            try {
+                task.run();
+            }
+            catch ( RuntimeException runtimeException ) {
+                runtimeException.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A scheduled task, linked into its bucket until it expires or is cancelled
+     */
+    public class Timeout {
+        private final Runnable task;
+
+        /**
+         * Times the bucket is visited before the task runs, guarded by {@link #lock}
+         */
+        private long rounds;
+
+        private Timeout previous = this;
+
+        private Timeout next = this;
+
+        private Timeout( Runnable task ){
+            this.task = task;
+        }
+
+        /**
+         * Keeps the task from running, does nothing if it ran already
+         */
+        public void cancel(){
+            lock.lock();
+            try {
+                unlink();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        private void link( Timeout head ){
+            previous = head.previous;
+            next = head;
+            head.previous.next = this;
+            head.previous = this;
+        }
+
+        private void unlink(){
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+    }
+}
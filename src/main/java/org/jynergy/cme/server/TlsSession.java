@@ -0,0 +1,423 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TLS over a {@link SocketChannel} through an {@link SSLEngine}, for blocking and non blocking channels alike.
+ * {@link #read(SocketChannel, ByteBuffer)} and {@link #write(SocketChannel, ByteBuffer[], int, int)} take the
+ * place of the channel's own, the handshake happens along the way: whatever the engine needs to send while
+ * reading is written at once, or left for {@link #flush(SocketChannel)} if a non blocking channel is full.
+ * <p>
+ * One thread may read while another writes. The delegated tasks of the engine run on the calling thread, or
+ * on a task executor so a thread servicing many non blocking channels does not stall on them: reads and
+ * writes then make no progress until the tasks are done and the handshake goes on with the next {@link #read}.
+ */
+public class TlsSession {
+    /**
+     * Source of wraps that only carry handshake data
+     */
+    private static final ByteBuffer[] NO_DATA = { ByteBuffer.allocate( 0 ) };
+
+    /**
+     * The engine, in server mode
+     */
+    private final SSLEngine sslEngine;
+
+    /**
+     * Bytes read from the channel and not unwrapped yet, in write mode
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Unwrapped bytes not handed to the reader yet, in read mode
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * Wrapped bytes not written to the channel yet, in read mode
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Serializes wrapping and writing, which the reading thread does too during a handshake
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * Runs the delegated tasks of the engine, null to run them on the calling thread
+     */
+    private final Executor taskExecutor;
+
+    /**
+     * Run on the {@link #taskExecutor} once the delegated tasks are done, to read again
+     */
+    private volatile Runnable tasksDone;
+
+    /**
+     * Set while the delegated tasks run on the {@link #taskExecutor}
+     */
+    private volatile boolean tasksRunning;
+
+    /**
+     * Set from handing the delegated tasks over until the next {@link #read} goes on with the handshake
+     */
+    private volatile boolean waitingForTasks;
+
+    /**
+     * @param sslEngine {@link #sslEngine}, its handshake begun
+     * @param taskExecutor {@link #taskExecutor}
+     */
+    public TlsSession( SSLEngine sslEngine,
+                       Executor taskExecutor ){
+        this.sslEngine = sslEngine;
+        this.taskExecutor = taskExecutor;
+        int packetBufferSize = sslEngine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate( packetBufferSize );
+        appIn = ByteBuffer.allocate( sslEngine.getSession().getApplicationBufferSize() );
+        appIn.flip();
+        netOut = ByteBuffer.allocate( packetBufferSize );
+        netOut.flip();
+    }
+
+    /**
+     * Reads and unwraps, like {@link SocketChannel#read(ByteBuffer)}
+     *
+     * @param socketChannel the channel
+     * @param byteBuffer receives the plain bytes, in write mode
+     *
+     * @return the number of plain bytes read, 0 if a non blocking channel had none yet or the delegated tasks
+     * are still running, -1 at the end of the stream
+     *
+     * @throws IOException if reading or writing fails or the peer breaks the protocol
+     */
+    public int read( SocketChannel socketChannel,
+                     ByteBuffer byteBuffer ) throws IOException {
+        while ( true ) {
+            if ( appIn.hasRemaining() ) {
+                int count = Math.min( appIn.remaining(), byteBuffer.remaining() );
+                ByteBuffer slice = appIn.duplicate();
+                slice.limit( slice.position() + count );
+                byteBuffer.put( slice );
+                appIn.position( appIn.position() + count );
+                return count;
+            }
+            if ( tasksRunning ) {
+                return 0;
+            }
+            if ( waitingForTasks ) {
+                waitingForTasks = false;
+                handshake( socketChannel, sslEngine.getHandshakeStatus() );
+                continue;
+            }
+            if ( netIn.position() > 0 ) {
+                if ( !unwrap( socketChannel ) ) {
+                    return -1;
+                }
+                if ( appIn.hasRemaining() ) {
+                    continue;
+                }
+            }
+            int count = socketChannel.read( netIn );
+            if ( count < 0 ) {
+                try {
+                    sslEngine.closeInbound();
+                }
+                catch ( SSLException sslException ) {
+                    // the peer did not send close_notify, the stream ends either way
+                }
+                return -1;
+            }
+            if ( count == 0 ) {
+                return 0;
+            }
+            if ( !unwrap( socketChannel ) ) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Unwraps what {@link #netIn} holds into {@link #appIn} and answers the handshake
+     *
+     * @return false once the peer closed the session
+     */
+    private boolean unwrap( SocketChannel socketChannel ) throws IOException {
+        netIn.flip();
+        try {
+            while ( netIn.hasRemaining() ) {
+                appIn.compact();
+                SSLEngineResult result;
+                try {
+                    result = sslEngine.unwrap( netIn, appIn );
+                }
+                finally {
+                    appIn.flip();
+                }
+                switch ( result.getStatus() ) {
+                    case BUFFER_UNDERFLOW:
+                        if ( netIn.limit() == netIn.capacity() ) {
+                            netIn = enlarge( netIn, sslEngine.getSession().getPacketBufferSize() );
+                        }
+                        return true;
+                    case BUFFER_OVERFLOW:
+                        if ( appIn.hasRemaining() ) {
+                            return true;
+                        }
+                        appIn = enlarge( appIn, sslEngine.getSession().getApplicationBufferSize() );
+                        break;
+                    case CLOSED:
+                        return false;
+                    default:
+                        break;
+                }
+                handshake( socketChannel, result.getHandshakeStatus() );
+                if ( waitingForTasks ) {
+                    return true;
+                }
+                if ( result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                     && result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW ) {
+                    return true;
+                }
+            }
+            return true;
+        }
+        finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Runs the delegated tasks and sends what the handshake needs to send
+     */
+    private void handshake( SocketChannel socketChannel,
+                            SSLEngineResult.HandshakeStatus handshakeStatus ) throws IOException {
+        while ( true ) {
+            if ( handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK ) {
+                if ( !runTasks() ) {
+                    return;
+                }
+                handshakeStatus = sslEngine.getHandshakeStatus();
+            }
+            else if ( handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP ) {
+                writeLock.lock();
+                try {
+                    SSLEngineResult result = wrap( NO_DATA, 0, 1 );
+                    flushLocked( socketChannel );
+                    if ( result.bytesProduced() == 0 ) {
+                        return;
+                    }
+                    handshakeStatus = result.getHandshakeStatus();
+                }
+                finally {
+                    writeLock.unlock();
+                }
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wraps and writes, like {@link SocketChannel#write(ByteBuffer[], int, int)}. All the bytes are consumed
+     * unless a non blocking channel is full; they may then still wait in this session, see {@link #flush(SocketChannel)}.
+     *
+     * @param socketChannel the channel
+     * @param byteBuffers the plain bytes
+     * @param offset index of the first buffer
+     * @param length number of buffers
+     *
+     * @return true if everything consumed was written to the channel
+     *
+     * @throws IOException if writing fails or the session is closed
+     */
+    public boolean write( SocketChannel socketChannel,
+                          ByteBuffer[] byteBuffers,
+                          int offset,
+                          int length ) throws IOException {
+        writeLock.lock();
+        try {
+            if ( !flushLocked( socketChannel ) || waitingForTasks ) {
+                return false;
+            }
+            while ( hasRemaining( byteBuffers, offset, length ) ) {
+                SSLEngineResult result = wrap( byteBuffers, offset, length );
+                boolean tasksRan = result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK || runTasks();
+                if ( !flushLocked( socketChannel ) || !tasksRan ) {
+                    return false;
+                }
+                if ( result.bytesConsumed() == 0 && result.bytesProduced() == 0 ) {
+                    throw new SSLException( "cannot write while the handshake waits for the peer" );
+                }
+            }
+            return true;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the wrapped bytes still waiting
+     *
+     * @param socketChannel the channel
+     *
+     * @return true if nothing waits any more
+     *
+     * @throws IOException if writing fails
+     */
+    public boolean flush( SocketChannel socketChannel ) throws IOException {
+        writeLock.lock();
+        try {
+            return flushLocked( socketChannel );
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return true from handing the delegated tasks to the {@link #taskExecutor} until the next {@link #read}
+     * goes on with the handshake, writing makes no progress meanwhile
+     */
+    public boolean isWaitingForTasks(){
+        return waitingForTasks;
+    }
+
+    /**
+     * sets {@link #tasksDone}
+     * @param tasksDone {@link #tasksDone}
+     */
+    public void setTasksDone( Runnable tasksDone ){
+        this.tasksDone = tasksDone;
+    }
+
+    /**
+     * @return true if wrapped bytes wait to be written
+     */
+    public boolean hasPendingOutput(){
+        writeLock.lock();
+        try {
+            return netOut.hasRemaining();
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Runs the delegated tasks of the engine, on the {@link #taskExecutor} if there is one
+     *
+     * @return true if they ran, false if they were handed to the {@link #taskExecutor}
+     *
+     * @throws SSLException if the {@link #taskExecutor} does not take them
+     */
+    private boolean runTasks() throws SSLException {
+        if ( taskExecutor == null ) {
+            Runnable task;
+            while ( ( task = sslEngine.getDelegatedTask() ) != null ) {
+                task.run();
+            }
+            return true;
+        }
+        waitingForTasks = true;
+        tasksRunning = true;
+        try {
+            taskExecutor.execute( () -> {
+                try {
+                    Runnable task;
+                    while ( ( task = sslEngine.getDelegatedTask() ) != null ) {
+                        task.run();
+                    }
+                }
+                finally {
+                    // a task that failed makes the engine throw on the next wrap or unwrap
+                    tasksRunning = false;
+                    Runnable done = tasksDone;
+                    if ( done != null ) {
+                        done.run();
+                    }
+                }
+            } );
+        }
+        catch ( RejectedExecutionException rejectedExecutionException ) {
+            tasksRunning = false;
+            throw new SSLException( "cannot run the handshake tasks", rejectedExecutionException );
+        }
+        return false;
+    }
+
+    /**
+     * Wraps into {@link #netOut}, must hold {@link #writeLock}
+     */
+    private SSLEngineResult wrap( ByteBuffer[] byteBuffers,
+                                  int offset,
+                                  int length ) throws IOException {
+        while ( true ) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = sslEngine.wrap( byteBuffers, offset, length, netOut );
+            }
+            finally {
+                netOut.flip();
+            }
+            switch ( result.getStatus() ) {
+                case BUFFER_OVERFLOW:
+                    netOut = enlarge( netOut, sslEngine.getSession().getPacketBufferSize() );
+                    break;
+                case CLOSED:
+                    throw new SSLException( "session closed" );
+                default:
+                    return result;
+            }
+        }
+    }
+
+    /**
+     * Writes {@link #netOut}, must hold {@link #writeLock}
+     */
+    private boolean flushLocked( SocketChannel socketChannel ) throws IOException {
+        while ( netOut.hasRemaining() ) {
+            if ( socketChannel.write( netOut ) == 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasRemaining( ByteBuffer[] byteBuffers,
+                                         int offset,
+                                         int length ){
+        for ( int i = offset; i < offset + length; i++ ) {
+            if ( byteBuffers[i].hasRemaining() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a buffer larger by size holding the remaining bytes of byteBuffer, both in read mode
+     */
+    private static ByteBuffer enlarge( ByteBuffer byteBuffer,
+                                       int size ){
+        ByteBuffer larger = ByteBuffer.allocate( byteBuffer.capacity() + size );
+        larger.put( byteBuffer );
+        larger.flip();
+        return larger;
+    }
+}
@@ -0,0 +1,60 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+/**
+ * A token bucket refilled at a steady rate, not thread safe.
+ * Lets a client send short bursts while holding its long term rate down.
+ */
+public class TokenBucket {
+    /**
+     * Tokens added per nanosecond
+     */
+    private final double tokensPerNano;
+
+    /**
+     * Most tokens held
+     */
+    private final double capacity;
+
+    /**
+     * Tokens held at {@link #lastNanos}
+     */
+    private double tokens;
+
+    /**
+     * {@link System#nanoTime()} of the last refill
+     */
+    private long lastNanos;
+
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param burst most tokens held, the bucket starts full
+     */
+    public TokenBucket( int ratePerSecond,
+                        int burst ){
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = Math.max( 1, burst );
+        this.tokens = capacity;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if there is one
+     *
+     * @return true if a token was taken
+     */
+    public boolean tryAcquire(){
+        long now = System.nanoTime();
+        tokens = Math.min( capacity, tokens + ( now - lastNanos ) * tokensPerNano );
+        lastNanos = now;
+        if ( tokens < 1 ) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the running JVM has them (Java 21 and later).
+ * The lookup is reflective so the project still builds and runs on older JVMs.
+ */
+public final class VirtualThreads {
+    private VirtualThreads(){
+    }
+
+    /**
+     * Creates a factory for named virtual threads
+     *
+     * @param prefix thread name prefix, a counter is appended
+     *
+     * @return the factory or null if the JVM has no virtual threads
+     */
+    public static ThreadFactory newThreadFactory( String prefix ){
+        try {
+            Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+            builder = builderClass.getMethod( "name", String.class, long.class ).invoke( builder, prefix, 0L );
+            return (ThreadFactory) builderClass.getMethod( "factory" ).invoke( builder );
+        }
+        catch ( ReflectiveOperationException reflectiveOperationException ) {
+            return null;
+        }
+    }
+}
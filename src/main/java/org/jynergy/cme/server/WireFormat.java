@@ -0,0 +1,513 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.jynergy.cme.protocol.BinaryCodec;
+import org.jynergy.cme.protocol.Compression;
+import org.jynergy.cme.protocol.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * How {@link Frame}s are encoded for a client. A message sent to clients of both formats
+ * is encoded once per format, never once per client.
+ */
+public enum WireFormat implements Protocol {
+    /**
+     * Newline terminated {@link Protocol} lines, used by clients that did not ask for {@link #FEATURE_BINARY}
+     */
+    TEXT {
+        public Frame encodeMessage( CharSequence text,
+                                    int start,
+                                    int fanOut ){
+            return Frame.of( MESSAGE, text, start, fanOut );
+        }
+
+        public Frame encodeMessage( ByteBuffer utf8Text,
+                                    int fanOut ){
+            ByteBuffer byteBuffer = Frame.allocate( 1 + utf8Text.remaining() + 1, fanOut );
+            byteBuffer.put( (byte) MESSAGE );
+            for ( int i = utf8Text.position(); i < utf8Text.limit(); i++ ) {
+                byte b = utf8Text.get( i );
+                byteBuffer.put( b == '\n' || b == '\r' ? (byte) ' ' : b );
+            }
+            byteBuffer.put( (byte) '\n' );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeRoomMessage( String roomName,
+                                        CharSequence text,
+                                        int start,
+                                        int fanOut ){
+            String prefix = String.valueOf( ROOM_MESSAGE ) + roomName + SEPERATOR;
+            int prefixLength = Frame.utf8Length( prefix, 0, prefix.length() );
+            ByteBuffer byteBuffer = Frame.allocate( prefixLength + Frame.utf8Length( text, start, text.length() ) + 1, fanOut );
+            Frame.putUtf8( byteBuffer, prefix, 0, prefix.length() );
+            Frame.putUtf8( byteBuffer, text, start, text.length() );
+            byteBuffer.put( (byte) '\n' );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeRoomMessage( String roomName,
+                                        ByteBuffer utf8Text,
+                                        int fanOut ){
+            String prefix = String.valueOf( ROOM_MESSAGE ) + roomName + SEPERATOR;
+            int prefixLength = Frame.utf8Length( prefix, 0, prefix.length() );
+            ByteBuffer byteBuffer = Frame.allocate( prefixLength + utf8Text.remaining() + 1, fanOut );
+            Frame.putUtf8( byteBuffer, prefix, 0, prefix.length() );
+            for ( int i = utf8Text.position(); i < utf8Text.limit(); i++ ) {
+                byte b = utf8Text.get( i );
+                byteBuffer.put( b == '\n' || b == '\r' ? (byte) ' ' : b );
+            }
+            byteBuffer.put( (byte) '\n' );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeRoomReply( char tag,
+                                      String roomName ){
+            return Frame.of( String.valueOf( tag ) + roomName );
+        }
+
+        public Frame encodeUserList( ClientConnection[] clients ){
+            StringBuilder stringBuilder = new StringBuilder(  );
+            stringBuilder.append( USER_LIST );
+            boolean first = true;
+            for ( ClientConnection clientConnection : clients ) {
+                if ( first ) {
+                    first = false;
+                }
+                else {
+                    stringBuilder.append( COMMA );
+                }
+                stringBuilder.append( clientConnection.getClientName() );
+            }
+            return Frame.of( stringBuilder.toString(), clients.length );
+        }
+
+        public Frame encodeUserSnapshot( int version,
+                                         ClientConnection[] clients,
+                                         int fanOut ){
+            StringBuilder stringBuilder = new StringBuilder(  );
+            stringBuilder.append( USER_SNAPSHOT );
+            stringBuilder.append( version );
+            for ( ClientConnection clientConnection : clients ) {
+                stringBuilder.append( COMMA );
+                stringBuilder.append( clientConnection.getClientName() );
+            }
+            return Frame.of( stringBuilder.toString(), fanOut );
+        }
+
+        public Frame encodeUserChange( char tag,
+                                       int version,
+                                       int clientId,
+                                       String clientName,
+                                       int fanOut ){
+            return Frame.of( String.valueOf( tag ) + version + COMMA + clientName, fanOut );
+        }
+
+        public Frame encodeJournalMessage( long sequence,
+                                           CharSequence text,
+                                           int start,
+                                           int fanOut ){
+            String prefix = String.valueOf( JOURNAL_MESSAGE ) + sequence + SEPERATOR;
+            ByteBuffer byteBuffer = Frame.allocate( prefix.length() + Frame.utf8Length( text, start, text.length() ) + 1, fanOut );
+            Frame.putUtf8( byteBuffer, prefix, 0, prefix.length() );
+            Frame.putUtf8( byteBuffer, text, start, text.length() );
+            byteBuffer.put( (byte) '\n' );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeJournalMessage( long sequence,
+                                           ByteBuffer utf8Text,
+                                           int fanOut ){
+            String prefix = String.valueOf( JOURNAL_MESSAGE ) + sequence + SEPERATOR;
+            ByteBuffer byteBuffer = Frame.allocate( prefix.length() + utf8Text.remaining() + 1, fanOut );
+            Frame.putUtf8( byteBuffer, prefix, 0, prefix.length() );
+            for ( int i = utf8Text.position(); i < utf8Text.limit(); i++ ) {
+                byte b = utf8Text.get( i );
+                byteBuffer.put( b == '\n' || b == '\r' ? (byte) ' ' : b );
+            }
+            byteBuffer.put( (byte) '\n' );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeReplayEnd( long sequence ){
+            return Frame.of( String.valueOf( REPLAY ) + sequence );
+        }
+
+        public Frame encodeReconnect( int delayMillis ){
+            return Frame.of( String.valueOf( RECONNECT ) + delayMillis );
+        }
+
+        public Frame encodeReply( char reply ){
+            return Frame.of( String.valueOf( reply ) );
+        }
+
+        public Frame encodeCompressed( Frame frame ){
+            byte[] base64 = Base64.getEncoder().encode( Compression.deflate( frame.buffer() ) );
+            byte[] header = ( String.valueOf( COMPRESSED ) + frame.length() + SEPERATOR ).getBytes( StandardCharsets.UTF_8 );
+            int length = header.length + base64.length + 1;
+            if ( length >= frame.length() ) {
+                return null;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.allocate( length );
+            byteBuffer.put( header );
+            byteBuffer.put( base64 );
+            byteBuffer.put( (byte) '\n' );
+            return Frame.wrap( byteBuffer );
+        }
+    },
+
+    /**
+     * Length prefixed {@link BinaryCodec} frames, negotiated with {@link #FEATURE_BINARY}
+     */
+    BINARY {
+        public Frame encodeMessage( CharSequence text,
+                                    int start,
+                                    int fanOut ){
+            int bodyLength = Frame.utf8Length( text, start, text.length() );
+            ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+            BinaryCodec.putHeader( byteBuffer, MESSAGE, bodyLength );
+            Frame.putUtf8( byteBuffer, text, start, text.length() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeMessage( ByteBuffer utf8Text,
+                                    int fanOut ){
+            int bodyLength = utf8Text.remaining();
+            ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+            BinaryCodec.putHeader( byteBuffer, MESSAGE, bodyLength );
+            byteBuffer.put( utf8Text.duplicate() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeRoomMessage( String roomName,
+                                        CharSequence text,
+                                        int start,
+                                        int fanOut ){
+            int roomLength = Frame.utf8Length( roomName, 0, roomName.length() );
+            int bodyLength = BinaryCodec.varintLength( roomLength ) + roomLength + Frame.utf8Length( text, start, text.length() );
+            ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+            BinaryCodec.putHeader( byteBuffer, ROOM_MESSAGE, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, roomLength );
+            Frame.putUtf8( byteBuffer, roomName, 0, roomName.length() );
+            Frame.putUtf8( byteBuffer, text, start, text.length() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeRoomMessage( String roomName,
+                                        ByteBuffer utf8Text,
+                                        int fanOut ){
+            int roomLength = Frame.utf8Length( roomName, 0, roomName.length() );
+            int bodyLength = BinaryCodec.varintLength( roomLength ) + roomLength + utf8Text.remaining();
+            ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+            BinaryCodec.putHeader( byteBuffer, ROOM_MESSAGE, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, roomLength );
+            Frame.putUtf8( byteBuffer, roomName, 0, roomName.length() );
+            byteBuffer.put( utf8Text.duplicate() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeRoomReply( char tag,
+                                      String roomName ){
+            int bodyLength = Frame.utf8Length( roomName, 0, roomName.length() );
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, tag, bodyLength );
+            Frame.putUtf8( byteBuffer, roomName, 0, roomName.length() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeUserList( ClientConnection[] clients ){
+            return encodeUsers( USER_LIST, -1, clients, clients.length );
+        }
+
+        public Frame encodeUserSnapshot( int version,
+                                         ClientConnection[] clients,
+                                         int fanOut ){
+            return encodeUsers( USER_SNAPSHOT, version, clients, fanOut );
+        }
+
+        public Frame encodeUserChange( char tag,
+                                       int version,
+                                       int clientId,
+                                       String clientName,
+                                       int fanOut ){
+            int nameLength = Frame.utf8Length( clientName, 0, clientName.length() );
+            int bodyLength = BinaryCodec.varintLength( version ) + BinaryCodec.varintLength( clientId ) +
+                             BinaryCodec.varintLength( nameLength ) + nameLength;
+            ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+            BinaryCodec.putHeader( byteBuffer, tag, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, version );
+            BinaryCodec.putVarint( byteBuffer, clientId );
+            BinaryCodec.putVarint( byteBuffer, nameLength );
+            Frame.putUtf8( byteBuffer, clientName, 0, clientName.length() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeJournalMessage( long sequence,
+                                           CharSequence text,
+                                           int start,
+                                           int fanOut ){
+            int textLength = Frame.utf8Length( text, start, text.length() );
+            int bodyLength = BinaryCodec.varlongLength( sequence ) + textLength;
+            ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+            BinaryCodec.putHeader( byteBuffer, JOURNAL_MESSAGE, bodyLength );
+            BinaryCodec.putVarlong( byteBuffer, sequence );
+            Frame.putUtf8( byteBuffer, text, start, text.length() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeJournalMessage( long sequence,
+                                           ByteBuffer utf8Text,
+                                           int fanOut ){
+            int bodyLength = BinaryCodec.varlongLength( sequence ) + utf8Text.remaining();
+            ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+            BinaryCodec.putHeader( byteBuffer, JOURNAL_MESSAGE, bodyLength );
+            BinaryCodec.putVarlong( byteBuffer, sequence );
+            byteBuffer.put( utf8Text.duplicate() );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeReplayEnd( long sequence ){
+            int bodyLength = BinaryCodec.varlongLength( sequence );
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, REPLAY, bodyLength );
+            BinaryCodec.putVarlong( byteBuffer, sequence );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeReconnect( int delayMillis ){
+            int bodyLength = BinaryCodec.varintLength( delayMillis );
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( bodyLength ) );
+            BinaryCodec.putHeader( byteBuffer, RECONNECT, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, delayMillis );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeReply( char reply ){
+            ByteBuffer byteBuffer = ByteBuffer.allocate( BinaryCodec.frameLength( 0 ) );
+            BinaryCodec.putHeader( byteBuffer, reply, 0 );
+            return Frame.wrap( byteBuffer );
+        }
+
+        public Frame encodeCompressed( Frame frame ){
+            byte[] deflated = Compression.deflate( frame.buffer() );
+            int bodyLength = BinaryCodec.varintLength( frame.length() ) + deflated.length;
+            int length = BinaryCodec.frameLength( bodyLength );
+            if ( length >= frame.length() || bodyLength + 1 > BinaryCodec.MAX_FRAME_LENGTH ) {
+                return null;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.allocate( length );
+            BinaryCodec.putHeader( byteBuffer, COMPRESSED, bodyLength );
+            BinaryCodec.putVarint( byteBuffer, frame.length() );
+            byteBuffer.put( deflated );
+            return Frame.wrap( byteBuffer );
+        }
+    };
+
+    /**
+     * Encodes a {@link #MESSAGE} from part of a string
+     *
+     * @param text holds the message text
+     * @param start index of the first char of the message text
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeMessage( CharSequence text,
+                                         int start,
+                                         int fanOut );
+
+    /**
+     * Encodes a {@link #MESSAGE} from UTF-8 bytes without decoding them
+     *
+     * @param utf8Text the message text between position and limit, left unchanged
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeMessage( ByteBuffer utf8Text,
+                                         int fanOut );
+
+    /**
+     * Encodes a {@link #USER_LIST}
+     *
+     * @param clients the logged on clients
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeUserList( ClientConnection[] clients );
+
+    /**
+     * Encodes a {@link #USER_SNAPSHOT}
+     *
+     * @param version the roster version
+     * @param clients the logged on clients
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeUserSnapshot( int version,
+                                              ClientConnection[] clients,
+                                              int fanOut );
+
+    /**
+     * Encodes a {@link #USER_JOINED} or {@link #USER_LEFT}
+     *
+     * @param tag {@link #USER_JOINED} or {@link #USER_LEFT}
+     * @param version the roster version after the change
+     * @param clientId id of the client that joined or left
+     * @param clientName name of the client that joined or left
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeUserChange( char tag,
+                                            int version,
+                                            int clientId,
+                                            String clientName,
+                                            int fanOut );
+
+    /**
+     * Encodes a {@link #JOURNAL_MESSAGE} from part of a string
+     *
+     * @param sequence the sequence number of the message in the journal
+     * @param text holds the message text
+     * @param start index of the first char of the message text
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeJournalMessage( long sequence,
+                                                CharSequence text,
+                                                int start,
+                                                int fanOut );
+
+    /**
+     * Encodes a {@link #JOURNAL_MESSAGE} from UTF-8 bytes without decoding them
+     *
+     * @param sequence the sequence number of the message in the journal
+     * @param utf8Text the message text between position and limit, left unchanged
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeJournalMessage( long sequence,
+                                                ByteBuffer utf8Text,
+                                                int fanOut );
+
+    /**
+     * Encodes a {@link #ROOM_MESSAGE} for the members of a room from part of a string
+     *
+     * @param roomName the room
+     * @param text holds the message text
+     * @param start index of the first char of the message text
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeRoomMessage( String roomName,
+                                             CharSequence text,
+                                             int start,
+                                             int fanOut );
+
+    /**
+     * Encodes a {@link #ROOM_MESSAGE} for the members of a room from UTF-8 bytes without decoding them
+     *
+     * @param roomName the room
+     * @param utf8Text the message text between position and limit, left unchanged
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeRoomMessage( String roomName,
+                                             ByteBuffer utf8Text,
+                                             int fanOut );
+
+    /**
+     * Encodes the answer to a {@link #ROOM_JOIN}
+     *
+     * @param tag {@link #ROOM_JOIN} if the client is a member, {@link #ROOM_LEAVE} if the join was refused
+     * @param roomName the room named in the join
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeRoomReply( char tag,
+                                           String roomName );
+
+    /**
+     * Encodes the {@link #REPLAY} that ends a replay
+     *
+     * @param sequence the sequence number of the last message replayed
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeReplayEnd( long sequence );
+
+    /**
+     * Encodes a {@link #RECONNECT}
+     *
+     * @param delayMillis how long the client waits before connecting again
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeReconnect( int delayMillis );
+
+    /**
+     * Encodes a {@link #COMPRESSED} holding a frame of this format
+     *
+     * @param frame the frame, at most {@link Compression#MAX_INFLATED_LENGTH} bytes
+     *
+     * @return the frame or null if compressing does not make it shorter
+     */
+    public abstract Frame encodeCompressed( Frame frame );
+
+    /**
+     * Encodes a {@link BinaryCodec} frame listing users
+     *
+     * @param tag the tag
+     * @param version the roster version, or -1 to leave it out
+     * @param clients the users
+     * @param fanOut number of clients the frame will be sent to
+     *
+     * @return the frame
+     */
+    private static Frame encodeUsers( char tag,
+                                      int version,
+                                      ClientConnection[] clients,
+                                      int fanOut ){
+        int bodyLength = version < 0 ? 0 : BinaryCodec.varintLength( version );
+        for ( ClientConnection clientConnection : clients ) {
+            String clientName = clientConnection.getClientName();
+            int nameLength = Frame.utf8Length( clientName, 0, clientName.length() );
+            bodyLength += BinaryCodec.varintLength( clientConnection.getClientId() ) +
+                          BinaryCodec.varintLength( nameLength ) + nameLength;
+        }
+        ByteBuffer byteBuffer = Frame.allocate( BinaryCodec.frameLength( bodyLength ), fanOut );
+        BinaryCodec.putHeader( byteBuffer, tag, bodyLength );
+        if ( version >= 0 ) {
+            BinaryCodec.putVarint( byteBuffer, version );
+        }
+        for ( ClientConnection clientConnection : clients ) {
+            String clientName = clientConnection.getClientName();
+            BinaryCodec.putVarint( byteBuffer, clientConnection.getClientId() );
+            BinaryCodec.putVarint( byteBuffer, Frame.utf8Length( clientName, 0, clientName.length() ) );
+            Frame.putUtf8( byteBuffer, clientName, 0, clientName.length() );
+        }
+        return Frame.wrap( byteBuffer );
+    }
+
+    /**
+     * Encodes a one char reply such as {@link #TO_MANY_USERS}
+     *
+     * @param reply the reply
+     *
+     * @return the frame
+     */
+    public abstract Frame encodeReply( char reply );
+}
@@ -0,0 +1,169 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectionTableTest {
+    @Test
+    public void getsByKey(){
+        ConnectionTable table = new ConnectionTable();
+        Connection one = new Connection( "one" );
+        Connection two = new Connection( "two" );
+        table.put( 1, one );
+        table.put( 2, two );
+        assertSame( table.get( 1 ), one );
+        assertSame( table.get( 2 ), two );
+        assertNull( table.get( 3 ) );
+        assertEquals( table.size(), 2 );
+    }
+
+    @Test
+    public void getsByNameWhenHashesCollide(){
+        // "Aa" and "BB" have the same String.hashCode(), so they share a key and a probe chain
+        assertEquals( "Aa".hashCode(), "BB".hashCode() );
+        ConnectionTable table = new ConnectionTable();
+        Connection aa = new Connection( "Aa" );
+        Connection bb = new Connection( "BB" );
+        table.put( aa.getClientName().hashCode(), aa );
+        table.put( bb.getClientName().hashCode(), bb );
+        String text = "xAaBBx";
+        assertSame( table.get( text, 1, 3 ), aa );
+        assertSame( table.get( text, 3, 5 ), bb );
+        assertNull( table.get( "Ab", 0, 2 ) );
+        assertNull( table.get( text, 0, 2 ) );
+    }
+
+    @Test
+    public void probesPastRemovedEntries(){
+        ConnectionTable table = new ConnectionTable();
+        Connection aa = new Connection( "Aa" );
+        Connection bb = new Connection( "BB" );
+        int key = "Aa".hashCode();
+        table.put( key, aa );
+        table.put( key, bb );
+        assertTrue( table.remove( key, aa ) );
+        assertSame( table.get( key ), bb );
+        assertSame( table.get( "BB", 0, 2 ), bb );
+        assertNull( table.get( "Aa", 0, 2 ) );
+        assertEquals( table.size(), 1 );
+    }
+
+    @Test
+    public void removesOnlyWhatIsThere(){
+        ConnectionTable table = new ConnectionTable();
+        Connection one = new Connection( "one" );
+        table.put( 1, one );
+        assertFalse( table.remove( 1, new Connection( "one" ) ) );
+        assertFalse( table.remove( 2, one ) );
+        assertTrue( table.remove( 1, one ) );
+        assertFalse( table.remove( 1, one ) );
+        assertNull( table.get( 1 ) );
+        assertEquals( table.size(), 0 );
+    }
+
+    @Test
+    public void deletesAndReinserts(){
+        ConnectionTable table = new ConnectionTable();
+        int key = "one".hashCode();
+        Connection one = new Connection( "one" );
+        table.put( key, one );
+        assertTrue( table.remove( key, one ) );
+        assertNull( table.get( "one", 0, 3 ) );
+        Connection again = new Connection( "one" );
+        table.put( key, again );
+        assertSame( table.get( key ), again );
+        assertSame( table.get( "one", 0, 3 ), again );
+        assertEquals( table.size(), 1 );
+    }
+
+    @Test
+    public void growsAndKeepsEveryEntry(){
+        ConnectionTable table = new ConnectionTable();
+        Connection[] connections = new Connection[ 10000 ];
+        for ( int key = 0; key < connections.length; key++ ) {
+            connections[key] = new Connection( "client" + key );
+            table.put( key, connections[key] );
+        }
+        assertEquals( table.size(), connections.length );
+        for ( int key = 0; key < connections.length; key++ ) {
+            assertSame( table.get( key ), connections[key] );
+        }
+        assertNull( table.get( connections.length ) );
+        assertNull( table.get( -1 ) );
+    }
+
+    @Test
+    public void rebuildsAwayRemovedEntries(){
+        // the removed markers fill the slots until a rebuild drops them, few entries are ever live at once
+        ConnectionTable table = new ConnectionTable();
+        Connection kept = new Connection( "kept" );
+        table.put( -1, kept );
+        for ( int key = 0; key < 10000; key++ ) {
+            Connection connection = new Connection( "client" + key );
+            table.put( key, connection );
+            assertSame( table.get( key ), connection );
+            assertTrue( table.remove( key, connection ) );
+            assertNull( table.get( key ) );
+        }
+        assertSame( table.get( -1 ), kept );
+        assertEquals( table.size(), 1 );
+    }
+
+    /**
+     * Only has a name
+     */
+    private static class Connection implements ClientConnection {
+        private final String clientName;
+
+        private Connection( String clientName ){
+            this.clientName = clientName;
+        }
+
+        @Override
+        public String getClientName(){
+            return clientName;
+        }
+
+        @Override
+        public int getClientId(){
+            return 0;
+        }
+
+        @Override
+        public void setClientId( int clientId ){
+        }
+
+        @Override
+        public WireFormat getWireFormat(){
+            return WireFormat.TEXT;
+        }
+
+        @Override
+        public boolean hasFeature( char feature ){
+            return false;
+        }
+
+        @Override
+        public void send( Frame frame ){
+        }
+
+        @Override
+        public int getQueuedFrames(){
+            return 0;
+        }
+
+        @Override
+        public void close(){
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.jynergy.cme.server;
+
+/*
+ * Copyright (c) 2018.
+ * Licensed under LPGL v3 (http://www.gnu.org/licenses/lgpl.txt) or Apache License v2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TimingWheelTest {
+    /**
+     * Ticks of 1ms make one revolution of the 512 buckets last 512ms
+     */
+    private static final long TICK_MILLIS = 1;
+
+    private TimingWheel timingWheel;
+
+    @BeforeMethod
+    public void startWheel(){
+        timingWheel = new TimingWheel( TICK_MILLIS, "test-wheel" );
+    }
+
+    @AfterMethod
+    public void closeWheel(){
+        timingWheel.close();
+    }
+
+    @Test
+    public void runsAfterTheDelay() throws InterruptedException{
+        assertRunsAfter( 20 );
+    }
+
+    @Test
+    public void runsAfterADelayPastOneRevolution() throws InterruptedException{
+        assertRunsAfter( 700 );
+    }
+
+    @Test
+    public void runsAfterADelayPastSeveralRevolutions() throws InterruptedException{
+        assertRunsAfter( 1600 );
+    }
+
+    @Test
+    public void runsADelayOfZeroOnTheNextTick() throws InterruptedException{
+        CountDownLatch ran = new CountDownLatch( 1 );
+        timingWheel.schedule( ran::countDown, 0 );
+        assertTrue( ran.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws InterruptedException{
+        AtomicInteger runs = new AtomicInteger();
+        TimingWheel.Timeout timeout = timingWheel.schedule( runs::incrementAndGet, TimeUnit.MILLISECONDS.toNanos( 50 ) );
+        timeout.cancel();
+        CountDownLatch later = new CountDownLatch( 1 );
+        timingWheel.schedule( later::countDown, TimeUnit.MILLISECONDS.toNanos( 100 ) );
+        assertTrue( later.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( runs.get(), 0 );
+    }
+
+    @Test
+    public void cancelAfterExpiryDoesNothing() throws InterruptedException{
+        CountDownLatch ran = new CountDownLatch( 1 );
+        TimingWheel.Timeout timeout = timingWheel.schedule( ran::countDown, TimeUnit.MILLISECONDS.toNanos( 10 ) );
+        assertTrue( ran.await( 5, TimeUnit.SECONDS ) );
+        timeout.cancel();
+        timeout.cancel();
+        // the buckets are intact, later timeouts still run
+        CountDownLatch later = new CountDownLatch( 2 );
+        timingWheel.schedule( later::countDown, TimeUnit.MILLISECONDS.toNanos( 10 ) );
+        timingWheel.schedule( later::countDown, TimeUnit.MILLISECONDS.toNanos( 10 + 512 * TICK_MILLIS ) );
+        assertTrue( later.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void cancelRacingExpiryRunsEachTaskAtMostOnce() throws InterruptedException{
+        int count = 2000;
+        AtomicInteger[] runs = new AtomicInteger[ count ];
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[ count ];
+        for ( int i = 0; i < count; i++ ) {
+            AtomicInteger run = runs[i] = new AtomicInteger();
+            timeouts[i] = timingWheel.schedule( run::incrementAndGet, TimeUnit.MICROSECONDS.toNanos( i * 10 ) );
+        }
+        // the ticks expire the early ones while these are cancelled
+        for ( int i = 0; i < count; i += 2 ) {
+            timeouts[i].cancel();
+        }
+        CountDownLatch later = new CountDownLatch( 1 );
+        timingWheel.schedule( later::countDown, TimeUnit.MILLISECONDS.toNanos( 100 ) );
+        assertTrue( later.await( 5, TimeUnit.SECONDS ) );
+        for ( int i = 0; i < count; i++ ) {
+            assertTrue( runs[i].get() <= 1, "timeout " + i + " ran " + runs[i].get() + " times" );
+            if ( i % 2 == 1 ) {
+                assertEquals( runs[i].get(), 1, "timeout " + i );
+            }
+        }
+    }
+
+    private void assertRunsAfter( long delayMillis ) throws InterruptedException{
+        CountDownLatch ran = new CountDownLatch( 1 );
+        long[] ranNanos = new long[ 1 ];
+        long startNanos = System.nanoTime();
+        timingWheel.schedule( () -> {
+            ranNanos[0] = System.nanoTime();
+            ran.countDown();
+        }, TimeUnit.MILLISECONDS.toNanos( delayMillis ) );
+        assertTrue( ran.await( delayMillis + 5000, TimeUnit.MILLISECONDS ) );
+        assertTrue( ranNanos[0] - startNanos >= TimeUnit.MILLISECONDS.toNanos( delayMillis ),
+                    "ran after " + TimeUnit.NANOSECONDS.toMillis( ranNanos[0] - startNanos ) + "ms" );
+    }
+}